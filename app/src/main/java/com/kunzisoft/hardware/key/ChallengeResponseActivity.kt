@@ -11,9 +11,17 @@ import androidx.appcompat.app.AppCompatActivity
 import androidx.lifecycle.lifecycleScope
 import com.kunzisoft.hardware.key.databinding.ActivityChallengeBinding
 import com.kunzisoft.hardware.yubikey.Slot
+import com.kunzisoft.hardware.yubikey.YubiKeyException
+import com.kunzisoft.hardware.yubikey.challenge.CachingYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.DeviceCapabilities
 import com.kunzisoft.hardware.yubikey.challenge.NfcYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.SerializedYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.UsbCcidYubiKey
 import com.kunzisoft.hardware.yubikey.challenge.UsbYubiKey
 import com.kunzisoft.hardware.yubikey.challenge.YubiKey
+import com.kunzisoft.hardware.yubikey.challenge.YubiKeyExecutor
+import com.kunzisoft.hardware.yubikey.challenge.challengeResponseAsync
+import com.kunzisoft.hardware.yubikey.challenge.getCapabilitiesAsync
 import kotlinx.coroutines.*
 
 
@@ -125,59 +133,99 @@ class ChallengeResponseActivity : AppCompatActivity(),
         }
     }
 
-    override fun onYubiKeyConnected(yubiKey: YubiKey) {
-        if (yubiKey is UsbYubiKey)
-            binding.info.setText(R.string.press_button)
+    override fun onYubiKeyConnected(connectedYubiKey: YubiKey) {
         hideSlotSelection()
+        // Shared drivers are wrapped, the messages depend on the transport of the actual driver
+        val driver = unwrap(connectedYubiKey)
+        val usb = driver is UsbYubiKey || driver is UsbCcidYubiKey
+        // The user is waiting, the request goes ahead of the ones of the service
+        val prioritized = (connectedYubiKey as? SerializedYubiKey)
+            ?.withPriority(YubiKeyExecutor.Priority.INTERACTIVE) ?: connectedYubiKey
+        // Answers again without a touch if the user allowed it for this caller
+        val yubiKey = ResponseCacheManager.wrap(this, prioritized, callingActivity?.packageName)
 
-         lifecycleScope.launch {
-             withContext(Dispatchers.IO) {
-                 val asyncResult: Deferred<ByteArray?> = async {
-                     try {
-                         yubiKey.challengeResponse(
-                             selectedSlot,
-                             challenge!!
-                         )
-                     } catch (e: Exception) {
-                         withContext(Dispatchers.Main) {
-                             Log.e(TAG, "Error during challenge-response request", e)
-                             if (yubiKey is UsbYubiKey) {
-                                 connectionManager.waitForYubiKeyUnplug(
-                                     this@ChallengeResponseActivity,
-                                     this@ChallengeResponseActivity
-                                 )
-                                 setText(R.string.error_unplug_yubikey, true)
-                             }
-                             if (yubiKey is NfcYubiKey) {
-                                 if (e.cause is TagLostException) {
-                                     setText(R.string.error_yubikey_slowly, true)
-                                 } else {
-                                     setText(R.string.error_yubikey_configure, true)
-                                 }
-                                 binding.retryButton.visibility = View.VISIBLE
-                             }
-                         }
-                         null
-                     }
-                 }
-                 withContext(Dispatchers.Main) {
-                     val response = asyncResult.await()
-                     if (response != null) {
-                         if (yubiKey is NfcYubiKey) {
-                             keySoundManager.notifySuccess()
-                         }
-                         slotPreferenceManager.setPreferredSlot(
-                             purpose,
-                             selectedSlot
-                         )
-                         val result = Intent()
-                         result.putExtra(RESPONSE_TAG, response)
-                         this@ChallengeResponseActivity.setResult(RESULT_OK, result)
-                         finish()
-                     }
-                     hideSlotSelection()
-                 }
-             }
+        lifecycleScope.launch {
+            // Every NFC tap creates a new driver, probing it would keep the key longer on the reader
+            val capabilities = if (!usb) null else try {
+                yubiKey.getCapabilitiesAsync()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                // The request itself reports the error if the key is not usable
+                Log.w(TAG, "Unable to read the YubiKey capabilities", e)
+                null
+            }
+            if (capabilities != null) {
+                // Avoid a failed attempt on an empty slot when the other one is programmed
+                selectSlot(capabilities.selectSlot(selectedSlot))
+            }
+            if (usb) {
+                // Only a previous request on the slot tells that it answers without a touch
+                if (capabilities?.getTouch(selectedSlot) != DeviceCapabilities.Touch.NOT_REQUIRED)
+                    binding.info.setText(R.string.press_button)
+                else
+                    binding.info.setText(R.string.yubikey_working)
+            }
+
+            // Leaving the activity cancels the request and frees the key right away
+            val response = try {
+                yubiKey.challengeResponseAsync(
+                    selectedSlot,
+                    challenge!!
+                )
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "Error during challenge-response request", e)
+                if (usb) {
+                    if (e is YubiKeyException && e.isRetryable) {
+                        // The driver already retried, but the key is still usable without an unplug
+                        setText(R.string.error_yubikey_retry, true)
+                        binding.retryButton.visibility = View.VISIBLE
+                    } else {
+                        connectionManager.waitForYubiKeyUnplug(
+                            this@ChallengeResponseActivity,
+                            this@ChallengeResponseActivity
+                        )
+                        setText(R.string.error_unplug_yubikey, true)
+                    }
+                }
+                if (driver is NfcYubiKey) {
+                    if (e.cause is TagLostException) {
+                        setText(R.string.error_yubikey_slowly, true)
+                    } else {
+                        setText(R.string.error_yubikey_configure, true)
+                    }
+                    binding.retryButton.visibility = View.VISIBLE
+                }
+                null
+            }
+            if (response != null) {
+                if (driver is NfcYubiKey) {
+                    keySoundManager.notifySuccess()
+                }
+                slotPreferenceManager.setPreferredSlot(
+                    purpose,
+                    selectedSlot
+                )
+                // The user took part in this request, the caller may use the service from now on
+                callingActivity?.packageName?.let {
+                    ChallengeResponseService.trustCaller(this@ChallengeResponseActivity, it)
+                }
+                val result = Intent()
+                result.putExtra(RESPONSE_TAG, response)
+                this@ChallengeResponseActivity.setResult(RESULT_OK, result)
+                finish()
+            }
+            hideSlotSelection()
+        }
+    }
+
+    private fun unwrap(yubiKey: YubiKey): YubiKey {
+        return when (yubiKey) {
+            is CachingYubiKey -> unwrap(yubiKey.delegate)
+            is SerializedYubiKey -> unwrap(yubiKey.delegate)
+            else -> yubiKey
         }
     }
 
@@ -0,0 +1,258 @@
+package com.kunzisoft.hardware.key
+
+import android.app.PendingIntent
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.content.pm.PackageManager
+import android.hardware.usb.UsbManager
+import android.net.Uri
+import android.os.Build
+import android.os.Bundle
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.IBinder
+import android.os.Message
+import android.os.Messenger
+import android.os.RemoteException
+import android.util.Log
+import androidx.preference.PreferenceManager
+import com.kunzisoft.hardware.yubikey.YubiKeyException
+import com.kunzisoft.hardware.yubikey.YubiKeyTouchRequiredException
+import com.kunzisoft.hardware.yubikey.challenge.CachingYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.DeviceCapabilities
+import com.kunzisoft.hardware.yubikey.challenge.SerializedYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.YubiKeyExecutor
+import java.security.MessageDigest
+import java.util.UUID
+
+/**
+ * May be bound by Android apps using the `"android.yubikey.intent.action.BIND_CHALLENGE_RESPONSE"`
+ * intent to get the response to a challenge without the round trip through
+ * [ChallengeResponseActivity], when a YubiKey is already plugged in.
+ *
+ * A request is a [Message] of type [MSG_CHALLENGE_RESPONSE] whose data holds the same extras as
+ * the intent of the activity, with [Message.replyTo] set. The reply is either:
+ *  - [MSG_RESPONSE] with the extra `byte[] response`,
+ *  - [MSG_USER_INTERACTION_REQUIRED] with the extra `PendingIntent intent`, which starts the
+ *  activity for the same request and returns its result like a direct call of the activity,
+ *  - [MSG_ERROR] if the request is invalid.
+ *
+ * The service only answers by itself if the user allowed it, for apps that already got a response
+ * through the activity, and if the key answers without asking for a touch or the response is
+ * remembered by [ResponseCacheManager]. Every other request, e.g. one that needs the USB permission or an NFC
+ * tap, is handed over to the activity.
+ */
+class ChallengeResponseService : Service() {
+
+    private lateinit var workerThread: HandlerThread
+    private lateinit var messenger: Messenger
+    private lateinit var slotPreferenceManager: SlotPreferenceManager
+
+    override fun onCreate() {
+        super.onCreate()
+        slotPreferenceManager = SlotPreferenceManager(this)
+        // Requests are answered one after the other, off the main thread
+        workerThread = HandlerThread(TAG).apply { start() }
+        messenger = Messenger(Handler(workerThread.looper) { message ->
+            handleMessage(message)
+        })
+    }
+
+    override fun onBind(intent: Intent?): IBinder {
+        return messenger.binder
+    }
+
+    override fun onDestroy() {
+        workerThread.quit()
+        super.onDestroy()
+    }
+
+    private fun handleMessage(message: Message): Boolean {
+        if (message.what != MSG_CHALLENGE_RESPONSE)
+            return false
+        val replyTo = message.replyTo ?: return true
+        val request = message.data
+        val challenge = request.getByteArray(ChallengeResponseActivity.CHALLENGE_TAG)
+        val reply = if (challenge == null || challenge.isEmpty()) {
+            Message.obtain(null, MSG_ERROR).apply {
+                data = Bundle().apply { putString(ERROR_TAG, getString(R.string.invalid_challenge)) }
+            }
+        } else {
+            val purpose = request.getString(ChallengeResponseActivity.SLOT_TAG)
+            val caller = getTrustedCaller(message)
+            val response = if (caller != null) challengeResponse(challenge, purpose, caller) else null
+            if (response != null) {
+                Message.obtain(null, MSG_RESPONSE).apply {
+                    data = Bundle().apply {
+                        putByteArray(ChallengeResponseActivity.RESPONSE_TAG, response)
+                    }
+                }
+            } else {
+                Message.obtain(null, MSG_USER_INTERACTION_REQUIRED).apply {
+                    data = Bundle().apply {
+                        putParcelable(INTENT_TAG, activityIntent(request))
+                    }
+                }
+            }
+        }
+        try {
+            replyTo.send(reply)
+        } catch (e: RemoteException) {
+            Log.w(TAG, "Caller is gone", e)
+        }
+        return true
+    }
+
+    /**
+     * @return The trusted package of the sender, or null if the service must not answer it.
+     */
+    private fun getTrustedCaller(message: Message): String? {
+        if (!isEnabled(this))
+            return null
+        // The sender of a message is only known from Android 5.1 on
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1)
+            return null
+        val packages = packageManager.getPackagesForUid(message.sendingUid) ?: return null
+        return packages.firstOrNull { isTrustedCaller(this, it) }
+    }
+
+    /**
+     * Answers the challenge with a plugged in YubiKey that does not need the user.
+     *
+     * @return The response, or null if the user has to be involved.
+     */
+    private fun challengeResponse(challenge: ByteArray, purpose: String?, caller: String): ByteArray? {
+        val usbManager = getSystemService(Context.USB_SERVICE) as UsbManager
+        val device = YubiKeyDeviceRegistry.getDevices(this).firstOrNull {
+            usbManager.hasPermission(it)
+        } ?: return null
+        // Reuses the connection of a previous request if it is still open
+        val lease = YubiKeyDeviceRegistry.acquire(this, device) ?: return null
+        return try {
+            // Nobody looks at the screen, the requests of the activity go first
+            val prioritized = (lease.yubiKey as? SerializedYubiKey)
+                ?.withPriority(YubiKeyExecutor.Priority.NORMAL) ?: lease.yubiKey
+            val yubiKey = ResponseCacheManager.wrap(this, prioritized, caller)
+            val capabilities = yubiKey.getCapabilities() ?: return null
+            val slot = capabilities.selectSlot(slotPreferenceManager.getPreferredSlot(purpose))
+            if (!capabilities.isProgrammed(slot))
+                return null
+            // Without the activity, nothing would tell the user to touch the key, only a response
+            // this caller got a moment ago is given for a slot known to wait for a touch
+            if (capabilities.getTouch(slot) == DeviceCapabilities.Touch.REQUIRED)
+                return (yubiKey as? CachingYubiKey)?.getCachedResponse(slot, challenge)
+            // Gives up as soon as the key asks for a touch, instead of holding the only thread of
+            // the service until the key stops waiting
+            yubiKey.challengeResponseNonBlocking(slot, challenge).also {
+                slotPreferenceManager.setPreferredSlot(purpose, slot)
+            }
+        } catch (e: YubiKeyTouchRequiredException) {
+            // The activity asks the user to touch the key
+            null
+        } catch (e: YubiKeyException) {
+            // The activity reports the error and offers to retry
+            Log.e(TAG, "Error during challenge-response request", e)
+            null
+        } finally {
+            lease.close()
+        }
+    }
+
+    private fun activityIntent(request: Bundle): PendingIntent {
+        val intent = Intent(this, ChallengeResponseActivity::class.java).apply {
+            putExtras(request)
+            // Intents differing only by their extras share a PendingIntent, a unique Uri keeps a
+            // request from replacing or cancelling the one handed out to another caller
+            data = Uri.fromParts(REQUEST_SCHEME, UUID.randomUUID().toString(), null)
+        }
+        var flags = PendingIntent.FLAG_ONE_SHOT
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags = flags or PendingIntent.FLAG_IMMUTABLE
+        }
+        return PendingIntent.getActivity(this, 0, intent, flags)
+    }
+
+    companion object {
+        private val TAG: String = ChallengeResponseService::class.java.simpleName
+
+        const val MSG_CHALLENGE_RESPONSE = 1
+        const val MSG_RESPONSE = 2
+        const val MSG_USER_INTERACTION_REQUIRED = 3
+        const val MSG_ERROR = 4
+
+        const val INTENT_TAG = "intent"
+        const val ERROR_TAG = "error"
+
+        private const val REQUEST_SCHEME = "challenge-response"
+        private const val TRUSTED_CALLERS_PREF = "trusted_callers_pref"
+
+        fun isEnabled(context: Context): Boolean {
+            val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+            return preferences.getBoolean(
+                context.getString(R.string.background_requests_pref),
+                context.resources.getBoolean(R.bool.background_requests_default)
+            )
+        }
+
+        /**
+         * Remembers an app that got a response through the activity, i.e. with the user involved,
+         * so that the service may answer its next requests. The app is remembered with its
+         * signing certificates, another app installed later under the same name is not trusted.
+         */
+        fun trustCaller(context: Context, packageName: String) {
+            val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+            val caller = callerIdentity(context, packageName) ?: return
+            val trustedCallers = getTrustedCallers(context)
+            if (caller in trustedCallers)
+                return
+            // Forget an older identity of the same package, e.g. before a signing key rotation
+            preferences.edit()
+                .putStringSet(TRUSTED_CALLERS_PREF,
+                    trustedCallers.filterNot { it.startsWith("$packageName:") }.toSet() + caller)
+                .apply()
+        }
+
+        fun isTrustedCaller(context: Context, packageName: String): Boolean {
+            val caller = callerIdentity(context, packageName) ?: return false
+            return caller in getTrustedCallers(context)
+        }
+
+        /**
+         * @return The package name followed by the SHA-256 digests of its signing certificates,
+         * or null if the package is unknown.
+         */
+        private fun callerIdentity(context: Context, packageName: String): String? {
+            val signatures = try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    val signingInfo = context.packageManager.getPackageInfo(
+                        packageName, PackageManager.GET_SIGNING_CERTIFICATES
+                    ).signingInfo ?: return null
+                    if (signingInfo.hasMultipleSigners())
+                        signingInfo.apkContentsSigners
+                    else
+                        signingInfo.signingCertificateHistory
+                } else {
+                    @Suppress("DEPRECATION")
+                    context.packageManager.getPackageInfo(
+                        packageName, PackageManager.GET_SIGNATURES
+                    ).signatures
+                }
+            } catch (e: PackageManager.NameNotFoundException) {
+                null
+            }
+            if (signatures.isNullOrEmpty())
+                return null
+            val digest = MessageDigest.getInstance("SHA-256")
+            val digests = signatures.map { signature ->
+                digest.digest(signature.toByteArray()).joinToString("") { "%02x".format(it) }
+            }.sorted()
+            return packageName + ":" + digests.joinToString(",")
+        }
+
+        private fun getTrustedCallers(context: Context): Set<String> {
+            val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+            return preferences.getStringSet(TRUSTED_CALLERS_PREF, null) ?: emptySet()
+        }
+    }
+}
@@ -9,6 +9,7 @@ import android.content.Intent
 import android.content.IntentFilter
 import android.content.pm.PackageManager
 import android.hardware.usb.UsbDevice
+import android.hardware.usb.UsbDeviceConnection
 import android.hardware.usb.UsbManager
 import android.nfc.NfcAdapter
 import android.nfc.Tag
@@ -17,8 +18,12 @@ import android.os.Build
 import android.os.Bundle
 import android.os.Parcelable
 import android.util.Log
+import androidx.tracing.Trace
+import androidx.tracing.trace
 import com.kunzisoft.hardware.yubikey.challenge.VirtualYubiKey
 import com.kunzisoft.hardware.yubikey.challenge.NfcYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.UsbCcidTransport
+import com.kunzisoft.hardware.yubikey.challenge.UsbCcidYubiKey
 import com.kunzisoft.hardware.yubikey.challenge.UsbYubiKey
 import com.kunzisoft.hardware.yubikey.challenge.YubiKey
 
@@ -44,6 +49,10 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
 
     private var requestingUsbPermission: Boolean = false
 
+    private var usbLease: YubiKeyDeviceRegistry.Lease? = null
+
+    private var waitingForKey: Boolean = false
+
     private val connectionMethods = getSupportedConnectionMethods(activity)
 
     /**
@@ -85,6 +94,7 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
      */
     init {
         activity.application.registerActivityLifecycleCallbacks(this)
+        registerDeviceTypes(activity)
     }
 
     override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {}
@@ -111,6 +121,7 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
 
     private fun initVirtualKeyConnection(activity: Activity) {
         // Debug by injecting a known byte array
+        onFirstKeyEvent()
         connectReceiver?.onYubiKeyConnected(VirtualYubiKey(activity))
     }
 
@@ -118,8 +129,7 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
         activity.registerReceiver(this, IntentFilter(ACTION_USB_PERMISSION_REQUEST))
         activity.registerReceiver(this, IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED))
 
-        val usbManager = activity.getSystemService(Context.USB_SERVICE) as UsbManager
-        for (device in usbManager.deviceList.values) {
+        for (device in YubiKeyDeviceRegistry.getDevices(activity)) {
             handleUsbDevice(activity, device)
         }
     }
@@ -130,18 +140,20 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
         // Workaround for some broken Nfc firmware implementations that poll the card too fast
         options.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, 250)
 
-        NfcAdapter.getDefaultAdapter(activity).enableReaderMode(
-            activity,
-            this,
-            NfcAdapter.FLAG_READER_NFC_A or
-                    NfcAdapter.FLAG_READER_NFC_B or
-                    NfcAdapter.FLAG_READER_NFC_F or
-                    NfcAdapter.FLAG_READER_NFC_V or
-                    NfcAdapter.FLAG_READER_NFC_BARCODE or
-                    NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK or
-                    NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS,
-            options
-        )
+        trace("ConnectionManager.enableReaderMode") {
+            NfcAdapter.getDefaultAdapter(activity).enableReaderMode(
+                activity,
+                this,
+                NfcAdapter.FLAG_READER_NFC_A or
+                        NfcAdapter.FLAG_READER_NFC_B or
+                        NfcAdapter.FLAG_READER_NFC_F or
+                        NfcAdapter.FLAG_READER_NFC_V or
+                        NfcAdapter.FLAG_READER_NFC_BARCODE or
+                        NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK or
+                        NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS,
+                options
+            )
+        }
     }
 
     /**
@@ -151,6 +163,18 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
      */
     fun waitForYubiKey(receiver: YubiKeyConnectReceiver?) {
         connectReceiver = receiver
+        if (receiver != null && !waitingForKey) {
+            // Spans the time until a key shows up, which includes the user plugging or tapping it
+            waitingForKey = true
+            Trace.beginAsyncSection(TRACE_WAIT_FOR_KEY, System.identityHashCode(this))
+        }
+    }
+
+    private fun onFirstKeyEvent() {
+        if (waitingForKey) {
+            waitingForKey = false
+            Trace.endAsyncSection(TRACE_WAIT_FOR_KEY, System.identityHashCode(this))
+        }
     }
 
     /**
@@ -177,16 +201,14 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
     }
 
     private fun isYubiKeyPlugged(context: Context): Boolean {
-        val usbManager = context.getSystemService(Context.USB_SERVICE) as UsbManager
-        for (device in usbManager.deviceList.values) {
-            if (UsbYubiKey.Type.isDeviceKnown(device)) return true
-        }
-        return false
+        return YubiKeyDeviceRegistry.isYubiKeyPlugged(context)
     }
 
     override fun onReceive(context: Context, intent: Intent) {
         when (intent.action) {
             ACTION_USB_PERMISSION_REQUEST -> {
+                if (requestingUsbPermission)
+                    Trace.endAsyncSection(TRACE_USB_PERMISSION, System.identityHashCode(this))
                 requestingUsbPermission = false
                 // Do not keep asking for permission to access a YubiKey that was unplugged already
                 if (isYubiKeyPlugged(context)) {
@@ -211,6 +233,7 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
                 (intent.getParcelableExtra<Parcelable>(UsbManager.EXTRA_DEVICE) as? UsbDevice)
                     ?.let { device ->
                         if (UsbYubiKey.Type.isDeviceKnown(device)) {
+                            closeUsbLease()
                             context.unregisterReceiver(this)
                             unplugReceiver?.onYubiKeyUnplugged()
                             unplugReceiver = null
@@ -227,14 +250,19 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
             )
 
         activity.runOnUiThread {
-            connectReceiver?.onYubiKeyConnected(NfcYubiKey(isoDep))
+            onFirstKeyEvent()
+            val yubiKey = NfcYubiKey(isoDep)
+            DiagnosticsRecorder.attach(activity, yubiKey, "NFC")
+            connectReceiver?.onYubiKeyConnected(yubiKey)
             connectReceiver = null
         }
     }
 
     override fun onActivityPaused(activity: Activity) {
         if (connectReceiver != null && connectionMethods.isNfcSupported) {
-            NfcAdapter.getDefaultAdapter(activity).disableReaderMode(activity)
+            trace("ConnectionManager.disableReaderMode") {
+                NfcAdapter.getDefaultAdapter(activity).disableReaderMode(activity)
+            }
         }
     }
 
@@ -255,19 +283,40 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
             context.unregisterReceiver(this)
             if (connectionMethods.isNfcSupported) {
                 try {
-                    NfcAdapter.getDefaultAdapter(context).disableReaderMode(context as Activity)
+                    trace("ConnectionManager.disableReaderMode") {
+                        NfcAdapter.getDefaultAdapter(context).disableReaderMode(context as Activity)
+                    }
                 } catch (e: Exception) {
                     Log.e("ConnectionManager", "Unable to disable NFC reader mode.", e)
                 }
             }
-            connectReceiver!!.onYubiKeyConnected(UsbYubiKey(device, usbManager.openDevice(device)))
+            onFirstKeyEvent()
+            closeUsbLease()
+            val lease = YubiKeyDeviceRegistry.acquire(context, device)
+            if (lease == null) {
+                Log.e("ConnectionManager", "Unable to open the USB device.")
+                return
+            }
+            usbLease = lease
+            connectReceiver!!.onYubiKeyConnected(lease.yubiKey)
             connectReceiver = null
         } else if (!requestingUsbPermission) {
             requestingUsbPermission = true
+            // Spans the permission dialog, until the answer of the user is received
+            Trace.beginAsyncSection(TRACE_USB_PERMISSION, System.identityHashCode(this))
             requestPermission(context, device)
         }
     }
 
+    /**
+     * Gives the connection back to the [YubiKeyDeviceRegistry], which keeps it open for a while in
+     * case another request follows.
+     */
+    private fun closeUsbLease() {
+        usbLease?.close()
+        usbLease = null
+    }
+
     private fun requestPermission(context: Context, device: UsbDevice) {
         val usbManager = context.getSystemService(Context.USB_SERVICE) as UsbManager
 
@@ -317,11 +366,52 @@ internal class ConnectionManager(private val activity: Activity) : BroadcastRece
     override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle) {}
 
     override fun onActivityDestroyed(activity: Activity) {
+        closeUsbLease()
         activity.application.unregisterActivityLifecycleCallbacks(this)
     }
 
     companion object {
         private const val ACTION_USB_PERMISSION_REQUEST =
             "android.yubikey.intent.action.USB_PERMISSION_REQUEST"
+
+        private const val TRACE_WAIT_FOR_KEY = "ConnectionManager.waitForKey"
+        private const val TRACE_USB_PERMISSION = "ConnectionManager.usbPermission"
+
+        @Volatile
+        private var deviceTypesRegistered = false
+
+        /**
+         * Creates the driver of a YubiKey plugged in over USB.
+         *
+         * @param connection Connection opened to the device, with the permission granted.
+         */
+        fun createUsbYubiKey(context: Context, device: UsbDevice, connection: UsbDeviceConnection): YubiKey {
+            // Prefer the CCID interface, one bulk exchange per APDU is much faster than OTP HID
+            val yubiKey = if (UsbCcidTransport.hasCcidInterface(device))
+                UsbCcidYubiKey(device, connection)
+            else
+                UsbYubiKey(device, connection)
+            DiagnosticsRecorder.attach(context, yubiKey,
+                if (yubiKey is UsbCcidYubiKey) "USB CCID" else "USB OTP")
+            return yubiKey
+        }
+
+        /**
+         * Adds the devices listed in the usb_device_types resource to the known USB devices, once
+         * per process.
+         */
+        fun registerDeviceTypes(context: Context) {
+            if (deviceTypesRegistered)
+                return
+            deviceTypesRegistered = true
+            val parser = context.resources.getXml(R.xml.usb_device_types)
+            try {
+                UsbYubiKey.Type.registerDeviceTypes(parser)
+            } catch (e: Exception) {
+                Log.e("ConnectionManager", "Unable to register the additional USB device types.", e)
+            } finally {
+                parser.close()
+            }
+        }
     }
 }
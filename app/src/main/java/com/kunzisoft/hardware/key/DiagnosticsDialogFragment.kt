@@ -0,0 +1,33 @@
+package com.kunzisoft.hardware.key
+
+import android.app.Dialog
+import android.os.Bundle
+import androidx.appcompat.app.AlertDialog
+import androidx.fragment.app.DialogFragment
+import androidx.fragment.app.setFragmentResult
+
+/**
+ * Dialog that shows the timing histograms recorded by [DiagnosticsRecorder]. The export is
+ * requested from the fragment hosting the dialog with [REQUEST_EXPORT], as the dialog is dismissed
+ * before the user has chosen the file.
+ */
+class DiagnosticsDialogFragment : DialogFragment() {
+
+    override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
+        return AlertDialog.Builder(requireActivity())
+            .setTitle(R.string.diagnostics_report)
+            .setMessage(DiagnosticsRecorder.report())
+            .setPositiveButton(R.string.diagnostics_export) { _, _ ->
+                setFragmentResult(REQUEST_EXPORT, Bundle())
+            }
+            .setNeutralButton(R.string.diagnostics_reset) { _, _ ->
+                DiagnosticsRecorder.reset()
+            }
+            .setNegativeButton(android.R.string.cancel, null)
+            .create()
+    }
+
+    companion object {
+        const val REQUEST_EXPORT = "diagnostics_export"
+    }
+}
@@ -0,0 +1,171 @@
+package com.kunzisoft.hardware.key
+
+import android.content.Context
+import android.content.SharedPreferences
+import androidx.preference.PreferenceManager
+import com.kunzisoft.hardware.yubikey.challenge.SerializedYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.TransactionListener
+import com.kunzisoft.hardware.yubikey.challenge.TransactionMetrics
+import com.kunzisoft.hardware.yubikey.challenge.YubiKey
+import java.util.Locale
+
+/**
+ * Aggregates the [TransactionMetrics] of the YubiKey drivers into histograms, one set per
+ * connection method, so that the diagnostics screen can show where the time of a request goes.
+ * The histograms live as long as the process.
+ */
+internal object DiagnosticsRecorder {
+
+    private val statistics = LinkedHashMap<String, ConnectionStatistics>()
+
+    /**
+     * Follows the preference, read by the listeners on the threads of the drivers.
+     */
+    @Volatile
+    private var enabled = false
+
+    // Kept here, the preferences only hold a weak reference to their listeners
+    private var preferenceListener: SharedPreferences.OnSharedPreferenceChangeListener? = null
+
+    /**
+     * Sets a listener on a YubiKey that records its transactions while the user enables
+     * diagnostics. The drivers are cached, so the listener stays attached and checks the
+     * preference on each transaction: swapping it would race with a running request.
+     *
+     * @param connection Name of the connection method the metrics are aggregated under.
+     */
+    fun attach(context: Context, yubiKey: YubiKey, connection: String) {
+        registerPreferenceListener(context.applicationContext)
+        yubiKey.setTransactionListener(listener(connection))
+    }
+
+    @Synchronized
+    private fun registerPreferenceListener(context: Context) {
+        if (preferenceListener != null)
+            return
+        val key = context.getString(R.string.diagnostics_pref)
+        val listener = SharedPreferences.OnSharedPreferenceChangeListener { _, changedKey ->
+            if (changedKey == key)
+                enabled = isEnabled(context)
+        }
+        preferenceListener = listener
+        PreferenceManager.getDefaultSharedPreferences(context)
+            .registerOnSharedPreferenceChangeListener(listener)
+        enabled = isEnabled(context)
+    }
+
+    fun isEnabled(context: Context): Boolean {
+        val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+        return preferences.getBoolean(
+            context.getString(R.string.diagnostics_pref),
+            context.resources.getBoolean(R.bool.diagnostics_default)
+        )
+    }
+
+    private fun listener(connection: String): TransactionListener {
+        return TransactionListener { metrics ->
+            if (!enabled)
+                return@TransactionListener
+            synchronized(this) {
+                statistics.getOrPut(connection) { ConnectionStatistics() }.record(metrics)
+            }
+        }
+    }
+
+    @Synchronized
+    fun reset() {
+        statistics.clear()
+        SerializedYubiKey.resetSavedTransactionCount()
+        ResponseCacheManager.resetCounts()
+    }
+
+    /**
+     * Formats all the histograms as plain text, durations in milliseconds.
+     */
+    @Synchronized
+    fun report(): String {
+        val report = StringBuilder()
+        if (statistics.isEmpty()) {
+            report.append("No transaction recorded.\n")
+        }
+        for ((connection, connectionStatistics) in statistics) {
+            connectionStatistics.appendTo(report, connection)
+        }
+        // Duplicate challenges answered by the transaction of another caller
+        report.append(String.format(Locale.ROOT,
+            "coalesced requests %d\n", SerializedYubiKey.getSavedTransactionCount()))
+        report.append(String.format(Locale.ROOT,
+            "response cache hits %d, misses %d\n",
+            ResponseCacheManager.getHitCount(), ResponseCacheManager.getMissCount()))
+        return report.toString()
+    }
+
+    private class ConnectionStatistics {
+        private val total = LatencyHistogram()
+        private val phaseDurations = Array(PHASES.size) { LatencyHistogram() }
+        private val phaseCounts = Array(PHASES.size) { LatencyHistogram() }
+        private val errors = LongArray(ERRORS.size)
+        private var failures = 0L
+        private var bytesSent = 0L
+        private var bytesReceived = 0L
+
+        fun record(metrics: TransactionMetrics) {
+            total.record(metrics.totalDuration / NANOS_PER_MICRO)
+            for (phase in PHASES) {
+                val count = metrics.getCount(phase)
+                if (count > 0) {
+                    phaseDurations[phase.ordinal].record(metrics.getDuration(phase) / NANOS_PER_MICRO)
+                    phaseCounts[phase.ordinal].record(count.toLong())
+                }
+            }
+            for (error in ERRORS) {
+                errors[error.ordinal] += metrics.getErrorCount(error).toLong()
+            }
+            if (!metrics.isSuccess)
+                failures++
+            bytesSent += metrics.bytesSent
+            bytesReceived += metrics.bytesReceived
+        }
+
+        fun appendTo(report: StringBuilder, connection: String) {
+            report.append("== ").append(connection).append(" ==\n")
+            report.append(String.format(Locale.ROOT,
+                "transactions %d, failed %d, bytes sent %d, received %d\n",
+                total.count, failures, bytesSent, bytesReceived))
+            appendDurations(report, "total", total)
+            for (phase in PHASES) {
+                val durations = phaseDurations[phase.ordinal]
+                if (durations.count == 0L)
+                    continue
+                appendDurations(report, phase.name.lowercase(Locale.ROOT), durations)
+                val counts = phaseCounts[phase.ordinal]
+                report.append(String.format(Locale.ROOT,
+                    "  %-16s count mean %d p95 %d max %d\n",
+                    "", counts.mean, counts.percentile(95.0), counts.max))
+            }
+            for (error in ERRORS) {
+                if (errors[error.ordinal] > 0) {
+                    report.append(String.format(Locale.ROOT,
+                        "  error %-10s %d\n", error.name.lowercase(Locale.ROOT), errors[error.ordinal]))
+                }
+            }
+            report.append('\n')
+        }
+
+        private fun appendDurations(report: StringBuilder, name: String, histogram: LatencyHistogram) {
+            report.append(String.format(Locale.ROOT,
+                "  %-16s n %d mean %.1f p50 %.1f p95 %.1f p99 %.1f max %.1f ms\n",
+                name, histogram.count,
+                histogram.mean / MICROS_PER_MILLI,
+                histogram.percentile(50.0) / MICROS_PER_MILLI,
+                histogram.percentile(95.0) / MICROS_PER_MILLI,
+                histogram.percentile(99.0) / MICROS_PER_MILLI,
+                histogram.max / MICROS_PER_MILLI))
+        }
+    }
+
+    private val PHASES = TransactionMetrics.Phase.values()
+    private val ERRORS = TransactionMetrics.Error.values()
+    private const val NANOS_PER_MICRO = 1000L
+    private const val MICROS_PER_MILLI = 1000.0
+}
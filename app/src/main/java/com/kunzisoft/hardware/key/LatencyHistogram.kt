@@ -0,0 +1,61 @@
+package com.kunzisoft.hardware.key
+
+/**
+ * Histogram with logarithmic buckets: bucket `i` counts the values in `[2^i, 2^(i+1))`, bucket 0
+ * also counts 0. Recording costs a few operations and no allocation.
+ */
+internal class LatencyHistogram {
+    private val buckets = LongArray(BUCKET_COUNT)
+
+    var count = 0L
+        private set
+    var sum = 0L
+        private set
+    var max = 0L
+        private set
+
+    fun record(value: Long) {
+        val clamped = value.coerceAtLeast(0)
+        buckets[bucketOf(clamped)]++
+        count++
+        sum += clamped
+        if (clamped > max)
+            max = clamped
+    }
+
+    val mean: Long
+        get() = if (count == 0L) 0 else sum / count
+
+    /**
+     * Estimates a percentile by the upper bound of the bucket that holds it.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    fun percentile(percentile: Double): Long {
+        if (count == 0L)
+            return 0
+        val rank = Math.ceil(count * percentile / 100).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (i in buckets.indices) {
+            seen += buckets[i]
+            if (seen >= rank)
+                return ((1L shl (i + 1)) - 1).coerceAtMost(max)
+        }
+        return max
+    }
+
+    fun reset() {
+        buckets.fill(0)
+        count = 0
+        sum = 0
+        max = 0
+    }
+
+    companion object {
+        private const val BUCKET_COUNT = 63
+
+        private fun bucketOf(value: Long): Int {
+            return if (value == 0L) 0 else 63 - java.lang.Long.numberOfLeadingZeros(value)
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.kunzisoft.hardware.key
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.hardware.usb.UsbDevice
+import android.os.Handler
+import android.os.Looper
+import androidx.preference.PreferenceManager
+import com.kunzisoft.hardware.yubikey.Slot
+import com.kunzisoft.hardware.yubikey.challenge.CachingYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.ResponseCache
+import com.kunzisoft.hardware.yubikey.challenge.YubiKey
+
+/**
+ * Holds the [ResponseCache] of the process, if the user enabled it. Only the apps trusted by
+ * [ChallengeResponseService] get cached responses, and only the ones they got themselves. The
+ * cache is wiped when the screen is turned off, when a YubiKey is unplugged and when its entries
+ * expire.
+ */
+internal object ResponseCacheManager {
+
+    /**
+     * Number of responses kept, enough for a few databases unlocked in turn.
+     */
+    private const val MAX_ENTRIES = 16
+
+    private var cache: ResponseCache? = null
+    private var initialized = false
+    private var purgeScheduled = false
+    private var hits = 0L
+    private var misses = 0L
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val purge = Runnable { purgeExpired() }
+
+    private val screenOffReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            clear()
+        }
+    }
+
+    private val deviceListener = object : YubiKeyDeviceRegistry.DeviceListener {
+        override fun onDeviceAttached(device: UsbDevice) {}
+
+        override fun onDeviceDetached(device: UsbDevice) {
+            clear()
+        }
+    }
+
+    fun isEnabled(context: Context): Boolean {
+        val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+        return preferences.getBoolean(
+            context.getString(R.string.response_cache_pref),
+            context.resources.getBoolean(R.bool.response_cache_default)
+        )
+    }
+
+    private fun getTimeToLive(context: Context): Long {
+        val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+        return preferences.getString(
+            context.getString(R.string.response_cache_ttl_pref),
+            context.getString(R.string.response_cache_ttl_default)
+        )?.toLongOrNull() ?: context.getString(R.string.response_cache_ttl_default).toLong()
+    }
+
+    /**
+     * Puts the cache in front of a YubiKey, if the user enabled it and the caller is trusted.
+     *
+     * @param callerPackage Package of the app asking for the response, null if unknown.
+     * @return The YubiKey to send the challenge to.
+     */
+    @Synchronized
+    fun wrap(context: Context, yubiKey: YubiKey, callerPackage: String?): YubiKey {
+        if (!isEnabled(context)) {
+            drop()
+            return yubiKey
+        }
+        if (callerPackage == null || !ChallengeResponseService.isTrustedCaller(context, callerPackage))
+            return yubiKey
+        ensureInitialized(context)
+        val timeToLive = getTimeToLive(context)
+        val current = cache?.takeIf { it.timeToLive == timeToLive }
+            ?: ResponseCache(timeToLive, MAX_ENTRIES).also {
+                drop()
+                cache = it
+            }
+        return object : CachingYubiKey(yubiKey, current, callerPackage) {
+            override fun challengeResponse(slot: Slot, challenge: ByteArray): ByteArray {
+                return super.challengeResponse(slot, challenge).also { schedulePurge(current) }
+            }
+
+            override fun challengeResponseNonBlocking(slot: Slot, challenge: ByteArray): ByteArray {
+                return super.challengeResponseNonBlocking(slot, challenge).also { schedulePurge(current) }
+            }
+        }
+    }
+
+    private fun ensureInitialized(context: Context) {
+        if (initialized)
+            return
+        initialized = true
+        // The screen-off broadcast is only delivered to receivers registered at runtime
+        context.applicationContext.registerReceiver(
+            screenOffReceiver,
+            IntentFilter(Intent.ACTION_SCREEN_OFF)
+        )
+        YubiKeyDeviceRegistry.addListener(context, deviceListener)
+    }
+
+    @Synchronized
+    private fun schedulePurge(scheduled: ResponseCache) {
+        if (purgeScheduled || scheduled !== cache)
+            return
+        purgeScheduled = true
+        handler.postDelayed(purge, scheduled.timeToLive)
+    }
+
+    @Synchronized
+    private fun purgeExpired() {
+        purgeScheduled = false
+        val current = cache ?: return
+        // The entries left were stored later and expire within one more time to live
+        if (current.purgeExpired() > 0)
+            schedulePurge(current)
+    }
+
+    /**
+     * Wipes all the cached responses.
+     */
+    @Synchronized
+    fun clear() {
+        cache?.clear()
+    }
+
+    /**
+     * Wipes and forgets the cache, e.g. when it is disabled or its time to live changes.
+     */
+    @Synchronized
+    fun drop() {
+        val current = cache ?: return
+        current.clear()
+        // The counters outlive a cache replaced by another one
+        hits += current.hitCount
+        misses += current.missCount
+        cache = null
+        handler.removeCallbacks(purge)
+        purgeScheduled = false
+    }
+
+    @Synchronized
+    fun getHitCount(): Long {
+        return hits + (cache?.hitCount ?: 0L)
+    }
+
+    @Synchronized
+    fun getMissCount(): Long {
+        return misses + (cache?.missCount ?: 0L)
+    }
+
+    @Synchronized
+    fun resetCounts() {
+        hits = 0L
+        misses = 0L
+        cache?.resetCounts()
+    }
+}
@@ -0,0 +1,232 @@
+package com.kunzisoft.hardware.key
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.hardware.usb.UsbDevice
+import android.hardware.usb.UsbDeviceConnection
+import android.hardware.usb.UsbManager
+import android.os.Handler
+import android.os.Looper
+import android.os.Parcelable
+import android.util.Log
+import androidx.tracing.trace
+import com.kunzisoft.hardware.yubikey.YubiKeyException
+import com.kunzisoft.hardware.yubikey.challenge.SerializedYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.UsbCcidYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.UsbYubiKey
+import com.kunzisoft.hardware.yubikey.challenge.YubiKey
+
+/**
+ * Keeps track of the YubiKeys plugged in over USB for the whole process. The devices are
+ * enumerated once, then updated from the attach and detach broadcasts.
+ *
+ * Connections are opened on demand and shared: each user holds a [Lease], and a connection is
+ * kept open for [IDLE_TIMEOUT_MS] after its last lease is closed, so that consecutive requests,
+ * retries and other screens reuse the same connection and driver instance. The drivers handed out
+ * are [SerializedYubiKey]s, so that leases may be used from several threads at once.
+ */
+internal object YubiKeyDeviceRegistry {
+
+    private const val TAG = "YubiKeyDeviceRegistry"
+
+    /**
+     * Time a connection stays open without any lease.
+     */
+    private const val IDLE_TIMEOUT_MS = 30000L
+
+    private class DeviceEntry(val device: UsbDevice) {
+        var connection: UsbDeviceConnection? = null
+        var yubiKey: YubiKey? = null
+        var session: AutoCloseable? = null
+        var leases = 0
+    }
+
+    /**
+     * Listener notified when a known YubiKey is plugged in or unplugged, on the main thread.
+     */
+    interface DeviceListener {
+        fun onDeviceAttached(device: UsbDevice)
+
+        fun onDeviceDetached(device: UsbDevice)
+    }
+
+    /**
+     * Shared use of the driver of a plugged in YubiKey. Closing a lease more than once has no
+     * effect.
+     */
+    class Lease internal constructor(val yubiKey: YubiKey, private val onClose: () -> Unit) : AutoCloseable {
+        private var closed = false
+
+        override fun close() {
+            synchronized(this) {
+                if (closed)
+                    return
+                closed = true
+            }
+            onClose()
+        }
+    }
+
+    // By device name, in the order of the attachment
+    private val devices = LinkedHashMap<String, DeviceEntry>()
+    private val listeners = LinkedHashSet<DeviceListener>()
+    private var initialized = false
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val idleTimeout = Runnable { closeIdleConnections() }
+
+    private val receiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            val device = intent.getParcelableExtra<Parcelable>(UsbManager.EXTRA_DEVICE) as? UsbDevice
+                ?: return
+            if (!UsbYubiKey.Type.isDeviceKnown(device))
+                return
+            when (intent.action) {
+                UsbManager.ACTION_USB_DEVICE_ATTACHED -> onAttached(device)
+                UsbManager.ACTION_USB_DEVICE_DETACHED -> onDetached(device)
+            }
+        }
+    }
+
+    @Synchronized
+    private fun ensureInitialized(context: Context) {
+        if (initialized)
+            return
+        initialized = true
+        val applicationContext = context.applicationContext
+        ConnectionManager.registerDeviceTypes(applicationContext)
+        applicationContext.registerReceiver(receiver, IntentFilter().apply {
+            addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED)
+            addAction(UsbManager.ACTION_USB_DEVICE_DETACHED)
+        })
+        trace("YubiKeyDeviceRegistry.enumerateDevices") {
+            val usbManager = applicationContext.getSystemService(Context.USB_SERVICE) as UsbManager
+            for (device in usbManager.deviceList.values) {
+                if (UsbYubiKey.Type.isDeviceKnown(device))
+                    devices[device.deviceName] = DeviceEntry(device)
+            }
+        }
+    }
+
+    /**
+     * Gets the YubiKeys currently plugged in, without enumerating the USB devices again.
+     */
+    @Synchronized
+    fun getDevices(context: Context): List<UsbDevice> {
+        ensureInitialized(context)
+        return devices.values.map { it.device }
+    }
+
+    fun isYubiKeyPlugged(context: Context): Boolean {
+        return getDevices(context).isNotEmpty()
+    }
+
+    @Synchronized
+    fun addListener(context: Context, listener: DeviceListener) {
+        ensureInitialized(context)
+        listeners.add(listener)
+    }
+
+    @Synchronized
+    fun removeListener(listener: DeviceListener) {
+        listeners.remove(listener)
+    }
+
+    /**
+     * Gets the driver of a plugged in YubiKey, opening a connection if there is none yet. The USB
+     * permission must be granted already.
+     *
+     * @return A lease on the driver, to be closed by the caller, or null if the device could not
+     * be opened.
+     */
+    @Synchronized
+    fun acquire(context: Context, device: UsbDevice): Lease? {
+        ensureInitialized(context)
+        val entry = devices.getOrPut(device.deviceName) { DeviceEntry(device) }
+        val yubiKey = entry.yubiKey ?: open(context, entry) ?: return null
+        entry.leases++
+        return Lease(yubiKey) { release(entry) }
+    }
+
+    private fun open(context: Context, entry: DeviceEntry): YubiKey? {
+        val usbManager = context.getSystemService(Context.USB_SERVICE) as UsbManager
+        val connection = usbManager.openDevice(entry.device) ?: return null
+        val yubiKey = ConnectionManager.createUsbYubiKey(context, entry.device, connection)
+        // Keep the interface claimed as long as the connection is open
+        try {
+            entry.session = when (yubiKey) {
+                is UsbYubiKey -> yubiKey.openSession()
+                is UsbCcidYubiKey -> yubiKey.openSession()
+                else -> null
+            }
+        } catch (e: YubiKeyException) {
+            // Each request will claim the interface by itself
+            Log.e(TAG, "Unable to open a USB session.", e)
+        }
+        entry.connection = connection
+        // Leases may be used from several threads, the requests must not interleave on the key
+        return SerializedYubiKey(yubiKey, "YubiKey ${entry.device.deviceName}").also {
+            entry.yubiKey = it
+        }
+    }
+
+    @Synchronized
+    private fun release(entry: DeviceEntry) {
+        if (--entry.leases == 0) {
+            handler.removeCallbacks(idleTimeout)
+            handler.postDelayed(idleTimeout, IDLE_TIMEOUT_MS)
+        }
+    }
+
+    @Synchronized
+    private fun closeIdleConnections() {
+        for (entry in devices.values) {
+            if (entry.leases == 0)
+                close(entry)
+        }
+    }
+
+    private fun close(entry: DeviceEntry) {
+        val session = entry.session
+        val connection = entry.connection
+        val yubiKey = entry.yubiKey as? SerializedYubiKey
+        entry.session = null
+        entry.connection = null
+        entry.yubiKey = null
+        val closeConnection = Runnable {
+            try {
+                session?.close()
+            } catch (e: Exception) {
+                Log.e(TAG, "Unable to close the USB session.", e)
+            }
+            connection?.close()
+        }
+        // A request may still be running, the connection is closed once the driver is done with it
+        if (yubiKey != null)
+            yubiKey.shutdown(closeConnection)
+        else
+            closeConnection.run()
+    }
+
+    private fun onAttached(device: UsbDevice) {
+        val toNotify = synchronized(this) {
+            if (devices.containsKey(device.deviceName))
+                return
+            devices[device.deviceName] = DeviceEntry(device)
+            listeners.toList()
+        }
+        toNotify.forEach { it.onDeviceAttached(device) }
+    }
+
+    private fun onDetached(device: UsbDevice) {
+        val toNotify = synchronized(this) {
+            val entry = devices.remove(device.deviceName) ?: return
+            // The leases still held fail on their next request, the device is gone anyway
+            close(entry)
+            listeners.toList()
+        }
+        toNotify.forEach { it.onDeviceDetached(device) }
+    }
+}
@@ -1,13 +1,35 @@
 package com.kunzisoft.hardware.key
 
+import android.net.Uri
 import android.os.Bundle
+import android.util.Log
+import android.widget.Toast
+import androidx.activity.result.contract.ActivityResultContracts
 import androidx.preference.ListPreference
+import androidx.preference.Preference
 import androidx.preference.PreferenceFragmentCompat
 import androidx.preference.SwitchPreferenceCompat
 import com.kunzisoft.hardware.yubikey.Slot
+import java.io.IOException
 
 class YubikeySettingsFragment : PreferenceFragmentCompat() {
 
+    // Registered here rather than in the dialog, which is gone when the file is chosen
+    private val exportLauncher = registerForActivityResult(
+        ActivityResultContracts.CreateDocument("text/plain")
+    ) { uri ->
+        uri?.let { exportDiagnostics(it) }
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        childFragmentManager.setFragmentResultListener(
+            DiagnosticsDialogFragment.REQUEST_EXPORT, this
+        ) { _, _ ->
+            exportLauncher.launch(EXPORT_FILE_NAME)
+        }
+    }
+
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
         setPreferencesFromResource(R.xml.yubikey_preferences, rootKey)
 
@@ -25,6 +47,14 @@ class YubikeySettingsFragment : PreferenceFragmentCompat() {
             }
         }
 
+        findPreference<SwitchPreferenceCompat>(getString(R.string.response_cache_pref))
+            ?.setOnPreferenceChangeListener { _, newValue ->
+                // Forget the responses right away instead of on the next request
+                if (newValue == false)
+                    ResponseCacheManager.drop()
+                true
+            }
+
         findPreference<SwitchPreferenceCompat>(getString(R.string.virtual_key_pref))?.apply {
             setOnPreferenceClickListener {
                 this.isChecked = false
@@ -33,5 +63,29 @@ class YubikeySettingsFragment : PreferenceFragmentCompat() {
                 false
             }
         }
+
+        findPreference<Preference>(getString(R.string.diagnostics_report_pref))
+            ?.setOnPreferenceClickListener {
+                DiagnosticsDialogFragment()
+                    .show(childFragmentManager, "diagnosticsDialog")
+                true
+            }
+    }
+
+    private fun exportDiagnostics(uri: Uri) {
+        val context = context ?: return
+        try {
+            context.contentResolver.openOutputStream(uri)?.use {
+                it.write(DiagnosticsRecorder.report().toByteArray())
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to export the diagnostics", e)
+            Toast.makeText(context, R.string.diagnostics_export_error, Toast.LENGTH_SHORT).show()
+        }
+    }
+
+    companion object {
+        private const val TAG = "YubikeySettings"
+        private const val EXPORT_FILE_NAME = "key_driver_diagnostics.txt"
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,120 @@
+package com.kunzisoft.hardware.yubikey;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Table-driven CRC-16/X.25 (reflected polynomial 0x8408, initial value 0xffff) as used by YubiKeys
+ * to protect their frames. The checksum may be computed at once or updated chunk by chunk.
+ * <p>
+ * {@link #getValue()} returns the register without the final inversion of X.25, which is the form
+ * YubiKeys expect in written frames. Responses carry the inverted checksum, so running the CRC over
+ * a response including its checksum yields {@link #OK_RESIDUAL}.
+ */
+public final class Crc16 {
+	public static final char INITIAL_VALUE = 0xffff;
+	public static final char OK_RESIDUAL   = 0xf0b8;
+
+	private static final char   POLYNOMIAL = 0x8408;
+	private static final char[] TABLE      = new char[256];
+
+	static {
+		for (int i = 0; i < TABLE.length; i++) {
+			char crc = (char) i;
+
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0b1) == 1 ? (char) ((crc >> 1) ^ POLYNOMIAL) : (char) (crc >> 1);
+			}
+
+			TABLE[i] = crc;
+		}
+	}
+
+	private char crc = INITIAL_VALUE;
+
+	/**
+	 * Computes the checksum of a buffer in one go.
+	 *
+	 * @param buffer Data to checksum.
+	 * @param offset Position of the first byte.
+	 * @param length Number of bytes.
+	 * @return The CRC register after processing the bytes.
+	 */
+	public static char compute(@NonNull final byte[] buffer, final int offset, final int length) {
+		return update(INITIAL_VALUE, buffer, offset, length);
+	}
+
+	/**
+	 * Checks whether a buffer that ends with its own inverted checksum is intact.
+	 *
+	 * @param buffer Data followed by its inverted checksum.
+	 * @param offset Position of the first byte.
+	 * @param length Number of bytes including the checksum.
+	 * @return true, if the residual matches.
+	 */
+	public static boolean verify(@NonNull final byte[] buffer, final int offset, final int length) {
+		return compute(buffer, offset, length) == OK_RESIDUAL;
+	}
+
+	private static char update(char crc, final byte[] buffer, final int offset, final int length) {
+		final int end = offset + length;
+
+		for (int i = offset; i < end; i++) {
+			crc = (char) ((crc >>> 8) ^ TABLE[(crc ^ buffer[i]) & 0xff]);
+		}
+
+		return crc;
+	}
+
+	/**
+	 * Feeds a chunk of data into the checksum.
+	 *
+	 * @param buffer Buffer holding the chunk.
+	 * @param offset Position of the first byte of the chunk.
+	 * @param length Number of bytes in the chunk.
+	 * @return This instance.
+	 */
+	@NonNull
+	public Crc16 update(@NonNull final byte[] buffer, final int offset, final int length) {
+		this.crc = update(this.crc, buffer, offset, length);
+
+		return this;
+	}
+
+	/**
+	 * Feeds a single byte into the checksum.
+	 *
+	 * @param b The byte.
+	 * @return This instance.
+	 */
+	@NonNull
+	public Crc16 update(final byte b) {
+		this.crc = (char) ((this.crc >>> 8) ^ TABLE[(this.crc ^ b) & 0xff]);
+
+		return this;
+	}
+
+	/**
+	 * Gets the current CRC register.
+	 *
+	 * @return The checksum of all bytes fed since the last reset.
+	 */
+	public char getValue() {
+		return this.crc;
+	}
+
+	/**
+	 * Checks whether the bytes fed so far form an intact frame followed by its checksum.
+	 *
+	 * @return true, if the residual matches.
+	 */
+	public boolean isResidualOk() {
+		return this.crc == OK_RESIDUAL;
+	}
+
+	/**
+	 * Restarts the checksum so that the instance can be reused.
+	 */
+	public void reset() {
+		this.crc = INITIAL_VALUE;
+	}
+}
@@ -6,4 +6,74 @@ open class YubiKeyException : Exception {
     constructor() {}
     constructor(message: String?) : super(message) {}
     constructor(cause: Throwable?) : super(cause) {}
-}
\ No newline at end of file
+    constructor(message: String?, cause: Throwable?) : super(message, cause) {}
+
+    /**
+     * Whether the request may succeed if it is sent again once the YubiKey was reset, without
+     * the user having to do anything.
+     */
+    open val isRetryable: Boolean
+        get() = false
+}
+
+/**
+ * A response of the YubiKey failed its checksum, e.g. because a report was corrupted on the way.
+ */
+class YubiKeyCrcException(message: String?) : YubiKeyException(message) {
+    override val isRetryable: Boolean
+        get() = true
+}
+
+/**
+ * The YubiKey answered something the protocol does not expect at this point.
+ */
+class YubiKeyInvalidResponseException(message: String?) : YubiKeyException(message) {
+    override val isRetryable: Boolean
+        get() = true
+}
+
+/**
+ * A transfer to or from the YubiKey failed, e.g. a USB control transfer did not complete.
+ */
+class YubiKeyTransferException : YubiKeyException {
+    constructor(message: String?) : super(message)
+    constructor(message: String?, cause: Throwable?) : super(message, cause)
+
+    override val isRetryable: Boolean
+        get() = true
+}
+
+/**
+ * The YubiKey did not answer in time. Waiting for the key is worth retrying, the user not touching
+ * the key is not.
+ *
+ * @param isUserTimeout Whether the YubiKey gave up waiting for the user.
+ */
+class YubiKeyTimeoutException(message: String?, val isUserTimeout: Boolean) : YubiKeyException(message) {
+    override val isRetryable: Boolean
+        get() = !isUserTimeout
+}
+
+/**
+ * The YubiKey asked for a touch during a request that may not wait for the user, see
+ * [com.kunzisoft.hardware.yubikey.challenge.YubiKey.challengeResponseNonBlocking].
+ */
+class YubiKeyTouchRequiredException(message: String?) : YubiKeyException(message)
+
+/**
+ * The request was cancelled by interrupting the thread running it.
+ */
+class YubiKeyInterruptedException(message: String?) : YubiKeyException(message)
+
+/**
+ * The YubiKey rejected an APDU with an error status word.
+ *
+ * @param statusWord The status word (SW1 SW2) of the response.
+ */
+class YubiKeyStatusWordException(message: String?, val statusWord: Int) : YubiKeyException(message)
+
+/**
+ * The connection to the YubiKey was lost, e.g. the NFC tag left the field. The user has to present
+ * the key again, so the request is not retried on its own.
+ */
+class YubiKeyConnectionException(cause: Throwable?) : YubiKeyException(cause)
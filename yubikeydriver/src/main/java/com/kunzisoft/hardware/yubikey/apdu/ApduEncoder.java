@@ -0,0 +1,160 @@
+package com.kunzisoft.hardware.yubikey.apdu;
+
+import androidx.annotation.NonNull;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes command APDUs into caller-provided buffers, so that a command can be encoded on the hot
+ * path without allocating.
+ * <p>
+ * Short APDUs are encoded as CLA INS P1 P2 [Lc data] Le, extended APDUs as
+ * CLA INS P1 P2 00 [Lc1 Lc2 data] Le1 Le2. Lc is omitted for commands without data.
+ */
+public final class ApduEncoder {
+	/**
+	 * Bytes of a short APDU besides its data: header, Lc and Le.
+	 */
+	public static final int SHORT_OVERHEAD = 6;
+
+	/**
+	 * Bytes of an extended APDU besides its data: header, marker, Lc and Le.
+	 */
+	public static final int EXTENDED_OVERHEAD = 9;
+
+	/**
+	 * The most data a short APDU can carry.
+	 */
+	public static final int SHORT_MAX_DATA_LENGTH = 255;
+
+	/**
+	 * The most data an extended APDU can carry.
+	 */
+	public static final int EXTENDED_MAX_DATA_LENGTH = 65535;
+
+	private ApduEncoder() {
+	}
+
+	/**
+	 * Gets the length of the encoded form of a short APDU.
+	 *
+	 * @param dataLength Number of data bytes.
+	 * @return Length in bytes.
+	 */
+	public static int getEncodedLength(final int dataLength) {
+		return dataLength == 0 ? SHORT_OVERHEAD - 1 : SHORT_OVERHEAD + dataLength;
+	}
+
+	/**
+	 * Gets the length of the encoded form of an extended APDU.
+	 *
+	 * @param dataLength Number of data bytes.
+	 * @return Length in bytes.
+	 */
+	public static int getExtendedEncodedLength(final int dataLength) {
+		return dataLength == 0 ? EXTENDED_OVERHEAD - 2 : EXTENDED_OVERHEAD + dataLength;
+	}
+
+	/**
+	 * Checks whether an encoded APDU uses extended length fields.
+	 *
+	 * @param apdu An APDU encoded by this class.
+	 * @return true, if the APDU is extended.
+	 */
+	public static boolean isExtended(@NonNull final byte[] apdu) {
+		// A short APDU never has Lc = 0, so the marker byte cannot be mistaken for it
+		return apdu.length >= EXTENDED_OVERHEAD - 2 && apdu[4] == 0;
+	}
+
+	/**
+	 * Writes a short APDU at the position of the buffer and advances the position.
+	 *
+	 * @param out    Destination buffer.
+	 * @param cla    Class byte.
+	 * @param ins    Instruction byte.
+	 * @param p1     First parameter.
+	 * @param p2     Second parameter.
+	 * @param data   Buffer holding the data field.
+	 * @param offset Position of the data field in the buffer.
+	 * @param length Length of the data field.
+	 * @param le     Expected length of the response, 0 for 256.
+	 * @return Number of bytes written.
+	 * @throws BufferOverflowException if the APDU does not fit into the remaining space of the buffer.
+	 */
+	public static int encode(@NonNull final ByteBuffer out, final byte cla, final byte ins, final byte p1, final byte p2,
+							 @NonNull final byte[] data, final int offset, final int length, final byte le) {
+		return encodeShort(out, cla, ins, p1, p2, data, offset, length, le, true);
+	}
+
+	/**
+	 * Writes an extended APDU at the position of the buffer and advances the position.
+	 *
+	 * @param out    Destination buffer.
+	 * @param cla    Class byte.
+	 * @param ins    Instruction byte.
+	 * @param p1     First parameter.
+	 * @param p2     Second parameter.
+	 * @param data   Buffer holding the data field.
+	 * @param offset Position of the data field in the buffer.
+	 * @param length Length of the data field.
+	 * @param le     Expected length of the response, 0 for 65536.
+	 * @return Number of bytes written.
+	 * @throws BufferOverflowException if the APDU does not fit into the remaining space of the buffer.
+	 */
+	public static int encodeExtended(@NonNull final ByteBuffer out, final byte cla, final byte ins, final byte p1, final byte p2,
+									 @NonNull final byte[] data, final int offset, final int length, final int le) {
+		if (length > EXTENDED_MAX_DATA_LENGTH)
+			throw new IllegalArgumentException("Data of " + length + " bytes does not fit into an extended APDU");
+
+		final int encodedLength = getExtendedEncodedLength(length);
+
+		if (out.remaining() < encodedLength)
+			throw new BufferOverflowException();
+
+		out.put(cla)
+				.put(ins)
+				.put(p1)
+				.put(p2)
+				.put((byte) 0x00);
+
+		if (length > 0)
+			out.put((byte) (length >>> 8))
+					.put((byte) length)
+					.put(data, offset, length);
+
+		out.put((byte) (le >>> 8))
+				.put((byte) le);
+
+		return encodedLength;
+	}
+
+	/**
+	 * Writes a short APDU, without Le for the commands of a chain that precede the last one.
+	 */
+	static int encodeShort(@NonNull final ByteBuffer out, final byte cla, final byte ins, final byte p1, final byte p2,
+						   @NonNull final byte[] data, final int offset, final int length, final byte le,
+						   final boolean withLe) {
+		if (length > SHORT_MAX_DATA_LENGTH)
+			throw new IllegalArgumentException("Data of " + length + " bytes does not fit into a short APDU");
+
+		final int encodedLength = getEncodedLength(length) - (withLe ? 0 : 1);
+
+		if (out.remaining() < encodedLength)
+			throw new BufferOverflowException();
+
+		out.put(cla)
+				.put(ins)
+				.put(p1)
+				.put(p2);
+
+		if (length > 0)
+			out.put((byte) length)
+					.put(data, offset, length);
+
+		if (withLe)
+			out.put(le);
+
+		return encodedLength;
+	}
+}
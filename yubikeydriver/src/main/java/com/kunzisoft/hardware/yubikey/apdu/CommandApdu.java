@@ -1,31 +1,79 @@
 package com.kunzisoft.hardware.yubikey.apdu;
 
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
 /**
  * ISO 7816-4 5.3.1
  */
 public abstract class CommandApdu {
 	protected byte[] data;
 
+	/**
+	 * Encodes the command as a single APDU, extended if the data does not fit into a short one.
+	 *
+	 * @return The encoded command.
+	 */
 	public byte[] build() {
-		assert this.getParameters().length == 2;
+		final byte[] apdu = new byte[this.getEncodedLength()];
 
-		final byte[] apdu = new byte[6 + this.data.length];
-		apdu[0] = this.getCommandClass();
-		apdu[1] = this.getInstruction();
-		apdu[2] = this.getParameters()[0];
-		apdu[3] = this.getParameters()[1];
-		apdu[4] = (byte) this.data.length;
-		System.arraycopy(this.data, 0, apdu, 5, this.data.length);
-		apdu[apdu.length - 1] = this.getExpectedLength();
+		this.encode(ByteBuffer.wrap(apdu));
 
 		return apdu;
 	}
 
+	/**
+	 * Writes the command as a single APDU at the position of the buffer without allocating,
+	 * extended if the data does not fit into a short one.
+	 *
+	 * @param out Destination buffer, must have {@link #getEncodedLength()} bytes remaining.
+	 * @return Number of bytes written.
+	 */
+	public int encode(@NonNull final ByteBuffer out) {
+		if (this.isExtended())
+			return ApduEncoder.encodeExtended(out, this.getCommandClass(), this.getInstruction(), this.getP1(),
+											  this.getP2(), this.data, 0, this.data.length,
+											  this.getExpectedLength() & 0xff);
+
+		return ApduEncoder.encode(out, this.getCommandClass(), this.getInstruction(), this.getP1(), this.getP2(),
+								  this.data, 0, this.data.length, this.getExpectedLength());
+	}
+
+	/**
+	 * @return Length of the command encoded as a single APDU in bytes.
+	 */
+	public int getEncodedLength() {
+		return this.isExtended() ? ApduEncoder.getExtendedEncodedLength(this.data.length)
+								 : ApduEncoder.getEncodedLength(this.data.length);
+	}
+
+	/**
+	 * Plans how to send the command over a transport, as a short or an extended APDU or as a chain
+	 * of short APDUs.
+	 *
+	 * @param maxTransceiveLength The longest APDU the transport can send in a single exchange.
+	 * @param extendedSupported   Whether the transport accepts extended APDUs.
+	 * @return The chain of APDUs to send.
+	 */
+	@NonNull
+	public CommandChain chain(final int maxTransceiveLength, final boolean extendedSupported) {
+		return CommandChain.plan(this.getCommandClass(), this.getInstruction(), this.getP1(), this.getP2(), this.data,
+								 0, this.data.length, this.getExpectedLength() & 0xff, maxTransceiveLength,
+								 extendedSupported);
+	}
+
+	private boolean isExtended() {
+		return this.data.length > ApduEncoder.SHORT_MAX_DATA_LENGTH;
+	}
+
 	protected abstract byte getCommandClass();
 
 	protected abstract byte getInstruction();
 
-	protected abstract byte[] getParameters();
+	protected abstract byte getP1();
+
+	protected abstract byte getP2();
 
 	protected abstract byte getExpectedLength();
 
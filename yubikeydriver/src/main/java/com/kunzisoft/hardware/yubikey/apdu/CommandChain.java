@@ -0,0 +1,194 @@
+package com.kunzisoft.hardware.yubikey.apdu;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a command into the APDUs actually sent, according to what the transport can carry:
+ * <ol>
+ * <li>a single short APDU if the data fits into one,</li>
+ * <li>else a single extended APDU if the transport accepts them and it fits into one exchange,</li>
+ * <li>else a chain of short APDUs (ISO 7816-4 5.1.1.1), all but the last with the chaining bit of
+ * CLA set and without Le.</li>
+ * </ol>
+ * The APDUs are written one after the other into caller-provided buffers.
+ */
+public final class CommandChain {
+	private static final int CLA_CHAINING = 0x10;
+
+	private final byte    cla;
+	private final byte    ins;
+	private final byte    p1;
+	private final byte    p2;
+	private final byte[]  data;
+	private final int     offset;
+	private final int     length;
+	private final boolean extended;
+	private final int     chunkLength;
+	private       int     expectedLength;
+	private       int     position;
+	private       boolean started;
+
+	private CommandChain(final byte cla, final byte ins, final byte p1, final byte p2, final byte[] data, final int offset,
+						 final int length, final int expectedLength, final boolean extended, final int chunkLength) {
+		this.cla = cla;
+		this.ins = ins;
+		this.p1 = p1;
+		this.p2 = p2;
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.expectedLength = expectedLength;
+		this.extended = extended;
+		this.chunkLength = chunkLength;
+	}
+
+	/**
+	 * Plans how to send a command.
+	 *
+	 * @param cla                 Class byte.
+	 * @param ins                 Instruction byte.
+	 * @param p1                  First parameter.
+	 * @param p2                  Second parameter.
+	 * @param data                Buffer holding the data field, not copied.
+	 * @param offset              Position of the data field in the buffer.
+	 * @param length              Length of the data field.
+	 * @param expectedLength      Expected length of the response, 0 for the maximum.
+	 * @param maxTransceiveLength The longest APDU the transport can send in a single exchange.
+	 * @param extendedSupported   Whether the transport accepts extended APDUs.
+	 * @return The chain of APDUs to send.
+	 * @throws IllegalArgumentException if the transport cannot carry the command at all.
+	 */
+	@NonNull
+	public static CommandChain plan(final byte cla, final byte ins, final byte p1, final byte p2,
+									@NonNull final byte[] data, final int offset, final int length,
+									final int expectedLength, final int maxTransceiveLength,
+									final boolean extendedSupported) {
+		// A short Le cannot ask for more than 256 bytes, the rest would need GET RESPONSE round trips
+		final boolean shortLe = expectedLength <= 256 || !extendedSupported;
+
+		if (length <= ApduEncoder.SHORT_MAX_DATA_LENGTH && ApduEncoder.getEncodedLength(length) <= maxTransceiveLength
+				&& shortLe)
+			return new CommandChain(cla, ins, p1, p2, data, offset, length, expectedLength, false, length);
+
+		if (extendedSupported && length <= ApduEncoder.EXTENDED_MAX_DATA_LENGTH
+				&& ApduEncoder.getExtendedEncodedLength(length) <= maxTransceiveLength)
+			return new CommandChain(cla, ins, p1, p2, data, offset, length, expectedLength, true, length);
+
+		final int chunkLength = Math.min(ApduEncoder.SHORT_MAX_DATA_LENGTH, maxTransceiveLength - ApduEncoder.SHORT_OVERHEAD);
+
+		if (chunkLength <= 0)
+			throw new IllegalArgumentException("Transport cannot carry APDUs of " + maxTransceiveLength + " bytes");
+
+		return new CommandChain(cla, ins, p1, p2, data, offset, length, expectedLength, false, chunkLength);
+	}
+
+	/**
+	 * Plans how to send a command that is already encoded, e.g. to split it when it is longer than
+	 * the transport can carry.
+	 *
+	 * @param apdu                A short or extended APDU with Le, as written by {@link ApduEncoder}.
+	 * @param maxTransceiveLength The longest APDU the transport can send in a single exchange.
+	 * @param extendedSupported   Whether the transport accepts extended APDUs.
+	 * @return The chain of APDUs to send.
+	 * @throws IllegalArgumentException if the APDU is malformed or the transport cannot carry it.
+	 */
+	@NonNull
+	public static CommandChain parse(@NonNull final byte[] apdu, final int maxTransceiveLength,
+									 final boolean extendedSupported) {
+		final int offset;
+		final int length;
+		final int expectedLength;
+
+		if (apdu.length == ApduEncoder.getEncodedLength(0)) {
+			offset = 4;
+			length = 0;
+			expectedLength = apdu[4] & 0xff;
+		} else if (ApduEncoder.isExtended(apdu)) {
+			length = apdu.length == ApduEncoder.getExtendedEncodedLength(0) ? 0 : (apdu[5] & 0xff) << 8 | (apdu[6] & 0xff);
+			offset = 7;
+			expectedLength = (apdu[apdu.length - 2] & 0xff) << 8 | (apdu[apdu.length - 1] & 0xff);
+
+			if (apdu.length != ApduEncoder.getExtendedEncodedLength(length))
+				throw new IllegalArgumentException("Malformed extended APDU of " + apdu.length + " bytes");
+		} else {
+			length = apdu.length > 4 ? apdu[4] & 0xff : -1;
+			offset = 5;
+			expectedLength = apdu[apdu.length - 1] & 0xff;
+
+			if (apdu.length != ApduEncoder.getEncodedLength(length))
+				throw new IllegalArgumentException("Malformed short APDU of " + apdu.length + " bytes");
+		}
+
+		return plan(apdu[0], apdu[1], apdu[2], apdu[3], apdu, offset, length, expectedLength, maxTransceiveLength,
+					extendedSupported);
+	}
+
+	/**
+	 * @return true, if the command is sent as a single extended APDU.
+	 */
+	public boolean isExtended() {
+		return this.extended;
+	}
+
+	/**
+	 * @return true, if an APDU of the chain remains to be sent.
+	 */
+	public boolean hasNext() {
+		return !this.started || this.position < this.length;
+	}
+
+	/**
+	 * @return Length of the next APDU of the chain once encoded.
+	 */
+	public int getNextLength() {
+		if (this.extended)
+			return ApduEncoder.getExtendedEncodedLength(this.length);
+
+		final int chunk = Math.min(this.chunkLength, this.length - this.position);
+
+		return ApduEncoder.getEncodedLength(chunk) - (this.position + chunk < this.length ? 1 : 0);
+	}
+
+	/**
+	 * Writes the next APDU of the chain at the position of the buffer.
+	 *
+	 * @param out Destination buffer, must have {@link #getNextLength()} bytes remaining.
+	 * @return Number of bytes written.
+	 */
+	public int next(@NonNull final ByteBuffer out) {
+		if (!this.hasNext())
+			throw new IllegalStateException("All APDUs of the chain were sent");
+
+		this.started = true;
+
+		if (this.extended) {
+			this.position = this.length;
+
+			return ApduEncoder.encodeExtended(out, this.cla, this.ins, this.p1, this.p2, this.data, this.offset,
+											  this.length, this.expectedLength);
+		}
+
+		final int     chunk = Math.min(this.chunkLength, this.length - this.position);
+		final boolean last  = this.position + chunk >= this.length;
+		final byte    cla   = last ? this.cla : (byte) (this.cla | CLA_CHAINING);
+		final int     start = this.position;
+
+		this.position += chunk;
+
+		return ApduEncoder.encodeShort(out, cla, this.ins, this.p1, this.p2, this.data, this.offset + start, chunk,
+									   (byte) (this.expectedLength >= 256 ? 0 : this.expectedLength), last);
+	}
+
+	/**
+	 * Starts the chain over with another expected length, e.g. after the card answered 6Cxx.
+	 *
+	 * @param expectedLength Expected length of the response, 0 for the maximum.
+	 */
+	public void restart(final int expectedLength) {
+		this.expectedLength = expectedLength;
+		this.position = 0;
+		this.started = false;
+	}
+}
@@ -0,0 +1,46 @@
+package com.kunzisoft.hardware.yubikey.apdu;
+
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.apdu.command.iso.SelectFileApdu;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of the encoded form of commands whose bytes never change, such as the SELECT of an applet,
+ * so that they are encoded once per process instead of once per exchange.
+ * <p>
+ * The returned arrays are shared and must not be modified.
+ */
+public final class PrecompiledApdus {
+	private static final Map<ByteBuffer, byte[]> SELECT_IMAGES = new HashMap<>();
+
+	private PrecompiledApdus() {
+	}
+
+	/**
+	 * Gets the encoded SELECT of an application by its identifier, encoding it on first use.
+	 *
+	 * @param aid Application identifier, must not be modified afterwards.
+	 * @return The shared encoded form of the command.
+	 */
+	@NonNull
+	public static byte[] selectApplication(@NonNull final byte[] aid) {
+		// ByteBuffer compares its content, so equal identifiers share one image
+		final ByteBuffer key = ByteBuffer.wrap(aid);
+
+		synchronized (SELECT_IMAGES) {
+			byte[] image = SELECT_IMAGES.get(key);
+
+			if (image == null) {
+				image = new SelectFileApdu(SelectFileApdu.SelectionControl.DF_NAME_DIRECT,
+										   SelectFileApdu.RecordOffset.FIRST_RECORD, aid).build();
+				SELECT_IMAGES.put(key, image);
+			}
+
+			return image;
+		}
+	}
+}
@@ -1,16 +1,47 @@
 package com.kunzisoft.hardware.yubikey.apdu;
 
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
 /**
  * ISO 7816-4 5.3.3
  */
 public class ResponseApdu {
-	protected final byte[] response;
+	protected final byte[]     response;
+	private final   StatusWord statusWord;
 
 	public ResponseApdu(final byte[] response) {
+		if (response.length < 2)
+			throw new IllegalArgumentException("Response of " + response.length + " bytes has no status word");
+
 		this.response = response;
+		this.statusWord = StatusWord.of(response, response.length);
+	}
+
+	@NonNull
+	public StatusWord getStatusWord() {
+		return this.statusWord;
 	}
 
 	public boolean isSuccess() {
-		return this.response[this.response.length - 2] == (byte) 0x90 && this.response[this.response.length - 1] == (byte) 0x00;
+		return this.statusWord.isSuccess();
+	}
+
+	/**
+	 * @return Length of the response data, without the status word.
+	 */
+	public int getDataLength() {
+		return this.response.length - 2;
+	}
+
+	/**
+	 * Gets the response data without copying it.
+	 *
+	 * @return A read-only view over the data of the received buffer, without the status word.
+	 */
+	@NonNull
+	public ByteBuffer getData() {
+		return ByteBuffer.wrap(this.response, 0, this.getDataLength()).slice().asReadOnlyBuffer();
 	}
 }
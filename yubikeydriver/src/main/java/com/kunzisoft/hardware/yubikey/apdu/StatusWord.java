@@ -0,0 +1,130 @@
+package com.kunzisoft.hardware.yubikey.apdu;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * ISO 7816-4 5.1.3 status word (SW1 SW2) ending every response.
+ */
+public final class StatusWord {
+	public static final StatusWord SUCCESS                  = new StatusWord(0x9000);
+	public static final StatusWord SECURITY_STATUS          = new StatusWord(0x6982);
+	public static final StatusWord CONDITIONS_NOT_SATISFIED = new StatusWord(0x6985);
+	public static final StatusWord WRONG_DATA               = new StatusWord(0x6a80);
+	public static final StatusWord FILE_NOT_FOUND           = new StatusWord(0x6a82);
+	public static final StatusWord INS_NOT_SUPPORTED        = new StatusWord(0x6d00);
+	public static final StatusWord CLA_NOT_SUPPORTED        = new StatusWord(0x6e00);
+
+	private static final int SW1_MORE_DATA  = 0x61;
+	private static final int SW1_WRONG_LE   = 0x6c;
+
+	private final int value;
+
+	private StatusWord(final int value) {
+		this.value = value;
+	}
+
+	/**
+	 * Gets the status word with the given value, shared instances are returned for common values.
+	 *
+	 * @param sw1 First byte of the status word.
+	 * @param sw2 Second byte of the status word.
+	 * @return The status word.
+	 */
+	@NonNull
+	public static StatusWord of(final byte sw1, final byte sw2) {
+		final int value = (sw1 & 0xff) << 8 | (sw2 & 0xff);
+
+		switch (value) {
+			case 0x9000:
+				return SUCCESS;
+			case 0x6982:
+				return SECURITY_STATUS;
+			case 0x6985:
+				return CONDITIONS_NOT_SATISFIED;
+			case 0x6a80:
+				return WRONG_DATA;
+			case 0x6a82:
+				return FILE_NOT_FOUND;
+			case 0x6d00:
+				return INS_NOT_SUPPORTED;
+			case 0x6e00:
+				return CLA_NOT_SUPPORTED;
+			default:
+				return new StatusWord(value);
+		}
+	}
+
+	/**
+	 * Reads the status word at the end of a response.
+	 *
+	 * @param response Response of at least two bytes.
+	 * @param length   Length of the response in the buffer.
+	 * @return The status word.
+	 */
+	@NonNull
+	public static StatusWord of(@NonNull final byte[] response, final int length) {
+		return of(response[length - 2], response[length - 1]);
+	}
+
+	public int getValue() {
+		return this.value;
+	}
+
+	public int getSw1() {
+		return this.value >>> 8;
+	}
+
+	public int getSw2() {
+		return this.value & 0xff;
+	}
+
+	/**
+	 * @return true, if the command completed normally (9000).
+	 */
+	public boolean isSuccess() {
+		return this.value == 0x9000;
+	}
+
+	/**
+	 * @return true, if more response data can be fetched with GET RESPONSE (61xx).
+	 */
+	public boolean hasMoreData() {
+		return this.getSw1() == SW1_MORE_DATA;
+	}
+
+	/**
+	 * @return true, if the command must be sent again with the Le given in SW2 (6Cxx).
+	 */
+	public boolean isWrongLength() {
+		return this.getSw1() == SW1_WRONG_LE;
+	}
+
+	/**
+	 * Gets the number of bytes announced by a 61xx or 6Cxx status word, where 0 stands for 256.
+	 *
+	 * @return Number of bytes.
+	 */
+	public int getAvailableLength() {
+		final int length = this.getSw2();
+
+		return length == 0 ? 256 : length;
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		return o instanceof StatusWord && ((StatusWord) o).value == this.value;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.value;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%04X", this.value);
+	}
+}
@@ -0,0 +1,45 @@
+package com.kunzisoft.hardware.yubikey.apdu.command.iso;
+
+import com.kunzisoft.hardware.yubikey.apdu.CommandApdu;
+
+/**
+ * ISO 7816-4 7.6.1
+ */
+public class GetResponseApdu extends CommandApdu {
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final byte expectedLength;
+
+	/**
+	 * @param expectedLength Number of bytes to fetch, as announced by SW2 of a 61xx status word.
+	 */
+	public GetResponseApdu(final byte expectedLength) {
+		this.expectedLength = expectedLength;
+		this.data = NO_DATA;
+	}
+
+	@Override
+	protected byte getCommandClass() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getInstruction() {
+		return (byte) 0xc0;
+	}
+
+	@Override
+	protected byte getP1() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getP2() {
+		return (byte) 0x00;
+	}
+
+	@Override
+	protected byte getExpectedLength() {
+		return this.expectedLength;
+	}
+}
@@ -63,8 +63,13 @@ public class SelectFileApdu extends CommandApdu {
 	}
 
 	@Override
-	protected byte[] getParameters() {
-		return new byte[]{this.p1.getP1(), this.p2.getP2()};
+	protected byte getP1() {
+		return this.p1.getP1();
+	}
+
+	@Override
+	protected byte getP2() {
+		return this.p2.getP2();
 	}
 
 	@Override
@@ -1,9 +1,14 @@
 package com.kunzisoft.hardware.yubikey.apdu.command.ykoath;
 
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.apdu.ApduEncoder;
 import com.kunzisoft.hardware.yubikey.apdu.CommandApdu;
 import com.kunzisoft.hardware.yubikey.apdu.response.ykoath.PutResponseApdu;
 import com.kunzisoft.hardware.yubikey.Slot;
 
+import java.nio.ByteBuffer;
+
 /**
  * https://developers.yubico.com/OATH/YKOATH_Protocol.html
  */
@@ -15,6 +20,19 @@ public class PutApdu extends CommandApdu {
 		this.data = challenge;
 	}
 
+	/**
+	 * Writes the PUT of a challenge at the position of the buffer without creating a command.
+	 *
+	 * @param out       Destination buffer.
+	 * @param slot      Slot holding the secret.
+	 * @param challenge Challenge to send.
+	 * @return Number of bytes written.
+	 */
+	public static int encode(@NonNull final ByteBuffer out, @NonNull final Slot slot, @NonNull final byte[] challenge) {
+		return ApduEncoder.encode(out, (byte) 0x00, (byte) 0x01, slot.getAddress(), (byte) 0x00,
+								  challenge, 0, challenge.length, (byte) 0x00);
+	}
+
 	@Override
 	protected byte getCommandClass() {
 		return (byte) 0x00;
@@ -26,8 +44,13 @@ public class PutApdu extends CommandApdu {
 	}
 
 	@Override
-	protected byte[] getParameters() {
-		return new byte[]{this.slot.getAddress(), (byte) 0x00};
+	protected byte getP1() {
+		return this.slot.getAddress();
+	}
+
+	@Override
+	protected byte getP2() {
+		return (byte) 0x00;
 	}
 
 	@Override
@@ -1,8 +1,12 @@
 package com.kunzisoft.hardware.yubikey.apdu.response.ykoath;
 
+import androidx.annotation.NonNull;
+
 import com.kunzisoft.hardware.yubikey.challenge.YubiKey;
 import com.kunzisoft.hardware.yubikey.apdu.ResponseApdu;
 
+import java.nio.ByteBuffer;
+
 public class PutResponseApdu extends ResponseApdu {
 	public PutResponseApdu(final byte[] response) {
 		super(response);
@@ -15,4 +19,18 @@ public class PutResponseApdu extends ResponseApdu {
 
 		return result;
 	}
+
+	/**
+	 * Gets the result without copying it.
+	 *
+	 * @return A read-only view over the result in the received buffer.
+	 */
+	@NonNull
+	public ByteBuffer getResultView() {
+		final ByteBuffer data = this.getData();
+
+		data.limit(Math.min(data.limit(), YubiKey.CHALLENGE_RESPONSE_LENGTH));
+
+		return data;
+	}
 }
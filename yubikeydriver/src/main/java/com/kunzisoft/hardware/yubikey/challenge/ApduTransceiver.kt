@@ -0,0 +1,208 @@
+package com.kunzisoft.hardware.yubikey.challenge
+
+import com.kunzisoft.hardware.yubikey.apdu.CommandApdu
+import com.kunzisoft.hardware.yubikey.apdu.CommandChain
+import com.kunzisoft.hardware.yubikey.apdu.StatusWord
+import com.kunzisoft.hardware.yubikey.apdu.command.iso.GetResponseApdu
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.nio.ByteBuffer
+
+/**
+ * Sends APDUs over an [ApduTransport]. The timeout is adapted to the kind of command, so that a
+ * missing applet is reported quickly while a command that may wait for the user still gets enough
+ * time. Commands longer than the key can transceive at once are sent as extended APDUs when the
+ * key accepts them, and split by command chaining otherwise.
+ *
+ * Responses are completed before they are returned: `61xx` is followed by GET RESPONSE until all
+ * the data is read, and `6Cxx` sends the command again with the Le given by the card.
+ */
+internal class ApduTransceiver(private val transport: ApduTransport) {
+
+    /**
+     * Kinds of commands, each with the timeout applied while it is transceived.
+     */
+    enum class CommandClass(val timeout: Int) {
+        /**
+         * Answered by the card without any computation, e.g. SELECT.
+         */
+        SELECT(1000),
+
+        /**
+         * May need a computation or a touch of the YubiKey, e.g. PUT of a challenge.
+         */
+        USER_PRESENCE(10000)
+    }
+
+    private var timeout = -1
+
+    /**
+     * Metrics of the running transaction, counting the bytes exchanged, or null.
+     */
+    var metrics: TransactionMetrics? = null
+
+    /**
+     * Whether the key accepts APDUs with extended length fields.
+     */
+    var isExtendedLengthSupported = false
+        private set
+
+    /**
+     * The longest APDU the key can transceive in a single exchange.
+     */
+    var maxTransceiveLength = SHORT_APDU_MAX_LENGTH
+        private set
+
+    /**
+     * Connects to the key and reads its capabilities.
+     */
+    @Throws(IOException::class)
+    fun connect() {
+        transport.connect()
+        // The timeout is reset by the platform on every new connection
+        timeout = -1
+        isExtendedLengthSupported = transport.isExtendedLengthApduSupported
+        maxTransceiveLength = transport.maxTransceiveLength
+    }
+
+    /**
+     * Sends an encoded APDU and returns the complete response of the card.
+     *
+     * @param apdu         The encoded command, split into a chain if it is too long for the key.
+     * @param commandClass The kind of command, used to select the timeout.
+     * @return The response of the card including its final status word. When the response fits in
+     * a single exchange, this is the buffer received from the transport without any copy.
+     */
+    @Throws(IOException::class)
+    fun transceive(apdu: ByteArray, commandClass: CommandClass): ByteArray {
+        applyTimeout(commandClass)
+        if (apdu.size > maxTransceiveLength) {
+            return transceive(parse(apdu))
+        }
+        val response = send(apdu)
+        val statusWord = statusWordOf(response)
+        return when {
+            statusWord.isWrongLength -> {
+                val chain = parse(apdu)
+                chain.restart(statusWord.sw2)
+                transceive(chain)
+            }
+            statusWord.hasMoreData() -> readRemainingResponse(response, statusWord)
+            else -> response
+        }
+    }
+
+    /**
+     * Sends a command and returns the complete response of the card. The command is sent as a
+     * short or an extended APDU or as a chain of short APDUs, depending on what the key supports.
+     *
+     * @param command      The command.
+     * @param commandClass The kind of command, used to select the timeout.
+     * @return The response of the card including its final status word.
+     */
+    @Throws(IOException::class)
+    fun transceive(command: CommandApdu, commandClass: CommandClass): ByteArray {
+        applyTimeout(commandClass)
+        val chain = try {
+            command.chain(maxTransceiveLength, isExtendedLengthSupported)
+        } catch (e: IllegalArgumentException) {
+            throw IOException(e.message, e)
+        }
+        return transceive(chain)
+    }
+
+    private fun applyTimeout(commandClass: CommandClass) {
+        if (timeout != commandClass.timeout) {
+            transport.timeout = commandClass.timeout
+            timeout = commandClass.timeout
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun parse(apdu: ByteArray): CommandChain {
+        return try {
+            CommandChain.parse(apdu, maxTransceiveLength, isExtendedLengthSupported)
+        } catch (e: IllegalArgumentException) {
+            throw IOException(e.message, e)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun transceive(chain: CommandChain): ByteArray {
+        var response = sendChain(chain)
+        var statusWord = statusWordOf(response)
+        if (statusWord.isWrongLength) {
+            // Send the same command with the length asked for by the card
+            chain.restart(statusWord.sw2)
+            response = sendChain(chain)
+            statusWord = statusWordOf(response)
+        }
+        if (!statusWord.hasMoreData()) {
+            return response
+        }
+        return readRemainingResponse(response, statusWord)
+    }
+
+    /**
+     * Sends the APDUs of a chain, stopping early if the card rejects one of them.
+     */
+    @Throws(IOException::class)
+    private fun sendChain(chain: CommandChain): ByteArray {
+        while (true) {
+            val command = ByteArray(chain.nextLength)
+            chain.next(ByteBuffer.wrap(command))
+            val response = send(command)
+            if (!chain.hasNext() || !statusWordOf(response).isSuccess) {
+                return response
+            }
+        }
+    }
+
+    /**
+     * Fetches the rest of a response with GET RESPONSE as long as the card announces more data.
+     */
+    @Throws(IOException::class)
+    private fun readRemainingResponse(first: ByteArray, firstStatusWord: StatusWord): ByteArray {
+        val data = ByteArrayOutputStream(first.size - 2 + firstStatusWord.availableLength + 2)
+        data.write(first, 0, first.size - 2)
+        var statusWord = firstStatusWord
+        while (statusWord.hasMoreData()) {
+            val response = send(GetResponseApdu(statusWord.sw2.toByte()).build())
+            statusWord = statusWordOf(response)
+            data.write(response, 0, response.size - 2)
+            if (data.size() > MAX_RESPONSE_LENGTH) {
+                throw IOException("Response exceeds $MAX_RESPONSE_LENGTH bytes")
+            }
+        }
+        data.write(statusWord.sw1)
+        data.write(statusWord.sw2)
+        return data.toByteArray()
+    }
+
+    @Throws(IOException::class)
+    private fun send(apdu: ByteArray): ByteArray {
+        if (Thread.currentThread().isInterrupted) {
+            throw InterruptedIOException("Request cancelled")
+        }
+        val response = transport.transceive(apdu)
+        metrics?.let {
+            it.addBytesSent(apdu.size)
+            it.addBytesReceived(response.size)
+        }
+        return response
+    }
+
+    @Throws(IOException::class)
+    private fun statusWordOf(response: ByteArray): StatusWord {
+        if (response.size < 2) {
+            throw IOException("Response of ${response.size} bytes has no status word")
+        }
+        return StatusWord.of(response, response.size)
+    }
+
+    companion object {
+        private const val SHORT_APDU_MAX_LENGTH = 261
+        private const val MAX_RESPONSE_LENGTH = 65536
+    }
+}
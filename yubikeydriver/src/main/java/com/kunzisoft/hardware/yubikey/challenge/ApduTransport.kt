@@ -0,0 +1,41 @@
+package com.kunzisoft.hardware.yubikey.challenge
+
+import java.io.IOException
+
+/**
+ * Carries ISO 7816 APDUs to a YubiKey. [NfcYubiKey] only talks to the key through this interface,
+ * so that it can be driven by a simulated key as well as by a real tag.
+ */
+interface ApduTransport {
+    /**
+     * Whether a connection to the key is currently open.
+     */
+    val isConnected: Boolean
+
+    /**
+     * The longest APDU that can be sent in a single exchange.
+     */
+    val maxTransceiveLength: Int
+
+    /**
+     * Whether APDUs with extended length fields are accepted.
+     */
+    val isExtendedLengthApduSupported: Boolean
+
+    /**
+     * Timeout of a single exchange in milliseconds.
+     */
+    var timeout: Int
+
+    /**
+     * Opens a connection to the key.
+     */
+    @Throws(IOException::class)
+    fun connect()
+
+    /**
+     * Sends an APDU and returns the response of the key including its status word.
+     */
+    @Throws(IOException::class)
+    fun transceive(apdu: ByteArray): ByteArray
+}
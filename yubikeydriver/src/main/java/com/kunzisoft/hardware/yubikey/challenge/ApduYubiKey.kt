@@ -0,0 +1,298 @@
+package com.kunzisoft.hardware.yubikey.challenge
+
+import androidx.tracing.Trace
+import com.kunzisoft.hardware.yubikey.Slot
+import com.kunzisoft.hardware.yubikey.YubiKeyConnectionException
+import com.kunzisoft.hardware.yubikey.YubiKeyException
+import com.kunzisoft.hardware.yubikey.YubiKeyInterruptedException
+import com.kunzisoft.hardware.yubikey.YubiKeyInvalidResponseException
+import com.kunzisoft.hardware.yubikey.YubiKeyStatusWordException
+import com.kunzisoft.hardware.yubikey.apdu.ApduEncoder
+import com.kunzisoft.hardware.yubikey.apdu.PrecompiledApdus
+import com.kunzisoft.hardware.yubikey.apdu.ResponseApdu
+import com.kunzisoft.hardware.yubikey.apdu.command.ykoath.PutApdu
+import com.kunzisoft.hardware.yubikey.apdu.response.ykoath.PutResponseApdu
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.nio.ByteBuffer
+
+/**
+ * YubiKey driver for the ISO 7816 interface of the challenge-response applet, shared by the
+ * transports that carry APDUs (NFC and USB CCID).
+ *
+ * @param transport Transport of the APDUs exchanged with the YubiKey.
+ */
+open class ApduYubiKey(private val transport: ApduTransport) : YubiKey {
+
+    private val transceiver = ApduTransceiver(transport)
+
+    // Trace section names, built once so that tracing does not allocate per request
+    private val traceName = javaClass.simpleName
+    private val challengeResponseSection = "$traceName.challengeResponse"
+    private val connectSection = "$traceName.connect"
+    private val selectSection = "$traceName.select"
+    private val putSection = "$traceName.put"
+
+    /**
+     * Encoded PUT command, reused as long as the challenges keep the same length.
+     */
+    private var putCommand = ByteArray(0)
+    private var putBuffer: ByteBuffer = ByteBuffer.wrap(putCommand)
+
+    /**
+     * Whether the challenge-response applet is selected on the current connection.
+     */
+    private var challengeAppletSelected = false
+
+    /**
+     * Whether the YubiKey answered that it does not have the challenge-response applet.
+     */
+    protected var challengeAppletMissing = false
+        private set
+
+    /**
+     * Status bytes returned by the last SELECT of the challenge-response applet.
+     */
+    private var selectStatus: ByteArray? = null
+
+    /**
+     * Probed once per driver instance, see [getCapabilities].
+     */
+    private var capabilities: DeviceCapabilities? = null
+
+    // Both null unless a listener is set, so that nothing is measured by default
+    private var transactionListener: TransactionListener? = null
+    private var metrics: TransactionMetrics? = null
+
+    override fun setTransactionListener(listener: TransactionListener?) {
+        transactionListener = listener
+        metrics = listener?.let { TransactionMetrics() }
+        transceiver.metrics = metrics
+    }
+
+    /**
+     * Whether the last request failed to connect to the key, as opposed to failing during an
+     * exchange.
+     */
+    protected var connectFailed = false
+        private set
+
+    @Throws(IOException::class)
+    private fun ensureConnected() {
+        connectFailed = false
+        if (!transport.isConnected) {
+            // A new connection starts without any applet selected
+            challengeAppletSelected = false
+            try {
+                measure(TransactionMetrics.Phase.CONNECT, connectSection) { transceiver.connect() }
+            } catch (e: IOException) {
+                connectFailed = true
+                throw e
+            }
+        }
+    }
+
+    /**
+     * Forgets the applet selection, to be called when the connection is closed.
+     */
+    protected fun invalidateSelection() {
+        challengeAppletSelected = false
+    }
+
+    /**
+     * Called once a request is done, successful or not.
+     */
+    protected open fun onRequestDone() {}
+
+    @Throws(YubiKeyException::class)
+    override fun challengeResponse(slot: Slot, challenge: ByteArray): ByteArray {
+        slot.ensureChallengeResponseSlot()
+        return transaction {
+            ensureConnected()
+            selectChallengeApplet()
+            put(slot, challenge)
+        }
+    }
+
+    @Throws(YubiKeyException::class)
+    override fun challengeResponse(requests: List<ChallengeRequest>): List<ByteArray> {
+        requests.forEach { it.slot.ensureChallengeResponseSlot() }
+        return transaction {
+            ensureConnected()
+            // The applet stays selected, so one SELECT serves all the PUT commands of the batch
+            selectChallengeApplet()
+            requests.map { put(it.slot, it.challenge) }
+        }
+    }
+
+    /**
+     * Reads the status bytes from the answer to SELECT, then asks for the serial number and, on
+     * YubiKey 4 and later, for the capabilities. Keys too old to answer SELECT with their status
+     * have no capabilities.
+     */
+    @Throws(YubiKeyException::class)
+    override fun getCapabilities(): DeviceCapabilities? {
+        capabilities?.let { return it }
+        return transaction {
+            ensureConnected()
+            // Select again even if the applet is selected, only the answer carries the status
+            challengeAppletSelected = false
+            selectChallengeApplet()
+            val status = selectStatus ?: return@transaction null
+            val serialNumber = readSerialNumber()
+            DeviceCapabilities.getCached(serialNumber, status, 0)
+                ?: DeviceCapabilities.create(
+                    status,
+                    0,
+                    serialNumber,
+                    if (DeviceCapabilities.hasCapabilities(status, 0)) readCapabilities() else null
+                )
+        }.also { capabilities = it }
+    }
+
+    @Throws(IOException::class)
+    private fun readSerialNumber(): Int {
+        val response = ResponseApdu(transceiver.transceive(GET_SERIAL, ApduTransceiver.CommandClass.SELECT))
+        // Keys configured to hide their serial number answer with an error
+        if (!response.isSuccess || response.dataLength < 4)
+            return DeviceCapabilities.UNKNOWN_SERIAL_NUMBER
+        return response.data.int
+    }
+
+    @Throws(IOException::class)
+    private fun readCapabilities(): ByteArray? {
+        val response = ResponseApdu(transceiver.transceive(GET_CAPABILITIES, ApduTransceiver.CommandClass.SELECT))
+        if (!response.isSuccess || response.dataLength < 1)
+            return null
+        val data = response.data
+        val length = data.get().toInt() and 0xff
+        if (length > data.remaining())
+            return null
+        return ByteArray(length).also { data.get(it) }
+    }
+
+    /**
+     * Runs a request as one measured transaction.
+     */
+    private inline fun <T> transaction(block: () -> T): T {
+        val metrics = metrics
+        Trace.beginSection(challengeResponseSection)
+        metrics?.begin()
+        var success = false
+        try {
+            return block().also { success = true }
+        } catch (e: InterruptedIOException) {
+            challengeAppletSelected = false
+            throw YubiKeyInterruptedException("Interrupted")
+        } catch (e: IOException) {
+            metrics?.countError(TransactionMetrics.Error.IO)
+            // Tag lost or connection broken, the selection does not survive a reconnect
+            challengeAppletSelected = false
+            throw YubiKeyConnectionException(e)
+        } finally {
+            onRequestDone()
+            if (metrics != null) {
+                metrics.end(success)
+                transactionListener?.onTransactionFinished(metrics)
+            }
+            Trace.endSection()
+        }
+    }
+
+    /**
+     * Runs a step of a transaction in a trace section, measuring its duration if a listener is set.
+     */
+    private inline fun <T> measure(phase: TransactionMetrics.Phase, section: String, block: () -> T): T {
+        val metrics = metrics
+        val start = if (metrics != null) System.nanoTime() else 0
+        Trace.beginSection(section)
+        try {
+            return block()
+        } finally {
+            Trace.endSection()
+            if (metrics != null) {
+                metrics.addDurationSince(phase, start)
+                metrics.count(phase)
+            }
+        }
+    }
+
+    @Throws(IOException::class, YubiKeyException::class)
+    private fun selectChallengeApplet() {
+        if (challengeAppletSelected)
+            return
+        val selectResponseApdu = ResponseApdu(measure(TransactionMetrics.Phase.SELECT, selectSection) {
+            transceiver.transceive(SELECT_CHALLENGE_APPLET, ApduTransceiver.CommandClass.SELECT)
+        })
+        if (!selectResponseApdu.isSuccess) {
+            metrics?.countError(TransactionMetrics.Error.STATUS_WORD)
+            challengeAppletMissing = true
+            throw YubiKeyStatusWordException(
+                "Failed operation (${selectResponseApdu.statusWord})",
+                selectResponseApdu.statusWord.value
+            )
+        }
+        if (selectResponseApdu.dataLength >= DeviceCapabilities.STATUS_LENGTH) {
+            selectStatus = ByteArray(DeviceCapabilities.STATUS_LENGTH).also { selectResponseApdu.data.get(it) }
+        }
+        challengeAppletSelected = true
+    }
+
+    @Throws(IOException::class, YubiKeyException::class)
+    private fun put(slot: Slot, challenge: ByteArray): ByteArray {
+        val putResponseApdu = PutResponseApdu(measure(TransactionMetrics.Phase.PUT, putSection) {
+            transceiver.transceive(encodePut(slot, challenge), ApduTransceiver.CommandClass.USER_PRESENCE)
+        })
+        if (!putResponseApdu.isSuccess) {
+            metrics?.countError(TransactionMetrics.Error.STATUS_WORD)
+            // Do not trust the applet state after an error status word
+            challengeAppletSelected = false
+            throw YubiKeyStatusWordException(
+                "Failed operation (${putResponseApdu.statusWord})",
+                putResponseApdu.statusWord.value
+            )
+        }
+        if (putResponseApdu.dataLength < YubiKey.CHALLENGE_RESPONSE_LENGTH) {
+            metrics?.countError(TransactionMetrics.Error.INVALID_RESPONSE)
+            challengeAppletSelected = false
+            throw YubiKeyInvalidResponseException("Response of ${putResponseApdu.dataLength} bytes")
+        }
+        return putResponseApdu.result
+    }
+
+    private fun encodePut(slot: Slot, challenge: ByteArray): ByteArray {
+        val length = ApduEncoder.getEncodedLength(challenge.size)
+        if (putCommand.size != length) {
+            putCommand = ByteArray(length)
+            putBuffer = ByteBuffer.wrap(putCommand)
+        }
+        putBuffer.clear()
+        PutApdu.encode(putBuffer, slot, challenge)
+        return putCommand
+    }
+
+    companion object {
+        /**
+         * ISO 7816 Application ID for the challenge-response feature of YubiKeys.
+         */
+        private val CHALLENGE_AID = byteArrayOf(0xa0.toByte(), 0x00, 0x00, 0x05, 0x27, 0x20, 0x01)
+
+        /**
+         * SELECT of the challenge-response applet, encoded once per process.
+         */
+        private val SELECT_CHALLENGE_APPLET = PrecompiledApdus.selectApplication(CHALLENGE_AID)
+
+        /**
+         * PUT commands reading the serial number and the capabilities instead of a response.
+         */
+        private val GET_SERIAL = encodeRead(Slot.DEVICE_SERIAL)
+        private val GET_CAPABILITIES = encodeRead(Slot.YUBIKEY_4_CAPABILITIES)
+
+        private fun encodeRead(slot: Slot): ByteArray {
+            val empty = ByteArray(0)
+            return ByteArray(ApduEncoder.getEncodedLength(0)).also {
+                PutApdu.encode(ByteBuffer.wrap(it), slot, empty)
+            }
+        }
+    }
+}
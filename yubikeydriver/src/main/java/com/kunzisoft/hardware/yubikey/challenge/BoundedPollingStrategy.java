@@ -0,0 +1,67 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Default {@link StatusPollingStrategy}: polls at a fixed short interval for the first few polls,
+ * then doubles the interval up to a cap. While waiting for the user, the interval is fixed so that
+ * a touch is noticed quickly however long the user takes.
+ */
+public class BoundedPollingStrategy implements StatusPollingStrategy {
+	public static final BoundedPollingStrategy DEFAULT = new BoundedPollingStrategy(4, 1, 16, 20, 2000, 2000, 256000);
+
+	private final int  fastPolls;
+	private final long fastInterval;
+	private final long maxInterval;
+	private final long userTouchInterval;
+	private final long writeReadyBudget;
+	private final long responsePendingBudget;
+	private final long userTouchBudget;
+
+	/**
+	 * @param fastPolls             Number of polls issued at the fast interval in each phase.
+	 * @param fastInterval          Interval used for the fast polls (ms).
+	 * @param maxInterval           Upper bound of the doubling interval after the fast polls (ms).
+	 * @param userTouchInterval     Interval used while waiting for the user (ms).
+	 * @param writeReadyBudget      Budget of {@link Phase#WRITE_READY} (ms).
+	 * @param responsePendingBudget Budget of {@link Phase#RESPONSE_PENDING} (ms).
+	 * @param userTouchBudget       Budget of {@link Phase#USER_TOUCH} (ms).
+	 */
+	public BoundedPollingStrategy(final int fastPolls, final long fastInterval, final long maxInterval, final long userTouchInterval,
+								  final long writeReadyBudget, final long responsePendingBudget, final long userTouchBudget) {
+		this.fastPolls = fastPolls;
+		this.fastInterval = fastInterval;
+		this.maxInterval = maxInterval;
+		this.userTouchInterval = userTouchInterval;
+		this.writeReadyBudget = writeReadyBudget;
+		this.responsePendingBudget = responsePendingBudget;
+		this.userTouchBudget = userTouchBudget;
+	}
+
+	@Override
+	public long getPollInterval(@NonNull final Phase phase, final int poll) {
+		if (phase == Phase.USER_TOUCH)
+			return this.userTouchInterval;
+
+		if (poll < this.fastPolls)
+			return this.fastInterval;
+
+		// Shift at most 16 times so that the interval cannot overflow before it is capped
+		final long interval = Math.max(this.fastInterval, 1) << Math.min(poll - this.fastPolls + 1, 16);
+
+		return Math.min(interval, this.maxInterval);
+	}
+
+	@Override
+	public long getBudget(@NonNull final Phase phase) {
+		switch (phase) {
+			case WRITE_READY:
+				return this.writeReadyBudget;
+			case RESPONSE_PENDING:
+				return this.responsePendingBudget;
+			case USER_TOUCH:
+			default:
+				return this.userTouchBudget;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+
+import java.util.List;
+
+/**
+ * {@link YubiKey} that answers the challenges found in a {@link ResponseCache} without a
+ * transaction, and stores the responses of the other ones. The entries are looked up with the
+ * caller and the serial number from the capabilities of the key, a key whose serial number is
+ * unknown is never cached. An instance serves a single caller.
+ */
+public class CachingYubiKey implements YubiKey {
+	private final YubiKey       delegate;
+	private final ResponseCache cache;
+	private final String        caller;
+
+	/**
+	 * @param delegate The YubiKey answering the challenges missing from the cache.
+	 * @param cache    The cache, may be shared by several keys.
+	 * @param caller   The app the responses are given to, only its own responses are reused.
+	 */
+	public CachingYubiKey(@NonNull final YubiKey delegate, @NonNull final ResponseCache cache, @NonNull final String caller) {
+		this.delegate = delegate;
+		this.cache = cache;
+		this.caller = caller;
+	}
+
+	@NonNull
+	public YubiKey getDelegate() {
+		return this.delegate;
+	}
+
+	/**
+	 * Gets the response cached for a challenge of the caller, without any transaction that would
+	 * need the user, except for reading the capabilities if they are not known yet.
+	 *
+	 * @param slot      The YubiKey feature slot to use.
+	 * @param challenge Challenge bytes to look up.
+	 * @return The cached response, or null if there is none.
+	 */
+	@Nullable
+	public byte[] getCachedResponse(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		final int serialNumber = this.getSerialNumber();
+
+		if (serialNumber == DeviceCapabilities.UNKNOWN_SERIAL_NUMBER)
+			return null;
+
+		return this.cache.get(this.caller, serialNumber, slot, challenge);
+	}
+
+	@NonNull
+	@Override
+	public byte[] challengeResponse(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		final int serialNumber = this.getSerialNumber();
+
+		if (serialNumber == DeviceCapabilities.UNKNOWN_SERIAL_NUMBER)
+			return this.delegate.challengeResponse(slot, challenge);
+
+		final byte[] cached = this.cache.get(this.caller, serialNumber, slot, challenge);
+
+		if (cached != null)
+			return cached;
+
+		final byte[] response = this.delegate.challengeResponse(slot, challenge);
+
+		this.cache.put(this.caller, serialNumber, slot, challenge, response);
+
+		return response;
+	}
+
+	@NonNull
+	@Override
+	public byte[] challengeResponseNonBlocking(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		final int serialNumber = this.getSerialNumber();
+
+		if (serialNumber == DeviceCapabilities.UNKNOWN_SERIAL_NUMBER)
+			return this.delegate.challengeResponseNonBlocking(slot, challenge);
+
+		final byte[] cached = this.cache.get(this.caller, serialNumber, slot, challenge);
+
+		if (cached != null)
+			return cached;
+
+		final byte[] response = this.delegate.challengeResponseNonBlocking(slot, challenge);
+
+		this.cache.put(this.caller, serialNumber, slot, challenge, response);
+
+		return response;
+	}
+
+	/**
+	 * Sends the batch as is, the responses of a batch are not cached.
+	 */
+	@NonNull
+	@Override
+	public List<byte[]> challengeResponse(@NonNull final List<ChallengeRequest> requests) throws YubiKeyException {
+		return this.delegate.challengeResponse(requests);
+	}
+
+	@Override
+	public void setTransactionListener(@Nullable final TransactionListener listener) {
+		this.delegate.setTransactionListener(listener);
+	}
+
+	@Nullable
+	@Override
+	public DeviceCapabilities getCapabilities() throws YubiKeyException {
+		return this.delegate.getCapabilities();
+	}
+
+	private int getSerialNumber() throws YubiKeyException {
+		final DeviceCapabilities capabilities = this.delegate.getCapabilities();
+
+		return capabilities != null ? capabilities.getSerialNumber() : DeviceCapabilities.UNKNOWN_SERIAL_NUMBER;
+	}
+}
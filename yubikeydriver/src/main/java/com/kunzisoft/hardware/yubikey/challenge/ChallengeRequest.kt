@@ -0,0 +1,12 @@
+package com.kunzisoft.hardware.yubikey.challenge
+
+import com.kunzisoft.hardware.yubikey.Slot
+
+/**
+ * A single challenge of a batch sent with [YubiKey.challengeResponse].
+ *
+ * @param slot      The YubiKey feature slot to use. Must be either
+ * [Slot.CHALLENGE_HMAC_1] or [Slot.CHALLENGE_HMAC_2].
+ * @param challenge Challenge bytes to send to the YubiKey.
+ */
+class ChallengeRequest(val slot: Slot, val challenge: ByteArray)
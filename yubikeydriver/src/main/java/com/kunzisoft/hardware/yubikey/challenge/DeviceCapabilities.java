@@ -0,0 +1,274 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Snapshot of the status of a YubiKey: firmware version, programming sequence and which
+ * configurations are programmed, along with the serial number and the capabilities reported by
+ * YubiKey 4 and later.
+ * <p>
+ * The status bytes cannot tell whether a challenge-response slot waits for a touch, the touch bits
+ * only concern OTP output. Drivers record it when a request shows it, see {@link #getTouch(Slot)}.
+ * <p>
+ * Drivers probe it once per connection. Snapshots are also cached by serial number, so that a key
+ * that is connected again is only asked for the data its status bytes cannot tell has changed.
+ */
+public final class DeviceCapabilities {
+	/**
+	 * Length of the status bytes: firmware version (3 bytes), programming sequence and touch level
+	 * (2 bytes, little endian).
+	 */
+	public static final int STATUS_LENGTH = 6;
+
+	/**
+	 * Serial number of a key that does not reveal it.
+	 */
+	public static final int UNKNOWN_SERIAL_NUMBER = -1;
+
+	/**
+	 * Whether a challenge-response slot waits for the user to touch the key.
+	 */
+	public enum Touch {
+		REQUIRED,
+		NOT_REQUIRED,
+		/**
+		 * No request on the slot was seen yet.
+		 */
+		UNKNOWN
+	}
+
+	private static final int CONFIG1_VALID = 0x01;
+	private static final int CONFIG2_VALID = 0x02;
+
+	/**
+	 * First firmware reporting the VALID bits of the configurations in its touch level.
+	 */
+	private static final int SLOT_STATUS_MAJOR = 2;
+	private static final int SLOT_STATUS_MINOR = 1;
+
+	private static final Map<Integer, DeviceCapabilities> CACHE = new ConcurrentHashMap<>();
+
+	private final byte[]                     status;
+	private final int                        serialNumber;
+	@Nullable
+	private final byte[]                     capabilities;
+	private final AtomicReferenceArray<Touch> touch = new AtomicReferenceArray<>(new Touch[]{Touch.UNKNOWN, Touch.UNKNOWN});
+
+	private DeviceCapabilities(final byte[] status, final int serialNumber, @Nullable final byte[] capabilities) {
+		this.status = status;
+		this.serialNumber = serialNumber;
+		this.capabilities = capabilities;
+	}
+
+	/**
+	 * Creates a snapshot from the status bytes of a key and caches it if the serial number is known.
+	 *
+	 * @param status       Buffer holding the status bytes.
+	 * @param offset       Position of the first status byte.
+	 * @param serialNumber Serial number of the key, or {@link #UNKNOWN_SERIAL_NUMBER}.
+	 * @param capabilities Capability TLVs of the key without their length byte, or null.
+	 * @return The new snapshot.
+	 */
+	@NonNull
+	static DeviceCapabilities create(@NonNull final byte[] status, final int offset, final int serialNumber, @Nullable final byte[] capabilities) {
+		final DeviceCapabilities snapshot = new DeviceCapabilities(Arrays.copyOfRange(status, offset, offset + STATUS_LENGTH), serialNumber, capabilities);
+
+		if (serialNumber != UNKNOWN_SERIAL_NUMBER)
+			CACHE.put(serialNumber, snapshot);
+
+		return snapshot;
+	}
+
+	/**
+	 * Gets the cached snapshot of a key if its status bytes did not change since.
+	 *
+	 * @param serialNumber Serial number of the key.
+	 * @param status       Buffer holding the current status bytes of the key.
+	 * @param offset       Position of the first status byte.
+	 * @return The cached snapshot, or null if there is none or the key was reprogrammed.
+	 */
+	@Nullable
+	static DeviceCapabilities getCached(final int serialNumber, @NonNull final byte[] status, final int offset) {
+		if (serialNumber == UNKNOWN_SERIAL_NUMBER)
+			return null;
+
+		final DeviceCapabilities snapshot = CACHE.get(serialNumber);
+
+		if (snapshot == null)
+			return null;
+
+		for (int i = 0; i < STATUS_LENGTH; i++) {
+			if (snapshot.status[i] != status[offset + i])
+				return null;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Checks whether a key reports the capabilities of a YubiKey 4, i.e. has firmware 4.1 or later.
+	 *
+	 * @param status Buffer holding the status bytes of the key.
+	 * @param offset Position of the first status byte.
+	 * @return true, if the capabilities may be requested.
+	 */
+	static boolean hasCapabilities(@NonNull final byte[] status, final int offset) {
+		final int major = status[offset] & 0xff;
+
+		return major > 4 || major == 4 && (status[offset + 1] & 0xff) >= 1;
+	}
+
+	/**
+	 * Forgets all cached snapshots.
+	 */
+	public static void clearCache() {
+		CACHE.clear();
+	}
+
+	/**
+	 * @return The serial number, or {@link #UNKNOWN_SERIAL_NUMBER} if the key does not reveal it.
+	 */
+	public int getSerialNumber() {
+		return this.serialNumber;
+	}
+
+	/**
+	 * @return The firmware version, e.g. "4.3.7".
+	 */
+	@NonNull
+	public String getFirmwareVersion() {
+		return String.format(Locale.ROOT, "%d.%d.%d", this.status[0] & 0xff, this.status[1] & 0xff, this.status[2] & 0xff);
+	}
+
+	/**
+	 * @return The programming sequence, which changes whenever a configuration is written.
+	 */
+	public int getProgrammingSequence() {
+		return this.status[3] & 0xff;
+	}
+
+	/**
+	 * Checks whether the touch level of the status bytes tells which configurations are programmed,
+	 * i.e. whether the key has firmware 2.1 or later.
+	 *
+	 * @return true, if {@link #isProgrammed(Slot)} reflects the key.
+	 */
+	public boolean hasSlotStatus() {
+		final int major = this.status[0] & 0xff;
+
+		return major > SLOT_STATUS_MAJOR || major == SLOT_STATUS_MAJOR && (this.status[1] & 0xff) >= SLOT_STATUS_MINOR;
+	}
+
+	private int getTouchLevel() {
+		return (this.status[4] & 0xff) | ((this.status[5] & 0xff) << 8);
+	}
+
+	/**
+	 * Checks whether the configuration behind a challenge-response slot is programmed. Keys that do
+	 * not report it, see {@link #hasSlotStatus()}, are assumed to be programmed.
+	 *
+	 * @param slot {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @return true, if the slot holds a configuration or the key does not tell.
+	 */
+	public boolean isProgrammed(@NonNull final Slot slot) {
+		if (!slot.isChallengeResponseSlot())
+			return false;
+
+		if (!this.hasSlotStatus())
+			return true;
+
+		return (this.getTouchLevel() & (slot == Slot.CHALLENGE_HMAC_1 ? CONFIG1_VALID : CONFIG2_VALID)) != 0;
+	}
+
+	/**
+	 * Tells whether a challenge-response slot waits for the user to touch the key. Only a request on
+	 * the slot shows it, by the key asking for the touch, so it stays unknown until the driver
+	 * records one.
+	 *
+	 * @param slot {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @return The touch requirement seen on this key as long as it is not reprogrammed.
+	 */
+	@NonNull
+	public Touch getTouch(@NonNull final Slot slot) {
+		if (!slot.isChallengeResponseSlot())
+			return Touch.UNKNOWN;
+
+		return this.touch.get(slot == Slot.CHALLENGE_HMAC_1 ? 0 : 1);
+	}
+
+	/**
+	 * Records whether a request on a challenge-response slot waited for the user.
+	 *
+	 * @param slot    {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param touched true, if the key asked for a touch during the request.
+	 */
+	void setTouch(@NonNull final Slot slot, final boolean touched) {
+		if (slot.isChallengeResponseSlot())
+			this.touch.set(slot == Slot.CHALLENGE_HMAC_1 ? 0 : 1, touched ? Touch.REQUIRED : Touch.NOT_REQUIRED);
+	}
+
+	/**
+	 * Chooses the challenge-response slot to use: the preferred one if it is programmed, otherwise
+	 * the other one if that one is programmed.
+	 *
+	 * @param preferred The slot to use if possible.
+	 * @return The slot to use, the preferred one if neither is programmed or the key does not tell.
+	 */
+	@NonNull
+	public Slot selectSlot(@NonNull final Slot preferred) {
+		if (this.isProgrammed(preferred))
+			return preferred;
+
+		final Slot other = preferred == Slot.CHALLENGE_HMAC_1 ? Slot.CHALLENGE_HMAC_2 : Slot.CHALLENGE_HMAC_1;
+
+		return this.isProgrammed(other) ? other : preferred;
+	}
+
+	/**
+	 * Gets the capabilities reported by YubiKey 4 and later, as TLVs (tag, length, value).
+	 *
+	 * @return A copy of the TLVs, or null if the key does not report them.
+	 */
+	@Nullable
+	public byte[] getCapabilities() {
+		return this.capabilities != null ? this.capabilities.clone() : null;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "serial=%d firmware=%s sequence=%d slot1=%s slot2=%s",
+				this.serialNumber,
+				this.getFirmwareVersion(),
+				this.getProgrammingSequence(),
+				this.describe(Slot.CHALLENGE_HMAC_1),
+				this.describe(Slot.CHALLENGE_HMAC_2));
+	}
+
+	private String describe(final Slot slot) {
+		if (!this.hasSlotStatus())
+			return "unknown";
+
+		if (!this.isProgrammed(slot))
+			return "empty";
+
+		switch (this.getTouch(slot)) {
+			case REQUIRED:
+				return "touch";
+			case NOT_REQUIRED:
+				return "no-touch";
+			case UNKNOWN:
+			default:
+				return "programmed";
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Carries the 8-byte HID feature reports of the YubiKey OTP interface. {@link UsbYubiKey} only
+ * talks to the key through this interface, so that it can be driven by a simulated key as well as
+ * by a real USB device.
+ */
+public interface FeatureReportTransport {
+	/**
+	 * Gets exclusive access to the key.
+	 *
+	 * @return true, if access was granted.
+	 */
+	boolean claim();
+
+	/**
+	 * Gives up the exclusive access obtained by {@link #claim()}.
+	 */
+	void release();
+
+	/**
+	 * Reads a feature report (HID GET_REPORT).
+	 *
+	 * @param report  Buffer receiving the report.
+	 * @param length  Number of bytes to read.
+	 * @param timeout Timeout in milliseconds.
+	 * @return The number of bytes read, or a negative value on failure.
+	 */
+	int getFeatureReport(@NonNull byte[] report, int length, int timeout);
+
+	/**
+	 * Writes a feature report (HID SET_REPORT).
+	 *
+	 * @param report  The report to write.
+	 * @param length  Number of bytes to write.
+	 * @param timeout Timeout in milliseconds.
+	 * @return The number of bytes written, or a negative value on failure.
+	 */
+	int setFeatureReport(@NonNull byte[] report, int length, int timeout);
+}
@@ -0,0 +1,127 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.Crc16;
+import com.kunzisoft.hardware.yubikey.YubiKeyCrcException;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyInvalidResponseException;
+
+/**
+ * Reassembles a response from the feature reports of a YubiKey. The length of the response is
+ * known up front or given by its first byte, and the number of reports is derived from it, so
+ * decoding ends with the last report carrying data instead of polling until the sequence number
+ * wraps to 0. The caller must then end the read mode of the key. The checksum is updated with
+ * every report and reports out of sequence are rejected as soon as they arrive.
+ */
+final class HidResponseDecoder {
+	private static final int REPORT_DATA_SIZE        = 7;
+	private static final int CRC_LENGTH              = 2;
+	private static final int STATUS_RESPONSE_PENDING = 0x40;
+	private static final int SEQUENCE_MASK           = 0x1f;
+
+	private final Crc16 crc = new Crc16();
+
+	private byte[] target;
+	private int    length;
+	private int    bytesRead;
+	private int    sequence;
+	private int    reports;
+
+	/**
+	 * Gets the number of reports needed to transfer a response and its checksum.
+	 *
+	 * @param expectedBytes Length of the response without its checksum.
+	 * @return The number of reports.
+	 */
+	static int getReportCount(final int expectedBytes) {
+		return (expectedBytes + CRC_LENGTH + REPORT_DATA_SIZE - 1) / REPORT_DATA_SIZE;
+	}
+
+	/**
+	 * Prepares the decoder for a new response.
+	 *
+	 * @param target        Buffer receiving the response and its checksum.
+	 * @param expectedBytes Length of the response without its checksum.
+	 */
+	void start(@NonNull final byte[] target, final int expectedBytes) {
+		if (expectedBytes <= 0 || expectedBytes + CRC_LENGTH > target.length)
+			throw new IllegalArgumentException("Invalid response length: " + expectedBytes);
+
+		this.target = target;
+		this.length = expectedBytes + CRC_LENGTH;
+		this.bytesRead = 0;
+		this.sequence = 0;
+		this.reports = getReportCount(expectedBytes);
+		this.crc.reset();
+	}
+
+	/**
+	 * Prepares the decoder for a new response whose first byte gives the length of the data that
+	 * follows it, such as the capabilities of a YubiKey 4.
+	 *
+	 * @param target Buffer receiving the response and its checksum.
+	 */
+	void startLengthPrefixed(@NonNull final byte[] target) {
+		this.target = target;
+		this.length = -1;
+		this.bytesRead = 0;
+		this.sequence = 0;
+		this.reports = 1;
+		this.crc.reset();
+	}
+
+	/**
+	 * Gets the length of the response without its checksum, known once the first report was
+	 * accepted.
+	 *
+	 * @return The number of bytes.
+	 */
+	int getResponseLength() {
+		return this.length - CRC_LENGTH;
+	}
+
+	/**
+	 * Consumes the next report of the response.
+	 *
+	 * @param report Feature report including its status byte.
+	 * @return true, if this was the last report and the checksum of the response is valid.
+	 * @throws YubiKeyInvalidResponseException If the report is not the next one of the response.
+	 * @throws YubiKeyCrcException             If the last report completes a corrupted response.
+	 */
+	boolean accept(@NonNull final byte[] report) throws YubiKeyException {
+		final int status = report[REPORT_DATA_SIZE] & 0xff;
+
+		if ((status & STATUS_RESPONSE_PENDING) == 0)
+			throw new YubiKeyInvalidResponseException("InvalidResponse");
+
+		// A report out of order means that data was lost, waiting for the rest cannot fix that
+		if ((status & SEQUENCE_MASK) != this.sequence)
+			throw new YubiKeyInvalidResponseException("Sequence " + (status & SEQUENCE_MASK) + " instead of " + this.sequence);
+
+		if (this.length < 0) {
+			this.length = (report[0] & 0xff) + 1 + CRC_LENGTH;
+
+			if (this.length > this.target.length)
+				throw new YubiKeyInvalidResponseException("Response of " + this.length + " bytes");
+
+			this.reports = (this.length + REPORT_DATA_SIZE - 1) / REPORT_DATA_SIZE;
+		}
+
+		// The last report is padded, the padding is neither copied nor checksummed
+		final int chunk = Math.min(REPORT_DATA_SIZE, this.length - this.bytesRead);
+
+		System.arraycopy(report, 0, this.target, this.bytesRead, chunk);
+		this.crc.update(report, 0, chunk);
+		this.bytesRead += chunk;
+		this.sequence++;
+
+		if (this.sequence < this.reports)
+			return false;
+
+		if (!this.crc.isResidualOk())
+			throw new YubiKeyCrcException("CRC16");
+
+		return true;
+	}
+}
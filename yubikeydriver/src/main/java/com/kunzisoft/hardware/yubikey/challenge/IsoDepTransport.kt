@@ -0,0 +1,31 @@
+package com.kunzisoft.hardware.yubikey.challenge
+
+import android.nfc.tech.IsoDep
+
+/**
+ * [ApduTransport] over an NFC ISO-DEP (14443-4) tag.
+ */
+class IsoDepTransport(private val tag: IsoDep) : ApduTransport {
+    override val isConnected: Boolean
+        get() = tag.isConnected
+
+    override val maxTransceiveLength: Int
+        get() = tag.maxTransceiveLength
+
+    override val isExtendedLengthApduSupported: Boolean
+        get() = tag.isExtendedLengthApduSupported
+
+    override var timeout: Int
+        get() = tag.timeout
+        set(value) {
+            tag.timeout = value
+        }
+
+    override fun connect() {
+        tag.connect()
+    }
+
+    override fun transceive(apdu: ByteArray): ByteArray {
+        return tag.transceive(apdu)
+    }
+}
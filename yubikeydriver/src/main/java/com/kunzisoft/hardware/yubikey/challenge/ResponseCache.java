@@ -0,0 +1,259 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Short-lived in-memory cache of challenge-responses, keyed by the app that got the response, the
+ * serial number of the key, the slot and the SHA-256 digest of the challenge. A response is only
+ * given back to the app it was given to, so that no app gets the response to a touch made for
+ * another one. Neither the challenges nor the responses are kept in clear: the responses are
+ * encrypted with AES-GCM under a key generated for this cache, which never leaves the memory of
+ * the process and is replaced when the cache is cleared.
+ * <p>
+ * An entry expires a fixed time after it was stored, reading it does not extend its life. When the
+ * cache is full, the least recently used entry is dropped.
+ */
+public final class ResponseCache {
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final int    KEY_SIZE       = 256;
+	private static final int    IV_LENGTH      = 12;
+	private static final int    TAG_LENGTH     = 128;
+
+	private static final class Entry {
+		private final byte[] iv;
+		private final byte[] ciphertext;
+		private final long   expiresAt;
+
+		Entry(final byte[] iv, final byte[] ciphertext, final long expiresAt) {
+			this.iv = iv;
+			this.ciphertext = ciphertext;
+			this.expiresAt = expiresAt;
+		}
+
+		void wipe() {
+			Arrays.fill(this.ciphertext, (byte) 0);
+		}
+	}
+
+	private final long                         ttlNanos;
+	private final int                          maxEntries;
+	private final SecureRandom                 random = new SecureRandom();
+	private final LinkedHashMap<String, Entry> entries;
+	private final AtomicLong                   hits   = new AtomicLong();
+	private final AtomicLong                   misses = new AtomicLong();
+
+	private SecretKey key;
+
+	/**
+	 * @param ttlMillis  Time an entry may be read after it was stored, in milliseconds.
+	 * @param maxEntries Maximum number of entries kept.
+	 */
+	public ResponseCache(final long ttlMillis, final int maxEntries) {
+		if (ttlMillis <= 0 || maxEntries <= 0)
+			throw new IllegalArgumentException("The time to live and the size must be positive");
+
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxEntries = maxEntries;
+		// In access order, so that the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+				if (this.size() <= ResponseCache.this.maxEntries)
+					return false;
+
+				eldest.getValue().wipe();
+
+				return true;
+			}
+		};
+		this.key = generateKey();
+	}
+
+	public long getTimeToLive() {
+		return TimeUnit.NANOSECONDS.toMillis(this.ttlNanos);
+	}
+
+	public int getMaxEntries() {
+		return this.maxEntries;
+	}
+
+	/**
+	 * Gets the response cached for a challenge, counting a hit or a miss.
+	 *
+	 * @param caller       The app asking for the response, e.g. its package name.
+	 * @param serialNumber Serial number of the key.
+	 * @param slot         The slot the challenge is sent to.
+	 * @param challenge    The challenge.
+	 * @return A copy of the response, or null if there is none or it expired.
+	 */
+	@Nullable
+	public synchronized byte[] get(@NonNull final String caller, final int serialNumber, @NonNull final Slot slot, @NonNull final byte[] challenge) {
+		final long   now      = System.nanoTime();
+		final String entryKey = entryKey(caller, serialNumber, slot, challenge);
+		final Entry  entry    = this.entries.get(entryKey);
+
+		if (entry == null || now - entry.expiresAt >= 0) {
+			if (entry != null) {
+				this.entries.remove(entryKey);
+				entry.wipe();
+			}
+
+			this.misses.incrementAndGet();
+
+			return null;
+		}
+
+		try {
+			final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+
+			cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, entry.iv));
+			cipher.updateAAD(entryKey.getBytes(StandardCharsets.UTF_8));
+
+			final byte[] response = cipher.doFinal(entry.ciphertext);
+
+			this.hits.incrementAndGet();
+
+			return response;
+		} catch (final GeneralSecurityException e) {
+			// Not expected with a key of this cache, the entry is useless anyway
+			this.entries.remove(entryKey);
+			entry.wipe();
+			this.misses.incrementAndGet();
+
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the response to a challenge, replacing any previous one.
+	 *
+	 * @param caller       The app the response is given to.
+	 * @param serialNumber Serial number of the key.
+	 * @param slot         The slot the challenge was sent to.
+	 * @param challenge    The challenge.
+	 * @param response     The response, not kept by the cache.
+	 */
+	public synchronized void put(@NonNull final String caller, final int serialNumber, @NonNull final Slot slot, @NonNull final byte[] challenge, @NonNull final byte[] response) {
+		final String entryKey = entryKey(caller, serialNumber, slot, challenge);
+		final byte[] iv       = new byte[IV_LENGTH];
+
+		this.random.nextBytes(iv);
+
+		final byte[] ciphertext;
+
+		try {
+			final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+
+			cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, iv));
+			// Binds the entry to its key, so that it cannot answer another challenge or another app
+			cipher.updateAAD(entryKey.getBytes(StandardCharsets.UTF_8));
+			ciphertext = cipher.doFinal(response);
+		} catch (final GeneralSecurityException e) {
+			// Better no cache than a response kept in clear
+			return;
+		}
+
+		final Entry previous = this.entries.put(entryKey, new Entry(iv, ciphertext, System.nanoTime() + this.ttlNanos));
+
+		if (previous != null)
+			previous.wipe();
+	}
+
+	/**
+	 * Wipes the expired entries.
+	 *
+	 * @return The number of entries left.
+	 */
+	public synchronized int purgeExpired() {
+		final long now = System.nanoTime();
+
+		for (final Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext(); ) {
+			final Entry entry = iterator.next();
+
+			if (now - entry.expiresAt >= 0) {
+				entry.wipe();
+				iterator.remove();
+			}
+		}
+
+		return this.entries.size();
+	}
+
+	/**
+	 * Wipes all the entries and replaces the encryption key, e.g. when the screen is turned off or
+	 * a key is unplugged. The hit and miss counters are kept.
+	 */
+	public synchronized void clear() {
+		for (final Entry entry : this.entries.values())
+			entry.wipe();
+
+		this.entries.clear();
+		this.key = generateKey();
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public void resetCounts() {
+		this.hits.set(0);
+		this.misses.set(0);
+	}
+
+	private static String entryKey(final String caller, final int serialNumber, final Slot slot, final byte[] challenge) {
+		final byte[] digest;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(challenge);
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+
+		// Package names cannot contain a colon, the caller cannot forge the rest of the key
+		final StringBuilder entryKey = new StringBuilder(caller + ":" + serialNumber + ":" + slot.name() + ":");
+
+		for (final byte b : digest)
+			entryKey.append(String.format("%02x", b & 0xff));
+
+		return entryKey.toString();
+	}
+
+	private static SecretKey generateKey() {
+		try {
+			final KeyGenerator generator = KeyGenerator.getInstance("AES");
+
+			generator.init(KEY_SIZE);
+
+			return generator.generateKey();
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+
+/**
+ * Decides whether {@link UsbYubiKey} sends a failed request again, once the YubiKey was reset, and
+ * how long it waits before. Only failures that are {@link YubiKeyException#isRetryable() retryable}
+ * are retried, with a backoff that doubles up to a cap.
+ */
+public class RetryPolicy {
+	public static final RetryPolicy DEFAULT = new RetryPolicy(3, 10, 100);
+	public static final RetryPolicy NONE    = new RetryPolicy(1, 0, 0);
+
+	private final int  maxAttempts;
+	private final long initialBackoff;
+	private final long maxBackoff;
+
+	/**
+	 * @param maxAttempts    Number of attempts including the first one, at least 1.
+	 * @param initialBackoff Wait before the first retry (ms).
+	 * @param maxBackoff     Upper bound of the doubling wait (ms).
+	 */
+	public RetryPolicy(final int maxAttempts, final long initialBackoff, final long maxBackoff) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("At least one attempt is needed");
+
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Checks whether a request is sent again after a failure.
+	 *
+	 * @param e       The failure of the last attempt.
+	 * @param attempt The number of attempts made so far, starting at 1.
+	 * @return true, if the request should be retried.
+	 */
+	public boolean shouldRetry(@NonNull final YubiKeyException e, final int attempt) {
+		return e.isRetryable() && attempt < this.maxAttempts;
+	}
+
+	/**
+	 * Gets the time to wait before a retry.
+	 *
+	 * @param attempt The number of attempts made so far, starting at 1.
+	 * @return Wait in milliseconds.
+	 */
+	public long getBackoff(final int attempt) {
+		// Shift at most 16 times so that the wait cannot overflow before it is capped
+		final long backoff = this.initialBackoff << Math.min(attempt - 1, 16);
+
+		return Math.min(backoff, this.maxBackoff);
+	}
+}
@@ -0,0 +1,282 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyInterruptedException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link YubiKey} that may be shared by several threads: every call is run by the
+ * {@link YubiKeyExecutor} of the key, so that the exchanges of concurrent requests never interleave.
+ * The drivers themselves are not thread-safe.
+ * <p>
+ * The response to a challenge only depends on the key, the slot and the challenge. A challenge
+ * sent while the same one is still waiting for the key does not start another transaction, both
+ * callers get the response of the first one, with a single touch.
+ * <p>
+ * Requests are queued with {@link YubiKeyExecutor.Priority#NORMAL}, unless they are made through
+ * a view returned by {@link #withPriority(YubiKeyExecutor.Priority)}.
+ */
+public class SerializedYubiKey implements YubiKey {
+	private static final AtomicLong savedTransactions = new AtomicLong();
+
+	/**
+	 * A challenge waiting for the key, shared by all the callers that sent it meanwhile.
+	 */
+	private static final class Flight {
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private byte[]           response;
+		private YubiKeyException error;
+
+		void complete(final byte[] response, final YubiKeyException error) {
+			this.response = response;
+			this.error = error;
+			this.done.countDown();
+		}
+	}
+
+	/**
+	 * Identifies a challenge by its slot and its SHA-256 digest. The key is implied, each key has
+	 * its own wrapper.
+	 */
+	private static final class FlightKey {
+		private final Slot   slot;
+		private final byte[] digest;
+
+		FlightKey(final Slot slot, final byte[] challenge) {
+			this.slot = slot;
+
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256").digest(challenge);
+			} catch (final NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof FlightKey))
+				return false;
+
+			final FlightKey other = (FlightKey) o;
+
+			return this.slot == other.slot && Arrays.equals(this.digest, other.digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.slot.hashCode() + Arrays.hashCode(this.digest);
+		}
+	}
+
+	private final YubiKey                  delegate;
+	private final YubiKeyExecutor          executor;
+	private final Map<FlightKey, Flight>   inFlight;
+	private final YubiKeyExecutor.Priority priority;
+
+	/**
+	 * @param delegate The driver of the key, must not be used directly anymore.
+	 * @param name     Name of the thread running the requests.
+	 */
+	public SerializedYubiKey(@NonNull final YubiKey delegate, @NonNull final String name) {
+		this(delegate, new YubiKeyExecutor(delegate, name), new HashMap<>(), YubiKeyExecutor.Priority.NORMAL);
+	}
+
+	private SerializedYubiKey(final YubiKey delegate, final YubiKeyExecutor executor, final Map<FlightKey, Flight> inFlight,
+							  final YubiKeyExecutor.Priority priority) {
+		this.delegate = delegate;
+		this.executor = executor;
+		this.inFlight = inFlight;
+		this.priority = priority;
+	}
+
+	/**
+	 * Gets a view of this key that queues its requests with another priority, e.g. ahead of the
+	 * background requests when the user is waiting. The view shares the queue and the challenges
+	 * waiting for the key with this instance.
+	 *
+	 * @param priority Priority of the requests made through the view.
+	 * @return The view, or this instance if it already has the priority.
+	 */
+	@NonNull
+	public SerializedYubiKey withPriority(@NonNull final YubiKeyExecutor.Priority priority) {
+		if (priority == this.priority)
+			return this;
+
+		return new SerializedYubiKey(this.delegate, this.executor, this.inFlight, priority);
+	}
+
+	@NonNull
+	public YubiKeyExecutor.Priority getPriority() {
+		return this.priority;
+	}
+
+	/**
+	 * Gets the driver that runs the requests, e.g. to tell the transport of the key.
+	 *
+	 * @return The wrapped driver.
+	 */
+	@NonNull
+	public YubiKey getDelegate() {
+		return this.delegate;
+	}
+
+	@NonNull
+	public YubiKeyExecutor getExecutor() {
+		return this.executor;
+	}
+
+	@NonNull
+	@Override
+	public byte[] challengeResponse(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		return this.challengeResponse(slot, challenge, this.priority);
+	}
+
+	/**
+	 * Same as {@link #challengeResponse(Slot, byte[])}, queued with the given priority. If the same
+	 * challenge is already waiting, the request joins it and keeps its priority.
+	 *
+	 * @param slot      The YubiKey feature slot to use.
+	 * @param challenge Challenge bytes to send to the YubiKey.
+	 * @param priority  Priority of the request among the requests waiting for the key.
+	 * @return The response from the YubiKey.
+	 */
+	@NonNull
+	public byte[] challengeResponse(@NonNull final Slot slot, @NonNull final byte[] challenge, @NonNull final YubiKeyExecutor.Priority priority) throws YubiKeyException {
+		final FlightKey key = new FlightKey(slot, challenge);
+
+		while (true) {
+			final Flight  flight;
+			final boolean first;
+
+			synchronized (this.inFlight) {
+				final Flight pending = this.inFlight.get(key);
+
+				first = pending == null;
+				flight = first ? new Flight() : pending;
+
+				if (first)
+					this.inFlight.put(key, flight);
+			}
+
+			if (first)
+				return this.send(key, flight, slot, challenge, priority);
+
+			try {
+				flight.done.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new YubiKeyInterruptedException("Interrupted");
+			}
+
+			// The first caller gave up, this one still wants the response
+			if (flight.error instanceof YubiKeyInterruptedException)
+				continue;
+			if (flight.error != null)
+				throw flight.error;
+
+			savedTransactions.incrementAndGet();
+
+			// Each caller gets its own copy, e.g. to wipe it after use
+			return flight.response.clone();
+		}
+	}
+
+	private byte[] send(final FlightKey key, final Flight flight, final Slot slot, final byte[] challenge, final YubiKeyExecutor.Priority priority) throws YubiKeyException {
+		byte[]           response = null;
+		YubiKeyException error    = null;
+
+		try {
+			response = this.executor.execute(priority, yubiKey -> yubiKey.challengeResponse(slot, challenge));
+			return response.clone();
+		} catch (final YubiKeyException e) {
+			error = e;
+			throw e;
+		} catch (final RuntimeException | Error e) {
+			error = new YubiKeyException(String.valueOf(e), e);
+			throw e;
+		} finally {
+			// Challenges sent from now on need a transaction of their own
+			synchronized (this.inFlight) {
+				this.inFlight.remove(key);
+			}
+
+			flight.complete(response, error);
+		}
+	}
+
+	/**
+	 * Runs the request without joining the same challenge waiting for the key, which may wait for
+	 * the user.
+	 */
+	@NonNull
+	@Override
+	public byte[] challengeResponseNonBlocking(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		return this.executor.execute(this.priority, yubiKey -> yubiKey.challengeResponseNonBlocking(slot, challenge));
+	}
+
+	/**
+	 * Gets the number of transactions saved since the start of the process, i.e. the number of
+	 * requests, on any key, that got the response of the same challenge sent by another caller.
+	 *
+	 * @return The number of saved transactions.
+	 */
+	public static long getSavedTransactionCount() {
+		return savedTransactions.get();
+	}
+
+	public static void resetSavedTransactionCount() {
+		savedTransactions.set(0);
+	}
+
+	@NonNull
+	@Override
+	public List<byte[]> challengeResponse(@NonNull final List<ChallengeRequest> requests) throws YubiKeyException {
+		// The batch runs as one operation, so that no other request gets between its challenges
+		return this.executor.execute(this.priority, yubiKey -> yubiKey.challengeResponse(requests));
+	}
+
+	/**
+	 * Sets the listener of the wrapped driver right away, without waiting for the running request.
+	 * Like for the drivers, it should be set before requests are made.
+	 */
+	@Override
+	public void setTransactionListener(@Nullable final TransactionListener listener) {
+		this.delegate.setTransactionListener(listener);
+	}
+
+	@Nullable
+	@Override
+	public DeviceCapabilities getCapabilities() throws YubiKeyException {
+		return this.executor.execute(this.priority, YubiKey::getCapabilities);
+	}
+
+	/**
+	 * Lets the requests already queued finish, then stops the thread running them.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Lets the requests already queued finish, then stops the thread running them and runs an
+	 * action, see {@link YubiKeyExecutor#shutdown(Runnable)}.
+	 *
+	 * @param onTerminated Action run once no request uses the key anymore, e.g. to close its connection.
+	 */
+	public void shutdown(@Nullable final Runnable onTerminated) {
+		this.executor.shutdown(onTerminated);
+	}
+}
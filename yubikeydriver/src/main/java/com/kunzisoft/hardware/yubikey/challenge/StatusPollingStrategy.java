@@ -0,0 +1,44 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides how often {@link UsbYubiKey} polls the status report of the YubiKey while it waits for a
+ * status flag to change.
+ */
+public interface StatusPollingStrategy {
+	/**
+	 * The states a YubiKey may be waited on. Each phase has its own poll counter and time budget.
+	 */
+	enum Phase {
+		/**
+		 * Waiting for the YubiKey to accept the next chunk of a write.
+		 */
+		WRITE_READY,
+		/**
+		 * Waiting for the YubiKey to compute a response.
+		 */
+		RESPONSE_PENDING,
+		/**
+		 * Waiting for the user to touch the YubiKey.
+		 */
+		USER_TOUCH
+	}
+
+	/**
+	 * Gets the time to wait before a status poll.
+	 *
+	 * @param phase The phase that is currently waited on.
+	 * @param poll  The number of polls already issued in this phase.
+	 * @return Interval in milliseconds, may be 0 to poll immediately.
+	 */
+	long getPollInterval(@NonNull Phase phase, int poll);
+
+	/**
+	 * Gets the total time that may be spent waiting in a phase before giving up.
+	 *
+	 * @param phase The phase that is currently waited on.
+	 * @return Budget in milliseconds.
+	 */
+	long getBudget(@NonNull Phase phase);
+}
@@ -0,0 +1,17 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the {@link TransactionMetrics} of every transaction of a {@link YubiKey}, to find out
+ * where the time of a request is spent. Drivers do not measure anything while no listener is set.
+ */
+public interface TransactionListener {
+	/**
+	 * Called on the thread of the request once a transaction is done, successful or not. Should
+	 * return quickly, as the request does not complete before.
+	 *
+	 * @param metrics The metrics of the transaction, only valid during the call.
+	 */
+	void onTransactionFinished(@NonNull TransactionMetrics metrics);
+}
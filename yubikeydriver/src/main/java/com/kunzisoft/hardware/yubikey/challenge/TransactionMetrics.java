@@ -0,0 +1,188 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Timings and counters of a single transaction with a YubiKey, e.g. one challenge-response,
+ * reported to a {@link TransactionListener}.
+ * <p>
+ * A driver reuses one instance for all its transactions, so a listener must copy what it needs
+ * before returning.
+ */
+public final class TransactionMetrics {
+	/**
+	 * The steps a transaction is made of. Not all the phases apply to every transport.
+	 */
+	public enum Phase {
+		/**
+		 * Claiming the USB interface (OTP HID).
+		 */
+		CLAIM,
+		/**
+		 * Opening the connection to the key (NFC, CCID).
+		 */
+		CONNECT,
+		/**
+		 * Sending the chunks of a frame (OTP HID), counted per chunk.
+		 */
+		WRITE,
+		/**
+		 * Polling until the key accepts the next chunk (OTP HID), counted per poll.
+		 */
+		WRITE_READY,
+		/**
+		 * Polling until the key has computed the response (OTP HID), counted per poll.
+		 */
+		RESPONSE_PENDING,
+		/**
+		 * Polling while the key waits for a touch (OTP HID), counted per poll.
+		 */
+		USER_TOUCH,
+		/**
+		 * Reading the reports of the response (OTP HID), counted per report.
+		 */
+		READ,
+		/**
+		 * SELECT of the challenge-response applet (NFC, CCID), counted per round trip.
+		 */
+		SELECT,
+		/**
+		 * PUT of the challenge (NFC, CCID), counted per round trip.
+		 */
+		PUT
+	}
+
+	/**
+	 * The errors counted by a transaction.
+	 */
+	public enum Error {
+		/**
+		 * A response failed its checksum.
+		 */
+		CRC,
+		/**
+		 * A response was malformed or not what the protocol expects.
+		 */
+		INVALID_RESPONSE,
+		/**
+		 * The key or the user did not answer in time.
+		 */
+		TIMEOUT,
+		/**
+		 * The key answered with an error status word.
+		 */
+		STATUS_WORD,
+		/**
+		 * The transport failed, e.g. the key was unplugged or the tag lost.
+		 */
+		IO
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+	private static final Error[] ERRORS = Error.values();
+
+	private final long[] durations   = new long[PHASES.length];
+	private final int[]  counts      = new int[PHASES.length];
+	private final int[]  errorCounts = new int[ERRORS.length];
+
+	private long    startTime;
+	private long    totalDuration;
+	private int     bytesSent;
+	private int     bytesReceived;
+	private boolean success;
+
+	void begin() {
+		Arrays.fill(this.durations, 0);
+		Arrays.fill(this.counts, 0);
+		Arrays.fill(this.errorCounts, 0);
+		this.bytesSent = 0;
+		this.bytesReceived = 0;
+		this.success = false;
+		this.totalDuration = 0;
+		this.startTime = System.nanoTime();
+	}
+
+	void end(final boolean success) {
+		this.success = success;
+		this.totalDuration = System.nanoTime() - this.startTime;
+	}
+
+	void addDuration(@NonNull final Phase phase, final long nanos) {
+		this.durations[phase.ordinal()] += nanos;
+	}
+
+	void addDurationSince(@NonNull final Phase phase, final long startNanos) {
+		this.durations[phase.ordinal()] += System.nanoTime() - startNanos;
+	}
+
+	void count(@NonNull final Phase phase) {
+		this.counts[phase.ordinal()]++;
+	}
+
+	void countError(@NonNull final Error error) {
+		this.errorCounts[error.ordinal()]++;
+	}
+
+	void addBytesSent(final int bytes) {
+		this.bytesSent += bytes;
+	}
+
+	void addBytesReceived(final int bytes) {
+		this.bytesReceived += bytes;
+	}
+
+	/**
+	 * @param phase A phase of the transaction.
+	 * @return Time spent in the phase in nanoseconds.
+	 */
+	public long getDuration(@NonNull final Phase phase) {
+		return this.durations[phase.ordinal()];
+	}
+
+	/**
+	 * @param phase A phase of the transaction.
+	 * @return How often the phase was entered, or the number of chunks, polls or round trips as
+	 * documented by the phase.
+	 */
+	public int getCount(@NonNull final Phase phase) {
+		return this.counts[phase.ordinal()];
+	}
+
+	/**
+	 * @param error A kind of error.
+	 * @return How often the error occurred during the transaction.
+	 */
+	public int getErrorCount(@NonNull final Error error) {
+		return this.errorCounts[error.ordinal()];
+	}
+
+	/**
+	 * @return Duration of the whole transaction in nanoseconds.
+	 */
+	public long getTotalDuration() {
+		return this.totalDuration;
+	}
+
+	/**
+	 * @return Number of bytes sent to the key, including protocol overhead.
+	 */
+	public int getBytesSent() {
+		return this.bytesSent;
+	}
+
+	/**
+	 * @return Number of bytes received from the key, including protocol overhead.
+	 */
+	public int getBytesReceived() {
+		return this.bytesReceived;
+	}
+
+	/**
+	 * @return true, if the transaction returned a response.
+	 */
+	public boolean isSuccess() {
+		return this.success;
+	}
+}
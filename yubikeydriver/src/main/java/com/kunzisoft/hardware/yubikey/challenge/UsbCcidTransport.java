@@ -0,0 +1,325 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ApduTransport} over the CCID (smart card) interface of a USB YubiKey. Each APDU is sent
+ * in a single PC_to_RDR_XfrBlock message on the bulk OUT endpoint and answered by a
+ * RDR_to_PC_DataBlock message on the bulk IN endpoint.
+ */
+public class UsbCcidTransport implements ApduTransport {
+	private static final int CCID_HEADER_LENGTH = 10;
+
+	private static final byte PC_TO_RDR_ICC_POWER_ON  = 0x62;
+	private static final byte PC_TO_RDR_ICC_POWER_OFF = 0x63;
+	private static final byte PC_TO_RDR_XFR_BLOCK     = 0x6f;
+	private static final byte RDR_TO_PC_DATA_BLOCK    = (byte) 0x80;
+
+	private static final int COMMAND_STATUS_MASK           = 0xc0;
+	private static final int COMMAND_STATUS_FAILED         = 0x40;
+	private static final int COMMAND_STATUS_TIME_EXTENSION = 0x80;
+
+	private static final int DESCRIPTOR_TYPE_INTERFACE = 0x04;
+	private static final int DESCRIPTOR_TYPE_CCID      = 0x21;
+	private static final int CCID_DESCRIPTOR_LENGTH    = 0x36;
+
+	private static final int FEATURE_EXCHANGE_MASK           = 0x00070000;
+	private static final int FEATURE_EXCHANGE_SHORT_EXTENDED = 0x00040000;
+
+	private static final int SHORT_APDU_MAX_LENGTH = 261;
+	private static final int DEFAULT_TIMEOUT_MS    = 2000;
+	/**
+	 * Longest wait for an answer across time extensions, longer than the touch timeout of a key.
+	 */
+	private static final int MAX_TIME_EXTENSION_MS = 30000;
+
+	private final UsbDeviceConnection connection;
+	private final UsbInterface        ccidInterface;
+	private final UsbEndpoint         bulkIn;
+	private final UsbEndpoint         bulkOut;
+
+	private boolean claimed             = false;
+	private boolean poweredOn           = false;
+	private boolean descriptorParsed    = false;
+	private boolean extendedLength      = false;
+	private int     maxTransceiveLength = SHORT_APDU_MAX_LENGTH;
+	private int     timeout             = DEFAULT_TIMEOUT_MS;
+	private byte    sequence            = 0;
+
+	private byte[] commandBuffer  = new byte[CCID_HEADER_LENGTH + SHORT_APDU_MAX_LENGTH];
+	private byte[] responseBuffer = new byte[CCID_HEADER_LENGTH + SHORT_APDU_MAX_LENGTH];
+
+	/**
+	 * @param device     A USB device exposing a CCID interface, see {@link #hasCcidInterface(UsbDevice)}.
+	 * @param connection Open connection to the device.
+	 */
+	public UsbCcidTransport(@NonNull final UsbDevice device, @NonNull final UsbDeviceConnection connection) {
+		this.connection = connection;
+		this.ccidInterface = findCcidInterface(device);
+
+		if (this.ccidInterface == null)
+			throw new IllegalArgumentException("No CCID interface");
+
+		UsbEndpoint bulkIn  = null;
+		UsbEndpoint bulkOut = null;
+
+		for (int i = 0; i < this.ccidInterface.getEndpointCount(); i++) {
+			final UsbEndpoint endpoint = this.ccidInterface.getEndpoint(i);
+
+			if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK)
+				continue;
+
+			if (endpoint.getDirection() == UsbConstants.USB_DIR_IN)
+				bulkIn = endpoint;
+			else
+				bulkOut = endpoint;
+		}
+
+		if (bulkIn == null || bulkOut == null)
+			throw new IllegalArgumentException("No bulk endpoints on the CCID interface");
+
+		this.bulkIn = bulkIn;
+		this.bulkOut = bulkOut;
+	}
+
+	/**
+	 * Checks whether a USB device exposes a CCID interface.
+	 *
+	 * @param device The USB device.
+	 * @return true, if the device has a CCID interface.
+	 */
+	public static boolean hasCcidInterface(@NonNull final UsbDevice device) {
+		return findCcidInterface(device) != null;
+	}
+
+	@Nullable
+	private static UsbInterface findCcidInterface(final UsbDevice device) {
+		for (int i = 0; i < device.getInterfaceCount(); i++) {
+			final UsbInterface usbInterface = device.getInterface(i);
+
+			if (usbInterface.getInterfaceClass() == UsbConstants.USB_CLASS_CSCID)
+				return usbInterface;
+		}
+
+		return null;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.poweredOn;
+	}
+
+	@Override
+	public int getMaxTransceiveLength() {
+		return this.maxTransceiveLength;
+	}
+
+	@Override
+	public boolean isExtendedLengthApduSupported() {
+		return this.extendedLength;
+	}
+
+	@Override
+	public int getTimeout() {
+		return this.timeout;
+	}
+
+	@Override
+	public void setTimeout(final int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Claims the CCID interface and powers the card on.
+	 */
+	@Override
+	public void connect() throws IOException {
+		if (!this.claimed) {
+			if (!this.connection.claimInterface(this.ccidInterface, true))
+				throw new IOException("Failed to claim interface");
+
+			this.claimed = true;
+		}
+
+		if (!this.descriptorParsed) {
+			this.parseCcidDescriptor();
+			this.descriptorParsed = true;
+		}
+
+		this.exchange(PC_TO_RDR_ICC_POWER_ON, null, 0);
+		this.poweredOn = true;
+	}
+
+	/**
+	 * Powers the card off and releases the CCID interface.
+	 */
+	public void close() {
+		if (this.poweredOn) {
+			try {
+				this.exchange(PC_TO_RDR_ICC_POWER_OFF, null, 0);
+			} catch (final IOException ignored) {
+				// The key may have been unplugged already
+			}
+
+			this.poweredOn = false;
+		}
+
+		if (this.claimed) {
+			this.connection.releaseInterface(this.ccidInterface);
+			this.claimed = false;
+		}
+	}
+
+	@NonNull
+	@Override
+	public byte[] transceive(@NonNull final byte[] apdu) throws IOException {
+		final int length = this.exchange(PC_TO_RDR_XFR_BLOCK, apdu, apdu.length);
+
+		return Arrays.copyOfRange(this.responseBuffer, CCID_HEADER_LENGTH, CCID_HEADER_LENGTH + length);
+	}
+
+	/**
+	 * Sends a CCID message and waits for its answer, skipping time extension requests for at most
+	 * {@link #MAX_TIME_EXTENSION_MS}. Answers left over from an abandoned exchange are skipped.
+	 *
+	 * @return Length of the data of the answer, found after the header in {@link #responseBuffer}.
+	 * @throws InterruptedIOException If the calling thread was interrupted while the key asked for
+	 *                                more time.
+	 */
+	private int exchange(final byte messageType, @Nullable final byte[] data, final int length) throws IOException {
+		if (this.commandBuffer.length < CCID_HEADER_LENGTH + length)
+			this.commandBuffer = new byte[CCID_HEADER_LENGTH + length];
+
+		final byte   sequence = this.sequence++;
+		final byte[] command  = this.commandBuffer;
+
+		Arrays.fill(command, 0, CCID_HEADER_LENGTH, (byte) 0);
+		command[0] = messageType;
+		writeLittleEndian(command, 1, length);
+		command[6] = sequence;
+
+		if (data != null)
+			System.arraycopy(data, 0, command, CCID_HEADER_LENGTH, length);
+
+		if (this.connection.bulkTransfer(this.bulkOut, command, 0, CCID_HEADER_LENGTH + length, this.timeout) != CCID_HEADER_LENGTH + length)
+			throw new IOException("bulkTransfer failed");
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_TIME_EXTENSION_MS);
+
+		while (true) {
+			final int dataLength = this.receive();
+			final int status     = this.responseBuffer[7] & COMMAND_STATUS_MASK;
+			final int age        = (byte) (sequence - this.responseBuffer[6]);
+
+			// An earlier exchange was given up while the key was still busy with it
+			if (age > 0)
+				continue;
+
+			if (age != 0)
+				throw new IOException("Unexpected CCID sequence number");
+
+			if (status == COMMAND_STATUS_TIME_EXTENSION) {
+				// The key needs more time, e.g. waiting for a touch, unless the request was cancelled
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Interrupted");
+
+				if (System.nanoTime() - deadline >= 0)
+					throw new IOException("No CCID answer within " + MAX_TIME_EXTENSION_MS + " ms");
+
+				continue;
+			}
+
+			if (status == COMMAND_STATUS_FAILED || this.responseBuffer[0] != RDR_TO_PC_DATA_BLOCK && messageType != PC_TO_RDR_ICC_POWER_OFF)
+				throw new IOException("CCID command failed: " + (this.responseBuffer[8] & 0xff));
+
+			return dataLength;
+		}
+	}
+
+	/**
+	 * Reads one CCID message into {@link #responseBuffer}, spanning several bulk transfers if needed.
+	 *
+	 * @return Length of the data following the header.
+	 */
+	private int receive() throws IOException {
+		int received = 0;
+		int expected = CCID_HEADER_LENGTH;
+
+		while (received < expected) {
+			final int bytes = this.connection.bulkTransfer(this.bulkIn, this.responseBuffer, received, this.responseBuffer.length - received, this.timeout);
+
+			if (bytes <= 0)
+				throw new IOException("bulkTransfer failed: " + bytes);
+
+			received += bytes;
+
+			if (received >= CCID_HEADER_LENGTH && expected == CCID_HEADER_LENGTH) {
+				expected = CCID_HEADER_LENGTH + readLittleEndian(this.responseBuffer, 1);
+
+				if (expected > this.responseBuffer.length)
+					this.responseBuffer = Arrays.copyOf(this.responseBuffer, expected);
+			}
+		}
+
+		return expected - CCID_HEADER_LENGTH;
+	}
+
+	/**
+	 * Reads the exchange level and the maximum message length from the CCID class descriptor. The
+	 * defaults (short APDUs only) are kept if the descriptor cannot be found.
+	 */
+	private void parseCcidDescriptor() {
+		final byte[] descriptors = this.connection.getRawDescriptors();
+
+		if (descriptors == null)
+			return;
+
+		boolean ccidInterface = false;
+
+		for (int offset = 0; offset + 1 < descriptors.length; ) {
+			final int length = descriptors[offset] & 0xff;
+			final int type   = descriptors[offset + 1] & 0xff;
+
+			if (length == 0 || offset + length > descriptors.length)
+				return;
+
+			if (type == DESCRIPTOR_TYPE_INTERFACE && length > 5) {
+				ccidInterface = (descriptors[offset + 5] & 0xff) == UsbConstants.USB_CLASS_CSCID;
+			} else if (type == DESCRIPTOR_TYPE_CCID && ccidInterface && length >= CCID_DESCRIPTOR_LENGTH) {
+				final int features         = readLittleEndian(descriptors, offset + 40);
+				final int maxMessageLength = readLittleEndian(descriptors, offset + 44);
+
+				this.extendedLength = (features & FEATURE_EXCHANGE_MASK) == FEATURE_EXCHANGE_SHORT_EXTENDED;
+				if (maxMessageLength > CCID_HEADER_LENGTH)
+					this.maxTransceiveLength = maxMessageLength - CCID_HEADER_LENGTH;
+
+				return;
+			}
+
+			offset += length;
+		}
+	}
+
+	private static int readLittleEndian(final byte[] buffer, final int offset) {
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8) | ((buffer[offset + 2] & 0xff) << 16) | ((buffer[offset + 3] & 0xff) << 24);
+	}
+
+	private static void writeLittleEndian(final byte[] buffer, final int offset, final int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >> 8);
+		buffer[offset + 2] = (byte) (value >> 16);
+		buffer[offset + 3] = (byte) (value >> 24);
+	}
+}
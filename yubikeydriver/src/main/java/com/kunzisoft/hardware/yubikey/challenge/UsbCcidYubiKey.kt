@@ -0,0 +1,144 @@
+package com.kunzisoft.hardware.yubikey.challenge
+
+import android.hardware.usb.UsbConstants
+import android.hardware.usb.UsbDevice
+import android.hardware.usb.UsbDeviceConnection
+import com.kunzisoft.hardware.yubikey.Slot
+import com.kunzisoft.hardware.yubikey.YubiKeyConnectionException
+import com.kunzisoft.hardware.yubikey.YubiKeyException
+
+/**
+ * USB YubiKey driver implementation using the CCID interface. A challenge costs one bulk exchange
+ * per APDU instead of the many control transfers of the OTP HID interface.
+ *
+ * If the YubiKey does not offer the challenge-response applet over CCID, or its CCID interface
+ * cannot be claimed or powered on, e.g. because another app holds it, the driver falls back to
+ * the OTP HID interface of the same device when there is one.
+ */
+class UsbCcidYubiKey private constructor(
+    private val transport: UsbCcidTransport,
+    private val otpFallback: UsbYubiKey?
+) : ApduYubiKey(transport) {
+
+    /**
+     * Should only be instantiated by the [com.kunzisoft.hardware.key.ConnectionManager].
+     *
+     * @param device     UsbDevice instance for the connected YubiKey, must expose a CCID interface.
+     * @param connection UsbConnection instance for the connected YubiKey.
+     */
+    constructor(device: UsbDevice, connection: UsbDeviceConnection) : this(
+        UsbCcidTransport(device, connection),
+        if (device.interfaceCount > 0
+            && device.getInterface(0).interfaceClass == UsbConstants.USB_CLASS_HID)
+            UsbYubiKey(device, connection)
+        else
+            null
+    )
+
+    private var fallbackActive = false
+    private var sessionCount = 0
+
+    /**
+     * Keeps the CCID interface claimed and the card powered until the returned session is closed,
+     * instead of connecting for each request.
+     *
+     * @return An open session, to be closed by the caller.
+     */
+    @Synchronized
+    fun openSession(): AutoCloseable {
+        sessionCount++
+        return object : AutoCloseable {
+            private var closed = false
+
+            override fun close() {
+                if (closed)
+                    return
+                closed = true
+                closeSession()
+            }
+        }
+    }
+
+    @Synchronized
+    private fun closeSession() {
+        if (--sessionCount == 0) {
+            disconnect()
+        }
+    }
+
+    override fun setTransactionListener(listener: TransactionListener?) {
+        super.setTransactionListener(listener)
+        otpFallback?.setTransactionListener(listener)
+    }
+
+    @Synchronized
+    override fun onRequestDone() {
+        if (sessionCount == 0) {
+            disconnect()
+        }
+    }
+
+    private fun disconnect() {
+        transport.close()
+        invalidateSelection()
+    }
+
+    @Throws(YubiKeyException::class)
+    override fun challengeResponse(slot: Slot, challenge: ByteArray): ByteArray {
+        if (fallbackActive && otpFallback != null) {
+            return otpFallback.challengeResponse(slot, challenge)
+        }
+        return try {
+            super.challengeResponse(slot, challenge)
+        } catch (e: YubiKeyException) {
+            fallbackOrThrow(e).challengeResponse(slot, challenge)
+        }
+    }
+
+    /**
+     * Only answered over the OTP HID interface once the driver fell back to it, the CCID interface
+     * does not tell in advance whether the key waits for a touch.
+     */
+    @Throws(YubiKeyException::class)
+    override fun challengeResponseNonBlocking(slot: Slot, challenge: ByteArray): ByteArray {
+        if (fallbackActive && otpFallback != null) {
+            return otpFallback.challengeResponseNonBlocking(slot, challenge)
+        }
+        return super.challengeResponseNonBlocking(slot, challenge)
+    }
+
+    @Throws(YubiKeyException::class)
+    override fun challengeResponse(requests: List<ChallengeRequest>): List<ByteArray> {
+        if (fallbackActive && otpFallback != null) {
+            return otpFallback.challengeResponse(requests)
+        }
+        return try {
+            super.challengeResponse(requests)
+        } catch (e: YubiKeyException) {
+            fallbackOrThrow(e).challengeResponse(requests)
+        }
+    }
+
+    @Throws(YubiKeyException::class)
+    override fun getCapabilities(): DeviceCapabilities? {
+        if (fallbackActive && otpFallback != null) {
+            return otpFallback.getCapabilities()
+        }
+        return try {
+            super.getCapabilities()
+        } catch (e: YubiKeyException) {
+            fallbackOrThrow(e).getCapabilities()
+        }
+    }
+
+    @Throws(YubiKeyException::class)
+    private fun fallbackOrThrow(e: YubiKeyException): UsbYubiKey {
+        // A failure once the card is powered on is reported, the key was probably unplugged
+        val connectionFailed = e is YubiKeyConnectionException && connectFailed
+        if (!(challengeAppletMissing || connectionFailed) || otpFallback == null) {
+            throw e
+        }
+        fallbackActive = true
+        return otpFallback
+    }
+}
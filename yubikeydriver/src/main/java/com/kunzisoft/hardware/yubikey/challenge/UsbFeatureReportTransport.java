@@ -0,0 +1,46 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+import androidx.annotation.NonNull;
+
+/**
+ * {@link FeatureReportTransport} over the first interface of a USB device, using HID class
+ * control transfers.
+ */
+public class UsbFeatureReportTransport implements FeatureReportTransport {
+	private final UsbDevice           device;
+	private final UsbDeviceConnection connection;
+
+	private static final int HID_GET_REPORT      = 0x1;
+	private static final int HID_SET_REPORT      = 0x9;
+	private static final int REPORT_TYPE_FEATURE = 0b11 << 8;
+
+	public UsbFeatureReportTransport(@NonNull final UsbDevice device, @NonNull final UsbDeviceConnection connection) {
+		this.device = device;
+		this.connection = connection;
+	}
+
+	@Override
+	public boolean claim() {
+		return this.connection.claimInterface(this.device.getInterface(0), true); // We need to detach the kernel driver from the device to get exclusive access
+	}
+
+	@Override
+	public void release() {
+		this.connection.releaseInterface(this.device.getInterface(0)); // We probably don't really need to care about errors here
+	}
+
+	@Override
+	public int getFeatureReport(@NonNull final byte[] report, final int length, final int timeout) {
+		return this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_IN | 0x1, HID_GET_REPORT, REPORT_TYPE_FEATURE, 0, report, length, timeout);
+	}
+
+	@Override
+	public int setFeatureReport(@NonNull final byte[] report, final int length, final int timeout) {
+		//noinspection PointlessBitwiseExpression
+		return this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_OUT | 0x1, HID_SET_REPORT, REPORT_TYPE_FEATURE, 0, report, length, timeout);
+	}
+}
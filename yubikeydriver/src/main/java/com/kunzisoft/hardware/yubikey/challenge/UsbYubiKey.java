@@ -1,22 +1,68 @@
 package com.kunzisoft.hardware.yubikey.challenge;
 
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.tracing.Trace;
 
+import com.kunzisoft.hardware.yubikey.Crc16;
 import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyCrcException;
 import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyInterruptedException;
+import com.kunzisoft.hardware.yubikey.YubiKeyInvalidResponseException;
+import com.kunzisoft.hardware.yubikey.YubiKeyTimeoutException;
+import com.kunzisoft.hardware.yubikey.YubiKeyTouchRequiredException;
+import com.kunzisoft.hardware.yubikey.YubiKeyTransferException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * USB YubiKey driver implementation.
  */
 public class UsbYubiKey implements YubiKey {
-	private final UsbDeviceConnection connection;
-	private final UsbDevice           device;
+	private final FeatureReportTransport transport;
+	@Nullable
+	private final UsbDevice              device;
+
+	private StatusPollingStrategy pollingStrategy = BoundedPollingStrategy.DEFAULT;
+	private RetryPolicy           retryPolicy     = RetryPolicy.DEFAULT;
+	private WriteMode             writeMode       = WriteMode.PIPELINED;
+	private int                   claimCount      = 0;
+
+	// Both null unless a listener is set, so that nothing is measured by default
+	@Nullable
+	private TransactionListener transactionListener;
+	@Nullable
+	private TransactionMetrics  metrics;
+
+	// Probed at most once per connection
+	@Nullable
+	private DeviceCapabilities capabilities;
+	@Nullable
+	private Integer            serialNumber;
+
+	// Whether the key asked for a touch during the current transaction
+	private boolean userPresenceRequested;
+
+	// Buffers reused by every transaction on this connection so that no heap allocation is needed
+	private final byte[] frame          = new byte[WRITE_FRAME_LENGTH];
+	private final byte[] writeReport    = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+	private final byte[] statusReport   = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+	private final byte[] responseBuffer = new byte[RESPONSE_BUFFER_LENGTH];
+
+	private final HidResponseDecoder responseDecoder = new HidResponseDecoder();
 
 	/**
 	 * The USB vendor ID assigned to Yubico.
@@ -24,12 +70,12 @@ public class UsbYubiKey implements YubiKey {
 	@SuppressWarnings("WeakerAccess")
 	public static final  int  YUBICO_USB_VENDOR_ID                = 0x1050;
 	private static final int  YUBIKEY_OPERATION_TIMEOUT_MS        = 2000;
-	private static final int  YUBIKEY_USER_INTERACTION_TIMEOUT_MS = 256000;
-	private static final char YUBIKEY_CRC_16_OK_RESIDUAL          = 0xf0b8;
+	/**
+	 * Longest wait for the serial number while probing the capabilities. A key that hides it never
+	 * answers, one that shows it answers within a few polls.
+	 */
+	private static final long SERIAL_PROBE_BUDGET_MS              = 250;
 
-	private static final int  HID_GET_REPORT                = 0x1;
-	private static final int  HID_SET_REPORT                = 0x9;
-	private static final int  REPORT_TYPE_FEATURE           = 0b11 << 8;
 	private static final int  REPORT_TYPE_FEATURE_DATA_SIZE = 8;
 	private static final byte DUMMY_REPORT                  = (byte) 0x8f;
 
@@ -37,7 +83,15 @@ public class UsbYubiKey implements YubiKey {
 	private static final short STATUS_FLAG_RESPONSE_PENDING = 0x40;
 	private static final short STATUS_FLAG_WRITE            = 0x80;
 
-	private static final byte WRITE_PAYLOAD_LENGTH = 64;
+	private static final byte WRITE_PAYLOAD_LENGTH     = 64;
+	private static final int  WRITE_FRAME_LENGTH       = WRITE_PAYLOAD_LENGTH + 6;
+	private static final int  RESPONSE_BUFFER_LENGTH   = REPORT_TYPE_FEATURE_DATA_SIZE * 8;
+	private static final int  RESPONSE_LENGTH_PREFIXED = -1;
+
+	private static final String TRACE_USER_TOUCH = "YubiKey.waitForTouch";
+
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+	private static final byte[] DUMMY_PAYLOAD = {0, 0, 0, 0, 0, 0, 0, DUMMY_REPORT};
 
 	/**
 	 * An enumeration of all available YubiKey types. (Taken from Yubico's C driver implementation)
@@ -67,8 +121,27 @@ public class UsbYubiKey implements YubiKey {
 
 		ONLYKEY(0x1d50, 0x60fc, "OnlyKey", ""),
 
+		OTP_HID_COMPATIBLE(-0x1, -0x1, "OTP-HID compatible key", ""),
+
 		UNKNOWN(-0x1, -0x1, "Unknown Device", "");
 
+		private static final String XML_TAG_DEVICE      = "usb-device";
+		private static final String XML_ATTR_VENDOR_ID  = "vendor-id";
+		private static final String XML_ATTR_PRODUCT_ID = "product-id";
+		private static final String XML_ATTR_TYPE       = "type";
+
+		// Indexes of the known devices by (vendor ID, product ID) and of the wildcard entries by vendor ID
+		private static final Map<Long, Type>    DEVICE_TYPES     = new ConcurrentHashMap<>();
+		private static final Map<Integer, Type> VENDOR_FALLBACKS = new ConcurrentHashMap<>();
+
+		static {
+			for (final Type type : Type.values()) {
+				if (type.vendorID != -0x1) {
+					registerDeviceType(type.vendorID, type.productID, type);
+				}
+			}
+		}
+
 		private final int    vendorID;
 		private final int    productID;
 		private final String name;
@@ -117,15 +190,69 @@ public class UsbYubiKey implements YubiKey {
 			return this.version;
 		}
 
-		public static Type lookupDeviceType(@NonNull final UsbDevice device) {
-			for (final Type type : Type.values()) {
-				if (type.getVendorID() == device.getVendorId() &&
-						(type.getProductID() == device.getProductId() || type.getProductID() == -0x1)) {
-					return type;
+		private static long deviceKey(final int vendorID, final int productID) {
+			return ((long) vendorID << 32) | (productID & 0xffffffffL);
+		}
+
+		/**
+		 * Registers a USB device so that it is recognized as a YubiKey compatible key. Registering a
+		 * device that is already known replaces its type.
+		 *
+		 * @param vendorID  USB vendor ID of the device.
+		 * @param productID USB product ID of the device, or -1 to match all products of the vendor
+		 *                  that are not registered explicitly.
+		 * @param type      The type reported for the device.
+		 */
+		public static void registerDeviceType(final int vendorID, final int productID, @NonNull final Type type) {
+			if (productID == -0x1) {
+				VENDOR_FALLBACKS.put(vendorID, type);
+			} else {
+				DEVICE_TYPES.put(deviceKey(vendorID, productID), type);
+			}
+		}
+
+		/**
+		 * Registers the devices listed in an XML resource, using the same element as Android USB
+		 * device filters:
+		 * {@code <usb-device vendor-id="0x1050" product-id="0x0407" type="YK4_OTP_U2F_CCID" />}.
+		 * IDs may be decimal or hexadecimal, a missing product ID matches all products of the
+		 * vendor and a missing type registers the device as {@link #OTP_HID_COMPATIBLE}.
+		 *
+		 * @param parser Parser positioned at the start of the resource.
+		 */
+		public static void registerDeviceTypes(@NonNull final XmlPullParser parser) throws XmlPullParserException, IOException {
+			for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+				if (event != XmlPullParser.START_TAG || !XML_TAG_DEVICE.equals(parser.getName()))
+					continue;
+
+				final String vendorID  = parser.getAttributeValue(null, XML_ATTR_VENDOR_ID);
+				final String productID = parser.getAttributeValue(null, XML_ATTR_PRODUCT_ID);
+				final String type      = parser.getAttributeValue(null, XML_ATTR_TYPE);
+
+				if (vendorID == null)
+					throw new XmlPullParserException("Missing " + XML_ATTR_VENDOR_ID);
+
+				try {
+					registerDeviceType(
+							Integer.decode(vendorID),
+							productID == null ? -0x1 : Integer.decode(productID),
+							type == null ? OTP_HID_COMPATIBLE : Type.valueOf(type)
+					);
+				} catch (final IllegalArgumentException e) {
+					throw new XmlPullParserException("Invalid device entry: " + e.getMessage());
 				}
 			}
+		}
+
+		public static Type lookupDeviceType(@NonNull final UsbDevice device) {
+			final Type type = DEVICE_TYPES.get(deviceKey(device.getVendorId(), device.getProductId()));
+
+			if (type != null)
+				return type;
+
+			final Type fallback = VENDOR_FALLBACKS.get(device.getVendorId());
 
-			return Type.UNKNOWN;
+			return fallback != null ? fallback : Type.UNKNOWN;
 		}
 
 		public static boolean isDeviceKnown(@Nullable final UsbDevice device) {
@@ -135,20 +262,138 @@ public class UsbYubiKey implements YubiKey {
 		}
 	}
 
+	/**
+	 * Keeps the interface of the YubiKey claimed until it is closed. While a session is open,
+	 * operations on the {@link UsbYubiKey} reuse the claim instead of claiming and releasing the
+	 * interface for each request.
+	 */
+	public final class Session implements AutoCloseable {
+		private boolean closed = false;
+
+		private Session() {
+		}
+
+		/**
+		 * Gets the YubiKey this session belongs to.
+		 *
+		 * @return The {@link UsbYubiKey} holding the claim.
+		 */
+		@NonNull
+		public UsbYubiKey getYubiKey() {
+			return UsbYubiKey.this;
+		}
+
+		/**
+		 * Releases the claim held by this session. Closing a session more than once has no effect.
+		 */
+		@Override
+		public void close() {
+			if (this.closed)
+				return;
+
+			this.closed = true;
+			UsbYubiKey.this.release();
+		}
+	}
+
+	/**
+	 * How {@link UsbYubiKey} waits for the YubiKey to accept the chunks of a frame.
+	 */
+	public enum WriteMode {
+		/**
+		 * Polls the status right before each chunk and only backs off while the YubiKey is still
+		 * busy with the previous one.
+		 */
+		PIPELINED,
+		/**
+		 * Waits the poll interval of the {@link StatusPollingStrategy} before every status poll,
+		 * including the first one of each chunk.
+		 */
+		PACED
+	}
+
 	private enum StatusMode {
 		SET,
 		CLEAR;
 	}
 
 	/**
-	 * Should only be instantiated by the ConnectionManager.
+	 * Should only be instantiated by the ConnectionManager. An instance reuses its frame buffers for
+	 * every transaction and must thus not be used by several threads at once.
 	 *
 	 * @param device     UsbDevice instance for the connected YubiKey.
 	 * @param connection UsbConnection instance for the connected YubiKey.
 	 */
 	public UsbYubiKey(final UsbDevice device, final UsbDeviceConnection connection) {
+		this(device, new UsbFeatureReportTransport(device, connection));
+	}
+
+	/**
+	 * Drives a YubiKey that is not reached through a {@link UsbDevice}, e.g. a simulated key.
+	 *
+	 * @param transport Transport of the feature reports of the YubiKey.
+	 */
+	public UsbYubiKey(@NonNull final FeatureReportTransport transport) {
+		this(null, transport);
+	}
+
+	private UsbYubiKey(@Nullable final UsbDevice device, @NonNull final FeatureReportTransport transport) {
 		this.device = device;
-		this.connection = connection;
+		this.transport = transport;
+	}
+
+	/**
+	 * Replaces the strategy used to poll the status of the YubiKey while waiting for it.
+	 *
+	 * @param pollingStrategy The strategy to use for subsequent operations.
+	 */
+	public void setPollingStrategy(@NonNull final StatusPollingStrategy pollingStrategy) {
+		this.pollingStrategy = pollingStrategy;
+	}
+
+	/**
+	 * Replaces the policy deciding whether failed requests are sent again.
+	 *
+	 * @param retryPolicy The policy to use for subsequent operations, {@link RetryPolicy#NONE} to
+	 *                    report every failure right away.
+	 */
+	public void setRetryPolicy(@NonNull final RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Replaces the way the chunks of a frame are paced.
+	 *
+	 * @param writeMode The mode to use for subsequent operations.
+	 */
+	public void setWriteMode(@NonNull final WriteMode writeMode) {
+		this.writeMode = writeMode;
+	}
+
+	/**
+	 * Sets the listener receiving the metrics of every transaction. Should be set before requests
+	 * are made, not while one is running.
+	 *
+	 * @param listener The listener, or null to stop measuring.
+	 */
+	@Override
+	public void setTransactionListener(@Nullable final TransactionListener listener) {
+		this.transactionListener = listener;
+		this.metrics = listener != null ? new TransactionMetrics() : null;
+	}
+
+	/**
+	 * Claims the interface of the YubiKey for several operations. The interface is released once
+	 * the returned session and any operation still running are done.
+	 *
+	 * @return An open session, to be closed by the caller.
+	 * @throws YubiKeyException If the interface could not be claimed.
+	 */
+	@NonNull
+	public Session openSession() throws YubiKeyException {
+		this.tryClaim();
+
+		return new Session();
 	}
 
 	/**
@@ -157,195 +402,589 @@ public class UsbYubiKey implements YubiKey {
 	 * @return {@link Type} instance that describes the connected YubiKey
 	 */
 	public Type getType() {
-		return Type.lookupDeviceType(this.device);
+		return this.device != null ? Type.lookupDeviceType(this.device) : Type.UNKNOWN;
 	}
 
 	/**
-	 * Gets the serial number of the connected YubiKey.
+	 * Gets the serial number of the connected YubiKey. It is only read once per connection.
 	 *
 	 * @return The 32-bit serial number of the connected YubiKey.
+	 * @throws YubiKeyTimeoutException If the key hides its serial number.
 	 */
 	public int getSerialNumber() throws YubiKeyException {
-		this.tryClaim();
+		if (this.serialNumber == null)
+			this.serialNumber = this.readSerialNumber();
+
+		return this.serialNumber;
+	}
+
+	/**
+	 * Requests the serial number once, waiting at most {@link #SERIAL_PROBE_BUDGET_MS} for it. Not
+	 * retried, a key that hides its serial number never answers.
+	 */
+	private int readSerialNumber() throws YubiKeyException {
+		final StatusPollingStrategy pollingStrategy = this.pollingStrategy;
+
+		this.pollingStrategy = new StatusPollingStrategy() {
+			@Override
+			public long getPollInterval(@NonNull final Phase phase, final int poll) {
+				return pollingStrategy.getPollInterval(phase, poll);
+			}
+
+			@Override
+			public long getBudget(@NonNull final Phase phase) {
+				final long budget = pollingStrategy.getBudget(phase);
+
+				return phase == Phase.RESPONSE_PENDING ? Math.min(budget, SERIAL_PROBE_BUDGET_MS) : budget;
+			}
+		};
+		try {
+			this.transactOnce(Slot.DEVICE_SERIAL, EMPTY_PAYLOAD, 4);
+		} finally {
+			this.pollingStrategy = pollingStrategy;
+		}
+
+		final byte[] response = this.responseBuffer;
+
+		return ((response[0] & 0xff) << 24) | ((response[1] & 0xff) << 16) | ((response[2] & 0xff) << 8) | (response[3] & 0xff);
+	}
 
-		final byte[] response;
+	/**
+	 * Probes the status of the YubiKey on the first call and returns the same snapshot afterwards.
+	 * A key that hides its serial number is probed without it, the request for the serial number
+	 * is given up after {@link #SERIAL_PROBE_BUDGET_MS}.
+	 *
+	 * @return The capabilities of the connected YubiKey.
+	 */
+	@NonNull
+	@Override
+	public DeviceCapabilities getCapabilities() throws YubiKeyException {
+		if (this.capabilities != null)
+			return this.capabilities;
+
+		Trace.beginSection("UsbYubiKey.getCapabilities");
+		this.tryClaim();
 		try {
-			this.write(Slot.DEVICE_SERIAL, new byte[REPORT_TYPE_FEATURE_DATA_SIZE * 2]);
+			int serialNumber = DeviceCapabilities.UNKNOWN_SERIAL_NUMBER;
+
+			if (this.serialNumber != null) {
+				serialNumber = this.serialNumber;
+			} else {
+				try {
+					serialNumber = this.readSerialNumber();
+					this.serialNumber = serialNumber;
+				} catch (final YubiKeyTimeoutException ignored) {
+				}
+			}
+
+			// The serial read ended the read mode, the next report is a status report again
+			final byte[] status = this.waitForStatus(false, true, StatusPollingStrategy.Phase.RESPONSE_PENDING, STATUS_FLAG_RESPONSE_PENDING, StatusMode.CLEAR);
+
+			DeviceCapabilities capabilities = DeviceCapabilities.getCached(serialNumber, status, 1);
+
+			if (capabilities == null) {
+				final byte[] statusBytes = Arrays.copyOfRange(status, 1, 1 + DeviceCapabilities.STATUS_LENGTH);
+				byte[]       tlvs        = null;
+
+				if (DeviceCapabilities.hasCapabilities(statusBytes, 0)) {
+					try {
+						final int length = this.transactOnce(Slot.YUBIKEY_4_CAPABILITIES, EMPTY_PAYLOAD, RESPONSE_LENGTH_PREFIXED);
+
+						tlvs = Arrays.copyOfRange(this.responseBuffer, 1, length);
+					} catch (final YubiKeyTimeoutException ignored) {
+						// The capabilities are optional, the status bytes are enough to use the key
+					}
+				}
+
+				capabilities = DeviceCapabilities.create(statusBytes, 0, serialNumber, tlvs);
+			}
 
-			response = this.readResponse(4, true);
+			this.capabilities = capabilities;
+
+			return capabilities;
 		} finally {
 			this.release();
+			Trace.endSection();
 		}
-
-		return (response[0] << 24) + (response[1] << 16) + (response[2] << 8) + (response[3] & 0xff);
 	}
 
 	@NonNull
 	@Override
 	public byte[] challengeResponse(@NonNull Slot slot, @NonNull byte[] challenge) throws YubiKeyException {
+		final byte[] response = new byte[CHALLENGE_RESPONSE_LENGTH];
+
+		this.challengeResponse(slot, challenge, response, 0);
+
+		return response;
+	}
+
+	/**
+	 * Same as {@link #challengeResponse(Slot, byte[])}, but writes the response into a buffer
+	 * supplied by the caller instead of allocating a new one.
+	 *
+	 * @param slot      The YubiKey feature slot to use.
+	 * @param challenge Challenge bytes to send to the YubiKey.
+	 * @param response  Buffer receiving the response, must have room for
+	 *                  {@link YubiKey#CHALLENGE_RESPONSE_LENGTH} bytes after the offset.
+	 * @param offset    Position in the buffer at which the response is written.
+	 * @return The number of bytes written into the buffer.
+	 */
+	public int challengeResponse(@NonNull Slot slot, @NonNull byte[] challenge, @NonNull byte[] response, int offset) throws YubiKeyException {
+		return this.challengeResponse(slot, challenge, response, offset, true);
+	}
+
+	/**
+	 * Same as {@link #challengeResponse(Slot, byte[])}, but gives up as soon as the YubiKey asks for
+	 * a touch: the key is reset and a {@link YubiKeyTouchRequiredException} is thrown.
+	 */
+	@NonNull
+	@Override
+	public byte[] challengeResponseNonBlocking(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		final byte[] response = new byte[CHALLENGE_RESPONSE_LENGTH];
+
+		this.challengeResponse(slot, challenge, response, 0, false);
+
+		return response;
+	}
+
+	private int challengeResponse(final Slot slot, final byte[] challenge, final byte[] response, final int offset, final boolean mayBlock) throws YubiKeyException {
 		slot.ensureChallengeResponseSlot();
 
-		this.tryClaim();
+		Trace.beginSection("UsbYubiKey.challengeResponse");
 		try {
-			this.write(slot, challenge);
+			this.transact(slot, challenge, CHALLENGE_RESPONSE_LENGTH, mayBlock);
+		} catch (final YubiKeyTouchRequiredException e) {
+			if (this.capabilities != null)
+				this.capabilities.setTouch(slot, true);
+
+			throw e;
+		} finally {
+			Trace.endSection();
+		}
+
+		// Only a request tells whether the slot waits for a touch, the status bytes do not
+		if (this.capabilities != null)
+			this.capabilities.setTouch(slot, this.userPresenceRequested);
 
-			return this.readResponse(CHALLENGE_RESPONSE_LENGTH, true);
+		System.arraycopy(this.responseBuffer, 0, response, offset, CHALLENGE_RESPONSE_LENGTH);
+
+		return CHALLENGE_RESPONSE_LENGTH;
+	}
+
+	@NonNull
+	@Override
+	public List<byte[]> challengeResponse(@NonNull final List<ChallengeRequest> requests) throws YubiKeyException {
+		for (final ChallengeRequest request : requests) {
+			request.getSlot().ensureChallengeResponseSlot();
+		}
+
+		final List<byte[]> responses = new ArrayList<>(requests.size());
+
+		// Claim once for the whole batch, the single requests then reuse the claim
+		this.tryClaim();
+		try {
+			for (final ChallengeRequest request : requests) {
+				responses.add(this.challengeResponse(request.getSlot(), request.getChallenge()));
+			}
 		} finally {
 			this.release();
 		}
+
+		return responses;
+	}
+
+	/**
+	 * Writes a frame and reads the response into {@link #responseBuffer}. Failures are retried
+	 * after a reset of the YubiKey as long as the retry policy allows it, but not once the key
+	 * asked for a touch: the retry would silently wait for a second one.
+	 */
+	private void transact(final Slot slot, final byte[] payload, final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				this.transactOnce(slot, payload, expectedBytes, mayBlock);
+
+				return;
+			} catch (final YubiKeyException e) {
+				if (this.userPresenceRequested || !this.retryPolicy.shouldRetry(e, attempt))
+					throw e;
+
+				this.recover(attempt);
+			}
+		}
 	}
 
-	private char CRC16(final byte[] buffer, final int bytes) {
-		char crc = 0xffff;
+	private int transactOnce(final Slot slot, final byte[] payload, final int expectedBytes) throws YubiKeyException {
+		return this.transactOnce(slot, payload, expectedBytes, true);
+	}
 
-		for (int x = 0; x < bytes; x++) {
-			crc ^= buffer[x] & 0xff;
+	/**
+	 * @param mayBlock Whether the request may wait for the user to touch the key, instead of
+	 *                 failing with a {@link YubiKeyTouchRequiredException}.
+	 */
+	private int transactOnce(final Slot slot, final byte[] payload, final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
+		boolean success = false;
 
-			for (int i = 0; i < 8; i++) {
-				final boolean j = (crc & 0b1) == 1;
-				crc >>= 1;
+		this.userPresenceRequested = false;
+		this.beginTransaction();
+		try {
+			this.tryClaim();
+			try {
+				this.write(slot, payload);
 
-				if (j) {
-					crc ^= 0x8408;
-				}
+				final int length = this.readResponse(expectedBytes, mayBlock);
+				success = true;
+
+				return length;
+			} finally {
+				this.release();
 			}
+		} finally {
+			this.endTransaction(success);
 		}
+	}
 
-		return crc;
+	/**
+	 * Waits for the backoff of the retry policy and resets the YubiKey, as a failed request may
+	 * have left a frame half written or a response half read.
+	 */
+	private void recover(final int attempt) throws YubiKeyException {
+		Trace.beginSection("UsbYubiKey.recover");
+		try {
+			Thread.sleep(this.retryPolicy.getBackoff(attempt));
+
+			this.tryClaim();
+			try {
+				this.reset();
+			} finally {
+				this.release();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new YubiKeyInterruptedException("Interrupted");
+		} catch (final YubiKeyInterruptedException e) {
+			throw e;
+		} catch (final YubiKeyException ignored) {
+			// The next attempt reports the failure if the YubiKey is still unusable
+		} finally {
+			Trace.endSection();
+		}
 	}
 
-	private void verifyCRC16(final byte[] buffer, final int bytes) throws YubiKeyException {
-		if (this.CRC16(buffer, bytes) != YUBIKEY_CRC_16_OK_RESIDUAL)
-			throw new YubiKeyException("CRC16");
+	private void beginTransaction() {
+		final TransactionMetrics metrics = this.metrics;
+
+		if (metrics != null)
+			metrics.begin();
 	}
 
-	private void reset() throws YubiKeyException {
-		final byte[] dummy = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
-		dummy[REPORT_TYPE_FEATURE_DATA_SIZE - 1] = DUMMY_REPORT;
+	private void endTransaction(final boolean success) {
+		final TransactionMetrics  metrics  = this.metrics;
+		final TransactionListener listener = this.transactionListener;
 
-		// this requires that the YubiKey was already claimed
-		this.write(Slot.DUMMY, dummy);
+		if (metrics == null || listener == null)
+			return;
+
+		metrics.end(success);
+		listener.onTransactionFinished(metrics);
+	}
+
+	private void countError(final TransactionMetrics.Error error) {
+		final TransactionMetrics metrics = this.metrics;
+
+		if (metrics != null)
+			metrics.countError(error);
 	}
 
-	private void tryClaim() throws YubiKeyException {
-		if (!this.connection.claimInterface(this.device.getInterface(0), true)) // We need to detach the kernel driver from the device to get exclusive access
-			throw new YubiKeyException("Failed to claim interface");
+	/**
+	 * Gets the time at which a measured step starts, without reading the clock if nothing is measured.
+	 */
+	private long startPhase() {
+		return this.metrics != null ? System.nanoTime() : 0;
 	}
 
-	private void release() {
-		this.connection.releaseInterface(this.device.getInterface(0)); // We probably don't really need to care about errors here
+	private void endPhase(final TransactionMetrics.Phase phase, final long start) {
+		final TransactionMetrics metrics = this.metrics;
+
+		if (metrics != null) {
+			metrics.addDurationSince(phase, start);
+			metrics.count(phase);
+		}
 	}
 
-	private byte[] waitForStatus(final boolean mayBlock, final short mask, final StatusMode mode) throws YubiKeyException {
-		int          waitInterval              = 1;
-		boolean      waitingForUserInteraction = false;
-		final byte[] data                      = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+	/**
+	 * Ends the read mode of the YubiKey with a single dummy report, as ykpers does after reading a
+	 * response. It costs one transfer, like reading the report where the sequence number wraps.
+	 */
+	private void endRead() throws YubiKeyException {
+		final byte[] report = this.writeReport;
 
-		for (int waitTime = 0; waitTime <= (waitingForUserInteraction ? YUBIKEY_USER_INTERACTION_TIMEOUT_MS : YUBIKEY_OPERATION_TIMEOUT_MS); waitTime += waitInterval) {
-			try {
-				Thread.sleep(waitInterval);
-			} catch (final InterruptedException ignored) {
+		Arrays.fill(report, (byte) 0);
+		report[REPORT_TYPE_FEATURE_DATA_SIZE - 1] = DUMMY_REPORT;
+
+		final int bytes = this.transport.setFeatureReport(report, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+
+		if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE) {
+			this.countError(TransactionMetrics.Error.IO);
+			throw new YubiKeyTransferException("controlTransfer failed: " + bytes);
+		}
+
+		final TransactionMetrics metrics = this.metrics;
+
+		if (metrics != null)
+			metrics.addBytesSent(bytes);
+	}
+
+	private void reset() throws YubiKeyException {
+		// this requires that the YubiKey was already claimed
+		// A key left in read mode would ignore the dummy frame
+		this.endRead();
+		this.write(Slot.DUMMY, DUMMY_PAYLOAD);
+	}
+
+	/**
+	 * Gives up the current operation because the calling thread was interrupted. The YubiKey is
+	 * reset so that it is ready for the next request; the interrupt status is kept for the caller.
+	 */
+	private void abort() throws YubiKeyException {
+		// Clear the interrupt status while resetting, the reset itself waits for the YubiKey
+		Thread.interrupted();
+		try {
+			this.reset();
+		} catch (final YubiKeyException ignored) {
+		} finally {
+			Thread.currentThread().interrupt();
+		}
+
+		throw new YubiKeyInterruptedException("Interrupted");
+	}
+
+	private synchronized void tryClaim() throws YubiKeyException {
+		// Only the first claim touches the device, nested claims come from an open session
+		if (this.claimCount++ > 0)
+			return;
+
+		final long start = this.startPhase();
+
+		Trace.beginSection("UsbYubiKey.claim");
+		try {
+			if (!this.transport.claim()) {
+				this.claimCount--;
+				this.countError(TransactionMetrics.Error.IO);
+				throw new YubiKeyTransferException("Failed to claim interface");
 			}
+		} finally {
+			Trace.endSection();
+		}
 
-			waitInterval *= 2;
+		this.endPhase(TransactionMetrics.Phase.CLAIM, start);
+	}
+
+	private synchronized void release() {
+		if (this.claimCount == 0 || --this.claimCount > 0)
+			return;
+
+		this.transport.release();
+	}
 
-			final int bytes = this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_IN | 0x1, HID_GET_REPORT, REPORT_TYPE_FEATURE, 0, data, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+	/**
+	 * Polls the status report until the flags under the mask match the mode.
+	 *
+	 * @param pollFirst Whether the first poll is issued right away instead of after the poll
+	 *                  interval of the strategy.
+	 */
+	private byte[] waitForStatus(final boolean mayBlock, final boolean pollFirst, final StatusPollingStrategy.Phase initialPhase, final short mask, final StatusMode mode) throws YubiKeyException {
+		StatusPollingStrategy.Phase phase      = initialPhase;
+		long                        phaseStart = System.nanoTime();
+		int                         poll       = 0;
+		final byte[]                data       = this.statusReport;
+		final TransactionMetrics    metrics    = this.metrics;
+
+		Trace.beginSection("UsbYubiKey.waitForStatus");
+		try {
+			do {
+				final long waitInterval = pollFirst && poll == 0 ? 0 : this.pollingStrategy.getPollInterval(phase, poll);
 
-			if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE)
-				throw new YubiKeyException("controlTransfer failed: " + bytes);
+				poll++;
 
-			switch (mode) {
-				case SET:
-					if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == mask) {
-						return data;
+				if (waitInterval > 0) {
+					try {
+						Thread.sleep(waitInterval);
+					} catch (final InterruptedException e) {
+						this.abort();
 					}
+				} else if (Thread.currentThread().isInterrupted()) {
+					this.abort();
+				}
 
-					break;
-				case CLEAR:
-					if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == 0) {
-						return data;
+				this.getFeatureReport(data);
+
+				if (metrics != null)
+					metrics.count(metricsPhase(phase));
+
+				switch (mode) {
+					case SET:
+						if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == mask) {
+							return data;
+						}
+
+						break;
+					case CLEAR:
+						if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & mask) == 0) {
+							return data;
+						}
+
+						break;
+				}
+
+				if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_WAITING) == STATUS_FLAG_WAITING) {
+					this.userPresenceRequested = true;
+
+					if (!mayBlock) {
+						this.reset();
+						throw new YubiKeyTouchRequiredException("Blocking");
 					}
 
-					break;
-			}
+					if (phase != StatusPollingStrategy.Phase.USER_TOUCH) {
+						if (metrics != null)
+							metrics.addDurationSince(metricsPhase(phase), phaseStart);
 
-			if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_WAITING) == STATUS_FLAG_WAITING) {
-				if (mayBlock) {
-					waitingForUserInteraction = true;
-				} else {
-					this.reset();
-					throw new YubiKeyException("Blocking");
+						// The user touch has its own budget, independent of the time already spent
+						phase = StatusPollingStrategy.Phase.USER_TOUCH;
+						Trace.beginAsyncSection(TRACE_USER_TOUCH, System.identityHashCode(this));
+						phaseStart = System.nanoTime();
+						poll = 0;
+					}
+				} else if (phase == StatusPollingStrategy.Phase.USER_TOUCH) {
+					// User interaction timed out
+					this.countError(TransactionMetrics.Error.TIMEOUT);
+					throw new YubiKeyTimeoutException("Timeout", true);
 				}
-			} else if (waitingForUserInteraction) {
-				// User interaction timed out
-				throw new YubiKeyException("Timeout");
-			}
+			} while ((System.nanoTime() - phaseStart) / 1000000 <= this.pollingStrategy.getBudget(phase));
+		} finally {
+			if (metrics != null)
+				metrics.addDurationSince(metricsPhase(phase), phaseStart);
+
+			if (phase == StatusPollingStrategy.Phase.USER_TOUCH)
+				Trace.endAsyncSection(TRACE_USER_TOUCH, System.identityHashCode(this));
+
+			Trace.endSection();
 		}
 
+		this.countError(TransactionMetrics.Error.TIMEOUT);
 		this.reset();
-		throw new YubiKeyException("Timeout");
+		throw new YubiKeyTimeoutException("Timeout", phase == StatusPollingStrategy.Phase.USER_TOUCH);
 	}
 
-	private byte[] readResponse(final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
-		final byte[] response  = new byte[Math.max(REPORT_TYPE_FEATURE_DATA_SIZE * (expectedBytes / REPORT_TYPE_FEATURE_DATA_SIZE + 1), REPORT_TYPE_FEATURE_DATA_SIZE * 8)];
-		int          bytesRead = REPORT_TYPE_FEATURE_DATA_SIZE - 1;
+	private static TransactionMetrics.Phase metricsPhase(final StatusPollingStrategy.Phase phase) {
+		switch (phase) {
+			case WRITE_READY:
+				return TransactionMetrics.Phase.WRITE_READY;
+			case RESPONSE_PENDING:
+				return TransactionMetrics.Phase.RESPONSE_PENDING;
+			case USER_TOUCH:
+			default:
+				return TransactionMetrics.Phase.USER_TOUCH;
+		}
+	}
 
-		System.arraycopy(this.waitForStatus(mayBlock, STATUS_FLAG_RESPONSE_PENDING, StatusMode.SET), 0, response, 0, REPORT_TYPE_FEATURE_DATA_SIZE - 1);
+	/**
+	 * Reads a status report into the buffer, which must hold {@link #REPORT_TYPE_FEATURE_DATA_SIZE}
+	 * bytes.
+	 */
+	private int getFeatureReport(final byte[] data) throws YubiKeyException {
+		final int bytes = this.transport.getFeatureReport(data, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
 
-		while (bytesRead + REPORT_TYPE_FEATURE_DATA_SIZE <= response.length || expectedBytes == 0) {
-			final byte[] data = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
+		if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE) {
+			this.countError(TransactionMetrics.Error.IO);
+			throw new YubiKeyTransferException("controlTransfer failed: " + bytes);
+		}
 
-			final int bytes = this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_IN | 0x1, HID_GET_REPORT, REPORT_TYPE_FEATURE, 0, data, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+		final TransactionMetrics metrics = this.metrics;
 
-			if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE)
-				throw new YubiKeyException("controlTransfer failed: " + bytes);
+		if (metrics != null)
+			metrics.addBytesReceived(bytes);
 
-			if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & STATUS_FLAG_RESPONSE_PENDING) == STATUS_FLAG_RESPONSE_PENDING) {
-				if ((data[REPORT_TYPE_FEATURE_DATA_SIZE - 1] & 0b11111) == 0) {
-					if (expectedBytes > 0) {
-						this.verifyCRC16(response, expectedBytes + 2);
-					}
+		return bytes;
+	}
 
-					if (response.length > expectedBytes) {
-						final byte[] result = new byte[expectedBytes];
-						System.arraycopy(response, 0, result, 0, expectedBytes);
+	/**
+	 * Reads a response into {@link #responseBuffer}. Only the reports holding the response are
+	 * read, then the YubiKey is told to leave its read mode, instead of polling until its sequence
+	 * number wraps to 0. A key still in read mode would ignore the next frame written to it.
+	 *
+	 * @param expectedBytes Length of the response, or {@link #RESPONSE_LENGTH_PREFIXED} if its first
+	 *                      byte gives the length of the rest.
+	 * @return The number of valid bytes in the response buffer.
+	 */
+	private int readResponse(final int expectedBytes, final boolean mayBlock) throws YubiKeyException {
+		final HidResponseDecoder decoder = this.responseDecoder;
 
-						return result;
-					}
+		if (expectedBytes == RESPONSE_LENGTH_PREFIXED) {
+			decoder.startLengthPrefixed(this.responseBuffer);
+		} else {
+			decoder.start(this.responseBuffer, expectedBytes);
+		}
 
-					return response;
-				}
+		// The first report of the response is the one that ends the wait
+		byte[] data = this.waitForStatus(mayBlock, false, StatusPollingStrategy.Phase.RESPONSE_PENDING, STATUS_FLAG_RESPONSE_PENDING, StatusMode.SET);
 
-				System.arraycopy(data, 0, response, bytesRead, REPORT_TYPE_FEATURE_DATA_SIZE - 1);
-				bytesRead += REPORT_TYPE_FEATURE_DATA_SIZE - 1;
-			} else {
-				this.reset();
+		final TransactionMetrics metrics = this.metrics;
+		final long               start   = this.startPhase();
+
+		Trace.beginSection("UsbYubiKey.readResponse");
+		try {
+			while (!decoder.accept(data)) {
+				data = this.statusReport;
+
+				this.getFeatureReport(data);
 
-				throw new YubiKeyException("InvalidResponse");
+				if (metrics != null)
+					metrics.count(TransactionMetrics.Phase.READ);
 			}
-		}
 
-		this.reset();
-		throw new YubiKeyException("InvalidResponse");
+			this.endRead();
+
+			return decoder.getResponseLength();
+		} catch (final YubiKeyCrcException e) {
+			this.countError(TransactionMetrics.Error.CRC);
+			throw e;
+		} catch (final YubiKeyInvalidResponseException e) {
+			this.countError(TransactionMetrics.Error.INVALID_RESPONSE);
+			this.reset();
+			throw e;
+		} finally {
+			if (metrics != null)
+				metrics.addDurationSince(TransactionMetrics.Phase.READ, start);
+
+			Trace.endSection();
+		}
 	}
 
 	private void write(final Slot slot, final byte[] data) throws YubiKeyException {
-		final byte[] payload = new byte[WRITE_PAYLOAD_LENGTH];
-		final byte[] frame   = new byte[WRITE_PAYLOAD_LENGTH + 6];
+		Trace.beginSection("UsbYubiKey.write");
+		try {
+			this.writeFrame(slot, data);
+		} finally {
+			Trace.endSection();
+		}
+	}
 
-		System.arraycopy(data, 0, payload, 0, data.length);
-		System.arraycopy(payload, 0, frame, 0, WRITE_PAYLOAD_LENGTH);
+	private void writeFrame(final Slot slot, final byte[] data) throws YubiKeyException {
+		final byte[] frame = this.frame;
 
-		final char crc = this.CRC16(payload, payload.length);
+		System.arraycopy(data, 0, frame, 0, data.length);
+		Arrays.fill(frame, data.length, frame.length, (byte) 0);
+
+		final char crc = Crc16.compute(frame, 0, WRITE_PAYLOAD_LENGTH);
 		frame[WRITE_PAYLOAD_LENGTH] = slot.getAddress();
 		frame[WRITE_PAYLOAD_LENGTH + 1] = (byte) (crc & 0xff);
 		frame[WRITE_PAYLOAD_LENGTH + 2] = (byte) (crc >> 8);
 
-		int offset = 0;
+		final byte[]  sequenceData = this.writeReport;
+		final boolean pollFirst    = this.writeMode == WriteMode.PIPELINED;
+		int           offset       = 0;
 
 		for (int sequence = 0; offset != frame.length; sequence++) {
-			final byte[] sequenceData = new byte[REPORT_TYPE_FEATURE_DATA_SIZE];
-
 			System.arraycopy(frame, offset, sequenceData, 0, REPORT_TYPE_FEATURE_DATA_SIZE - 1);
 			offset += REPORT_TYPE_FEATURE_DATA_SIZE - 1;
 
@@ -363,13 +1002,23 @@ public class UsbYubiKey implements YubiKey {
 
 			sequenceData[REPORT_TYPE_FEATURE_DATA_SIZE - 1] = (byte) (sequence | STATUS_FLAG_WRITE);
 
-			this.waitForStatus(false, STATUS_FLAG_WRITE, StatusMode.CLEAR);
+			// The YubiKey usually takes the previous chunk within the time of a control transfer
+			this.waitForStatus(false, pollFirst, StatusPollingStrategy.Phase.WRITE_READY, STATUS_FLAG_WRITE, StatusMode.CLEAR);
+
+			final long start = this.startPhase();
+			final int  bytes = this.transport.setFeatureReport(sequenceData, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+
+			if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE) {
+				this.countError(TransactionMetrics.Error.IO);
+				throw new YubiKeyTransferException("controlTransfer failed: " + bytes);
+			}
+
+			this.endPhase(TransactionMetrics.Phase.WRITE, start);
 
-			//noinspection PointlessBitwiseExpression
-			final int bytes = this.connection.controlTransfer(UsbConstants.USB_TYPE_CLASS | UsbConstants.USB_DIR_OUT | 0x1, HID_SET_REPORT, REPORT_TYPE_FEATURE, 0, sequenceData, REPORT_TYPE_FEATURE_DATA_SIZE, YUBIKEY_OPERATION_TIMEOUT_MS);
+			final TransactionMetrics metrics = this.metrics;
 
-			if (bytes != REPORT_TYPE_FEATURE_DATA_SIZE)
-				throw new YubiKeyException("controlTransfer failed: " + bytes);
+			if (metrics != null)
+				metrics.addBytesSent(bytes);
 		}
 	}
 }
@@ -2,6 +2,7 @@ package com.kunzisoft.hardware.yubikey.challenge
 
 import kotlin.Throws
 import com.kunzisoft.hardware.yubikey.YubiKeyException
+import com.kunzisoft.hardware.yubikey.YubiKeyTouchRequiredException
 import com.kunzisoft.hardware.yubikey.Slot
 
 /**
@@ -24,6 +25,57 @@ interface YubiKey {
     @Throws(YubiKeyException::class)
     fun challengeResponse(slot: Slot, challenge: ByteArray): ByteArray
 
+    /**
+     * Same as [challengeResponse], but never waits for the user: if the YubiKey asks for a touch,
+     * the request is abandoned. Drivers that cannot tell whether the key waits for the user fail
+     * right away.
+     *
+     * @param slot      The YubiKey feature slot to use. Must be either
+     * [Slot.CHALLENGE_HMAC_1] or [Slot.CHALLENGE_HMAC_2].
+     * @param challenge Challenge bytes to send to the YubiKey.
+     * @return The response from the YubiKey.
+     * @throws YubiKeyTouchRequiredException If the response needs the user.
+     */
+    @Throws(YubiKeyException::class)
+    fun challengeResponseNonBlocking(slot: Slot, challenge: ByteArray): ByteArray {
+        throw YubiKeyTouchRequiredException("Touch unknown")
+    }
+
+    /**
+     * Sends several challenges to the YubiKey within a single connection and returns the
+     * responses in the same order. Implementations should set up the connection only once for the
+     * whole batch. The same threading considerations as for single requests apply.
+     *
+     * @param requests The challenges to send, each with the slot to use.
+     * @return The responses from the YubiKey, in the order of the requests.
+     * @throws YubiKeyException     If any of the requests fails, no partial result is returned.
+     */
+    @Throws(YubiKeyException::class)
+    fun challengeResponse(requests: List<ChallengeRequest>): List<ByteArray> {
+        return requests.map { challengeResponse(it.slot, it.challenge) }
+    }
+
+    /**
+     * Sets the listener receiving the [TransactionMetrics] of every transaction, or null to stop
+     * measuring. Drivers that do not measure their transactions ignore it.
+     *
+     * @param listener The listener, or null.
+     */
+    fun setTransactionListener(listener: TransactionListener?) {
+    }
+
+    /**
+     * Gets the status and capabilities of the YubiKey. Drivers probe them once per connection and
+     * return the same snapshot afterwards. The same threading considerations as for requests apply.
+     *
+     * @return The capabilities, or null if the driver cannot tell them.
+     * @throws YubiKeyException     If the YubiKey could not be probed.
+     */
+    @Throws(YubiKeyException::class)
+    fun getCapabilities(): DeviceCapabilities? {
+        return null
+    }
+
     companion object {
         /**
          * Length of a response to a challenge-response request (in bytes)
@@ -0,0 +1,59 @@
+package com.kunzisoft.hardware.yubikey.challenge
+
+import com.kunzisoft.hardware.yubikey.Slot
+import com.kunzisoft.hardware.yubikey.YubiKeyException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.withContext
+
+/**
+ * Suspending variant of [YubiKey.challengeResponse] that runs the request on an IO thread.
+ *
+ * Cancelling the calling coroutine interrupts the request: the USB driver then resets the YubiKey
+ * and releases its interface, the NFC driver stops before the next exchange with the tag, and a
+ * [kotlinx.coroutines.CancellationException] is thrown instead of a [YubiKeyException].
+ *
+ * @param slot      The YubiKey feature slot to use. Must be either
+ * [Slot.CHALLENGE_HMAC_1] or [Slot.CHALLENGE_HMAC_2].
+ * @param challenge Challenge bytes to send to the YubiKey.
+ * @return The response from the YubiKey.
+ */
+@Throws(YubiKeyException::class)
+suspend fun YubiKey.challengeResponseAsync(slot: Slot, challenge: ByteArray): ByteArray {
+    return interruptible { challengeResponse(slot, challenge) }
+}
+
+/**
+ * Suspending variant of the batch [YubiKey.challengeResponse], cancellable in the same way as
+ * the single request variant.
+ *
+ * @param requests The challenges to send, each with the slot to use.
+ * @return The responses from the YubiKey, in the order of the requests.
+ */
+@Throws(YubiKeyException::class)
+suspend fun YubiKey.challengeResponseAsync(requests: List<ChallengeRequest>): List<ByteArray> {
+    return interruptible { challengeResponse(requests) }
+}
+
+/**
+ * Suspending variant of [YubiKey.getCapabilities], cancellable in the same way as requests.
+ *
+ * @return The capabilities, or null if the driver cannot tell them.
+ */
+@Throws(YubiKeyException::class)
+suspend fun YubiKey.getCapabilitiesAsync(): DeviceCapabilities? {
+    return interruptible { getCapabilities() }
+}
+
+private suspend fun <T> interruptible(block: () -> T): T {
+    return withContext(Dispatchers.IO) {
+        try {
+            runInterruptible(block = block)
+        } catch (e: YubiKeyException) {
+            // A driver interrupted by the cancellation reports it as a failure, rethrow as cancellation
+            ensureActive()
+            throw e
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyInterruptedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the operations on one YubiKey one after the other on a dedicated thread, so that several
+ * callers may share a key without interleaving their exchanges. Operations of a higher
+ * {@link Priority} run first, operations of the same priority in the order they were submitted.
+ * <p>
+ * Each key has its own executor, requests to different keys do not wait for each other.
+ */
+public class YubiKeyExecutor {
+	/**
+	 * Priority of an operation, waiting operations of a higher priority run first.
+	 */
+	public enum Priority {
+		/**
+		 * The user is waiting for the result, e.g. to unlock a database.
+		 */
+		INTERACTIVE,
+		NORMAL,
+		/**
+		 * Nobody is waiting for the result, e.g. a prefetch or a diagnostics probe.
+		 */
+		BACKGROUND
+	}
+
+	/**
+	 * An operation run with exclusive access to the YubiKey.
+	 */
+	public interface Operation<T> {
+		T run(@NonNull YubiKey yubiKey) throws YubiKeyException;
+	}
+
+	private final class Request<T> extends FutureTask<T> implements Comparable<Request<?>> {
+		private final Priority priority;
+		private final long     sequence;
+
+		Request(final Priority priority, final Operation<T> operation) {
+			super(() -> operation.run(YubiKeyExecutor.this.yubiKey));
+			this.priority = priority;
+			this.sequence = YubiKeyExecutor.this.sequence.getAndIncrement();
+		}
+
+		@Override
+		public int compareTo(@NonNull final Request<?> other) {
+			final int order = this.priority.compareTo(other.priority);
+
+			return order != 0 ? order : Long.compare(this.sequence, other.sequence);
+		}
+	}
+
+	private final YubiKey                           yubiKey;
+	private final String                            name;
+	private final PriorityBlockingQueue<Request<?>> queue        = new PriorityBlockingQueue<>();
+	private final AtomicLong                        sequence     = new AtomicLong();
+	private final List<Runnable>                    onTerminated = new ArrayList<>();
+
+	private volatile Thread worker;
+	private boolean         running  = false;
+	private boolean         shutdown = false;
+
+	/**
+	 * @param yubiKey The driver of the key, must not be used by anything else than this executor.
+	 * @param name    Name of the worker thread.
+	 */
+	public YubiKeyExecutor(@NonNull final YubiKey yubiKey, @NonNull final String name) {
+		this.yubiKey = yubiKey;
+		this.name = name;
+	}
+
+	/**
+	 * Runs an operation once the operations queued before it are done and waits for its result.
+	 * Interrupting the calling thread cancels the operation, interrupting it if it already runs.
+	 *
+	 * @param priority  Priority of the operation.
+	 * @param operation The operation.
+	 * @return The result of the operation.
+	 * @throws YubiKeyException If the operation failed or was interrupted.
+	 */
+	public <T> T execute(@NonNull final Priority priority, @NonNull final Operation<T> operation) throws YubiKeyException {
+		// An operation nested in another one already has the key, queueing it would never end
+		if (Thread.currentThread() == this.worker)
+			return operation.run(this.yubiKey);
+
+		final Request<T> request = new Request<>(priority, operation);
+
+		this.enqueue(request);
+		try {
+			return request.get();
+		} catch (final InterruptedException e) {
+			request.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new YubiKeyInterruptedException("Interrupted");
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+
+			if (cause instanceof YubiKeyException)
+				throw (YubiKeyException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+
+			throw new YubiKeyException(String.valueOf(cause), cause);
+		}
+	}
+
+	/**
+	 * Gets the number of operations waiting for the key, not counting the running one.
+	 *
+	 * @return The number of queued operations.
+	 */
+	public int getQueueLength() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Stops the worker thread once the queued operations are done. Operations submitted afterwards
+	 * fail right away.
+	 */
+	public void shutdown() {
+		this.shutdown(null);
+	}
+
+	/**
+	 * Stops the worker thread once the queued operations are done, then runs an action, e.g. to
+	 * close the connection the operations use. The action runs on the worker thread after the last
+	 * operation, or right away on the calling thread if no operation is running. Operations
+	 * submitted afterwards fail right away.
+	 *
+	 * @param onTerminated Action run once no operation uses the key anymore.
+	 */
+	public void shutdown(@Nullable final Runnable onTerminated) {
+		synchronized (this) {
+			this.shutdown = true;
+
+			if (this.worker != null) {
+				if (onTerminated != null)
+					this.onTerminated.add(onTerminated);
+
+				// Only wake up an idle worker, a running operation must not be interrupted
+				if (!this.running)
+					this.worker.interrupt();
+
+				return;
+			}
+		}
+
+		if (onTerminated != null)
+			onTerminated.run();
+	}
+
+	private synchronized void enqueue(final Request<?> request) throws YubiKeyException {
+		if (this.shutdown)
+			throw new YubiKeyException("Executor shut down");
+
+		this.queue.add(request);
+
+		// Started on demand, so that a key that is never used costs no thread
+		if (this.worker == null) {
+			this.worker = new Thread(this::work, this.name);
+			this.worker.setDaemon(true);
+			this.worker.start();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			final Request<?> request;
+
+			try {
+				request = this.queue.take();
+			} catch (final InterruptedException e) {
+				if (this.stopIfShutdown())
+					break;
+
+				continue;
+			}
+
+			synchronized (this) {
+				this.running = true;
+			}
+
+			// Neither a shutdown while taking the request nor a cancelled request that ran before
+			// may interrupt this one
+			Thread.interrupted();
+			request.run();
+			Thread.interrupted();
+
+			synchronized (this) {
+				this.running = false;
+			}
+
+			if (this.stopIfShutdown())
+				break;
+		}
+
+		final List<Runnable> onTerminated;
+
+		synchronized (this) {
+			onTerminated = new ArrayList<>(this.onTerminated);
+			this.onTerminated.clear();
+		}
+
+		// The interrupt meant to wake up the worker must not disturb the actions
+		Thread.interrupted();
+
+		for (final Runnable action : onTerminated) {
+			action.run();
+		}
+	}
+
+	private synchronized boolean stopIfShutdown() {
+		if (!this.shutdown || !this.queue.isEmpty())
+			return false;
+
+		this.worker = null;
+
+		return true;
+	}
+}
@@ -0,0 +1,155 @@
+package com.kunzisoft.hardware.yubikey;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Crc16Test {
+	private static final byte[] CHECK_INPUT = "123456789".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Check value of CRC-16/X.25 for {@link #CHECK_INPUT}, after the final inversion.
+	 */
+	private static final char   CHECK_VALUE = 0x906e;
+
+	/**
+	 * Length of a frame written to the key.
+	 */
+	private static final int FRAME_LENGTH = 64;
+	private static final int WARMUP       = 20000;
+	private static final int ITERATIONS   = 200000;
+
+	@Test
+	public void checkValue() {
+		assertEquals(CHECK_VALUE, (char) ~Crc16.compute(CHECK_INPUT, 0, CHECK_INPUT.length));
+		assertEquals(CHECK_VALUE, (char) ~new Crc16().update(CHECK_INPUT, 0, CHECK_INPUT.length).getValue());
+	}
+
+	@Test
+	public void offset() {
+		final byte[] buffer = new byte[CHECK_INPUT.length + 3];
+		System.arraycopy(CHECK_INPUT, 0, buffer, 2, CHECK_INPUT.length);
+
+		assertEquals(CHECK_VALUE, (char) ~Crc16.compute(buffer, 2, CHECK_INPUT.length));
+	}
+
+	@Test
+	public void residual() {
+		final byte[] buffer = withChecksum(CHECK_INPUT);
+
+		assertTrue(Crc16.verify(buffer, 0, buffer.length));
+		assertEquals(Crc16.OK_RESIDUAL, Crc16.compute(buffer, 0, buffer.length));
+		assertTrue(new Crc16().update(buffer, 0, buffer.length).isResidualOk());
+
+		buffer[4] ^= 0x01;
+
+		assertFalse(Crc16.verify(buffer, 0, buffer.length));
+	}
+
+	@Test
+	public void incremental() {
+		final byte[] buffer = randomBuffer(new Random(1), FRAME_LENGTH + 2);
+		final char   whole  = Crc16.compute(buffer, 0, buffer.length);
+		final Crc16  crc    = new Crc16();
+
+		for (int split = 0; split <= buffer.length; split++) {
+			crc.reset();
+			crc.update(buffer, 0, split).update(buffer, split, buffer.length - split);
+
+			assertEquals(whole, crc.getValue());
+		}
+
+		crc.reset();
+		for (final byte b : buffer) {
+			crc.update(b);
+		}
+
+		assertEquals(whole, crc.getValue());
+	}
+
+	@Test
+	public void matchesBitwise() {
+		final Random random = new Random(2);
+
+		for (int length = 0; length <= FRAME_LENGTH + 6; length++) {
+			final byte[] buffer = randomBuffer(random, length);
+
+			assertEquals(bitwise(buffer, length), Crc16.compute(buffer, 0, length));
+		}
+	}
+
+	/**
+	 * Compares the table with the bitwise loop it replaced, over frames the size of a write.
+	 */
+	@Test
+	public void benchmark() {
+		final byte[] frame = randomBuffer(new Random(3), FRAME_LENGTH);
+		char         sink  = 0;
+
+		for (int i = 0; i < WARMUP; i++) {
+			sink ^= bitwise(frame, FRAME_LENGTH);
+			sink ^= Crc16.compute(frame, 0, FRAME_LENGTH);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink ^= bitwise(frame, FRAME_LENGTH);
+		}
+		final long bitwise = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink ^= Crc16.compute(frame, 0, FRAME_LENGTH);
+		}
+		final long table = System.nanoTime() - start;
+
+		System.out.println("CRC16 of " + FRAME_LENGTH + " bytes: bitwise " + bitwise / ITERATIONS + "ns, table " + table / ITERATIONS + "ns");
+
+		// Both ran an even number of times, keeps the loops from being optimized away
+		assertEquals(0, sink);
+	}
+
+	private static byte[] withChecksum(final byte[] data) {
+		final char   crc    = (char) ~Crc16.compute(data, 0, data.length);
+		final byte[] buffer = Arrays.copyOf(data, data.length + 2);
+
+		buffer[data.length] = (byte) crc;
+		buffer[data.length + 1] = (byte) (crc >> 8);
+
+		return buffer;
+	}
+
+	private static byte[] randomBuffer(final Random random, final int length) {
+		final byte[] buffer = new byte[length];
+		random.nextBytes(buffer);
+
+		return buffer;
+	}
+
+	/**
+	 * The bitwise loop UsbYubiKey used before {@link Crc16}.
+	 */
+	private static char bitwise(final byte[] buffer, final int bytes) {
+		char crc = 0xffff;
+
+		for (int x = 0; x < bytes; x++) {
+			crc ^= buffer[x] & 0xff;
+
+			for (int i = 0; i < 8; i++) {
+				final boolean j = (crc & 0b1) == 1;
+				crc >>= 1;
+
+				if (j) {
+					crc ^= 0x8408;
+				}
+			}
+		}
+
+		return crc;
+	}
+}
@@ -0,0 +1,167 @@
+package com.kunzisoft.hardware.yubikey.apdu;
+
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ApduEncoderTest {
+	private static final byte CLA = (byte) 0x00;
+	private static final byte INS = (byte) 0xca;
+	private static final byte P1  = (byte) 0x01;
+	private static final byte P2  = (byte) 0x02;
+
+	private static final byte[] DATA = {0x11, 0x22, 0x33};
+
+	@Test
+	public void shortCase2() {
+		final ByteBuffer out = ByteBuffer.allocate(ApduEncoder.getEncodedLength(0));
+
+		assertEquals(5, ApduEncoder.encode(out, CLA, INS, P1, P2, new byte[0], 0, 0, (byte) 0x10));
+		assertArrayEquals(hex("00ca010210"), out.array());
+		assertFalse(ApduEncoder.isExtended(out.array()));
+	}
+
+	@Test
+	public void shortCase4() {
+		final ByteBuffer out = ByteBuffer.allocate(ApduEncoder.getEncodedLength(DATA.length));
+
+		assertEquals(9, ApduEncoder.encode(out, CLA, INS, P1, P2, DATA, 0, DATA.length, (byte) 0x00));
+		assertArrayEquals(hex("00ca010203112233" + "00"), out.array());
+		assertFalse(ApduEncoder.isExtended(out.array()));
+	}
+
+	@Test
+	public void shortDataOffset() {
+		final byte[]     buffer = hex("ff112233ff");
+		final ByteBuffer out    = ByteBuffer.allocate(ApduEncoder.getEncodedLength(DATA.length));
+
+		ApduEncoder.encode(out, CLA, INS, P1, P2, buffer, 1, DATA.length, (byte) 0x00);
+
+		assertArrayEquals(hex("00ca010203112233" + "00"), out.array());
+	}
+
+	@Test
+	public void extendedCase2() {
+		final ByteBuffer out = ByteBuffer.allocate(ApduEncoder.getExtendedEncodedLength(0));
+
+		assertEquals(7, ApduEncoder.encodeExtended(out, CLA, INS, P1, P2, new byte[0], 0, 0, 0x0100));
+		assertArrayEquals(hex("00ca0102" + "00" + "0100"), out.array());
+		assertTrue(ApduEncoder.isExtended(out.array()));
+	}
+
+	@Test
+	public void extendedCase4() {
+		final ByteBuffer out = ByteBuffer.allocate(ApduEncoder.getExtendedEncodedLength(DATA.length));
+
+		assertEquals(12, ApduEncoder.encodeExtended(out, CLA, INS, P1, P2, DATA, 0, DATA.length, 0x0000));
+		assertArrayEquals(hex("00ca0102" + "00" + "0003" + "112233" + "0000"), out.array());
+		assertTrue(ApduEncoder.isExtended(out.array()));
+	}
+
+	@Test
+	public void encodeAtPosition() {
+		final ByteBuffer out = ByteBuffer.allocate(2 + ApduEncoder.getEncodedLength(DATA.length));
+
+		out.put((byte) 0xee).put((byte) 0xee);
+		ApduEncoder.encode(out, CLA, INS, P1, P2, DATA, 0, DATA.length, (byte) 0x00);
+
+		assertArrayEquals(hex("eeee" + "00ca010203112233" + "00"), out.array());
+		assertEquals(0, out.remaining());
+	}
+
+	@Test
+	public void boundary255() {
+		final byte[] data = filled(255);
+		final byte[] apdu = new TestApdu(data).build();
+
+		assertEquals(ApduEncoder.SHORT_OVERHEAD + 255, apdu.length);
+		assertFalse(ApduEncoder.isExtended(apdu));
+		assertArrayEquals(hex("00ca0102ff"), Arrays.copyOf(apdu, 5));
+		assertArrayEquals(data, Arrays.copyOfRange(apdu, 5, 5 + 255));
+		assertEquals(0x00, apdu[apdu.length - 1]);
+	}
+
+	@Test
+	public void boundary256() {
+		final byte[] data = filled(256);
+		final byte[] apdu = new TestApdu(data).build();
+
+		assertEquals(ApduEncoder.EXTENDED_OVERHEAD + 256, apdu.length);
+		assertTrue(ApduEncoder.isExtended(apdu));
+		assertArrayEquals(hex("00ca0102" + "00" + "0100"), Arrays.copyOf(apdu, 7));
+		assertArrayEquals(data, Arrays.copyOfRange(apdu, 7, 7 + 256));
+		assertArrayEquals(hex("0000"), Arrays.copyOfRange(apdu, apdu.length - 2, apdu.length));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shortTooLong() {
+		ApduEncoder.encode(ByteBuffer.allocate(512), CLA, INS, P1, P2, filled(256), 0, 256, (byte) 0x00);
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void bufferTooSmall() {
+		ApduEncoder.encode(ByteBuffer.allocate(ApduEncoder.getEncodedLength(DATA.length) - 1), CLA, INS, P1, P2,
+						   DATA, 0, DATA.length, (byte) 0x00);
+	}
+
+	static byte[] filled(final int length) {
+		final byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i + 1);
+		}
+
+		return data;
+	}
+
+	static byte[] hex(final String hex) {
+		final byte[] bytes = new byte[hex.length() / 2];
+
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Command with the header of the vectors above and a response of any length.
+	 */
+	static class TestApdu extends CommandApdu {
+		TestApdu(final byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		protected byte getCommandClass() {
+			return CLA;
+		}
+
+		@Override
+		protected byte getInstruction() {
+			return INS;
+		}
+
+		@Override
+		protected byte getP1() {
+			return P1;
+		}
+
+		@Override
+		protected byte getP2() {
+			return P2;
+		}
+
+		@Override
+		protected byte getExpectedLength() {
+			return (byte) 0x00;
+		}
+	}
+}
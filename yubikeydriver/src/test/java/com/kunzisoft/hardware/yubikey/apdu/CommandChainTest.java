@@ -0,0 +1,175 @@
+package com.kunzisoft.hardware.yubikey.apdu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.kunzisoft.hardware.yubikey.apdu.ApduEncoderTest.filled;
+import static com.kunzisoft.hardware.yubikey.apdu.ApduEncoderTest.hex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandChainTest {
+	private static final byte CLA = (byte) 0x80;
+	private static final byte INS = (byte) 0xca;
+	private static final byte P1  = (byte) 0x01;
+	private static final byte P2  = (byte) 0x02;
+
+	/**
+	 * Longest APDU of a transport limited to short APDUs, e.g. a CCID reader at the short exchange level.
+	 */
+	private static final int SHORT_TRANSPORT = 261;
+	private static final int LONG_TRANSPORT  = 65544;
+
+	@Test
+	public void singleShort() {
+		final byte[]       data  = filled(255);
+		final List<byte[]> apdus = send(CommandChain.plan(CLA, INS, P1, P2, data, 0, data.length, 0, SHORT_TRANSPORT, false));
+
+		assertEquals(1, apdus.size());
+		assertArrayEquals(new TestApdu(data).build(), apdus.get(0));
+	}
+
+	@Test
+	public void singleExtended() {
+		final byte[]       data  = filled(256);
+		final CommandChain chain = CommandChain.plan(CLA, INS, P1, P2, data, 0, data.length, 0, LONG_TRANSPORT, true);
+
+		assertTrue(chain.isExtended());
+
+		final List<byte[]> apdus = send(chain);
+
+		assertEquals(1, apdus.size());
+		assertArrayEquals(new TestApdu(data).build(), apdus.get(0));
+	}
+
+	@Test
+	public void chainedOnShortTransport() {
+		final byte[]       data  = filled(600);
+		final CommandChain chain = CommandChain.plan(CLA, INS, P1, P2, data, 0, data.length, 0, SHORT_TRANSPORT, false);
+
+		assertFalse(chain.isExtended());
+
+		final List<byte[]> apdus = send(chain);
+
+		assertEquals(3, apdus.size());
+		// All but the last have the chaining bit and no Le
+		assertArrayEquals(hex("90ca0102ff"), Arrays.copyOf(apdus.get(0), 5));
+		assertEquals(5 + 255, apdus.get(0).length);
+		assertArrayEquals(hex("90ca0102ff"), Arrays.copyOf(apdus.get(1), 5));
+		assertEquals(5 + 255, apdus.get(1).length);
+		assertArrayEquals(hex("80ca01025a"), Arrays.copyOf(apdus.get(2), 5));
+		assertEquals(5 + 90 + 1, apdus.get(2).length);
+		assertEquals(0x00, apdus.get(2)[5 + 90]);
+
+		assertArrayEquals(data, dataOf(apdus));
+	}
+
+	@Test
+	public void chainedWhenExtendedDoesNotFit() {
+		final byte[]       data  = filled(300);
+		final List<byte[]> apdus = send(CommandChain.plan(CLA, INS, P1, P2, data, 0, data.length, 0, SHORT_TRANSPORT, true));
+
+		assertEquals(2, apdus.size());
+		assertEquals((byte) 0x90, apdus.get(0)[0]);
+		assertEquals((byte) 0x80, apdus.get(1)[0]);
+		assertArrayEquals(data, dataOf(apdus));
+	}
+
+	@Test
+	public void chainedOnSmallTransport() {
+		final byte[]       data  = filled(100);
+		final List<byte[]> apdus = send(CommandChain.plan(CLA, INS, P1, P2, data, 0, data.length, 0x20, 64, false));
+
+		assertEquals(2, apdus.size());
+		assertArrayEquals(hex("90ca01023a"), Arrays.copyOf(apdus.get(0), 5));
+		assertEquals(5 + 58, apdus.get(0).length);
+		assertArrayEquals(hex("80ca01022a"), Arrays.copyOf(apdus.get(1), 5));
+		assertEquals(0x20, apdus.get(1)[apdus.get(1).length - 1]);
+		assertArrayEquals(data, dataOf(apdus));
+	}
+
+	@Test
+	public void parseExtendedIntoChain() {
+		final byte[]       data     = filled(600);
+		final byte[]       extended = new TestApdu(data).build();
+		final List<byte[]> apdus    = send(CommandChain.parse(extended, SHORT_TRANSPORT, false));
+		final List<byte[]> planned  = send(CommandChain.plan(CLA, INS, P1, P2, data, 0, data.length, 0, SHORT_TRANSPORT, false));
+
+		assertEquals(planned.size(), apdus.size());
+		for (int i = 0; i < apdus.size(); i++) {
+			assertArrayEquals(planned.get(i), apdus.get(i));
+		}
+	}
+
+	@Test
+	public void restart() {
+		final byte[]       data  = filled(300);
+		final CommandChain chain = CommandChain.plan(CLA, INS, P1, P2, data, 0, data.length, 0, SHORT_TRANSPORT, false);
+		final List<byte[]> first = send(chain);
+
+		chain.restart(0x10);
+
+		final List<byte[]> again = send(chain);
+		final byte[]       last  = again.get(again.size() - 1);
+
+		assertEquals(first.size(), again.size());
+		assertArrayEquals(first.get(0), again.get(0));
+		assertEquals(0x10, last[last.length - 1]);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void nextAfterLast() {
+		final CommandChain chain = CommandChain.plan(CLA, INS, P1, P2, new byte[0], 0, 0, 0, SHORT_TRANSPORT, false);
+
+		send(chain);
+		chain.next(ByteBuffer.allocate(SHORT_TRANSPORT));
+	}
+
+	/**
+	 * Encodes all the APDUs of a chain, checking their announced lengths.
+	 */
+	private static List<byte[]> send(final CommandChain chain) {
+		final List<byte[]> apdus = new ArrayList<>();
+
+		while (chain.hasNext()) {
+			final ByteBuffer out = ByteBuffer.allocate(chain.getNextLength());
+
+			assertEquals(out.capacity(), chain.next(out));
+			assertEquals(0, out.remaining());
+			apdus.add(out.array());
+		}
+
+		return apdus;
+	}
+
+	/**
+	 * Joins the data fields of a chain of short APDUs.
+	 */
+	private static byte[] dataOf(final List<byte[]> apdus) {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		for (final byte[] apdu : apdus) {
+			data.write(apdu, 5, apdu[4] & 0xff);
+		}
+
+		return data.toByteArray();
+	}
+
+	private static class TestApdu extends ApduEncoderTest.TestApdu {
+		TestApdu(final byte[] data) {
+			super(data);
+		}
+
+		@Override
+		protected byte getCommandClass() {
+			return CLA;
+		}
+	}
+}
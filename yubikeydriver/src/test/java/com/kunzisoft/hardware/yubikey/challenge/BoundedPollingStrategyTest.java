@@ -0,0 +1,98 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedPollingStrategyTest {
+	private static final StatusPollingStrategy.Phase WRITE_READY      = StatusPollingStrategy.Phase.WRITE_READY;
+	private static final StatusPollingStrategy.Phase RESPONSE_PENDING = StatusPollingStrategy.Phase.RESPONSE_PENDING;
+	private static final StatusPollingStrategy.Phase USER_TOUCH       = StatusPollingStrategy.Phase.USER_TOUCH;
+
+	@Test
+	public void intervals() {
+		final BoundedPollingStrategy strategy = BoundedPollingStrategy.DEFAULT;
+		final long[]                 expected = {1, 1, 1, 1, 2, 4, 8, 16, 16, 16};
+
+		for (int poll = 0; poll < expected.length; poll++) {
+			assertEquals(expected[poll], strategy.getPollInterval(WRITE_READY, poll));
+			assertEquals(expected[poll], strategy.getPollInterval(RESPONSE_PENDING, poll));
+			assertEquals(20, strategy.getPollInterval(USER_TOUCH, poll));
+		}
+	}
+
+	@Test
+	public void intervalsBounded() {
+		final BoundedPollingStrategy strategy = new BoundedPollingStrategy(2, 0, 1000, 20, 2000, 2000, 256000);
+
+		// Without a fast interval, the backoff still grows instead of spinning
+		assertEquals(0, strategy.getPollInterval(RESPONSE_PENDING, 1));
+		assertEquals(2, strategy.getPollInterval(RESPONSE_PENDING, 2));
+
+		for (int poll = 2; poll < 100; poll++) {
+			final long interval = strategy.getPollInterval(RESPONSE_PENDING, poll);
+
+			assertTrue(interval > 0 && interval <= 1000);
+			assertTrue(interval >= strategy.getPollInterval(RESPONSE_PENDING, poll - 1));
+		}
+
+		// The shift is bounded, a huge poll count cannot overflow the interval
+		assertEquals(1000, strategy.getPollInterval(RESPONSE_PENDING, Integer.MAX_VALUE));
+		assertEquals(16, BoundedPollingStrategy.DEFAULT.getPollInterval(RESPONSE_PENDING, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void budgets() {
+		final BoundedPollingStrategy strategy = new BoundedPollingStrategy(4, 1, 16, 20, 100, 200, 300);
+
+		assertEquals(100, strategy.getBudget(WRITE_READY));
+		assertEquals(200, strategy.getBudget(RESPONSE_PENDING));
+		assertEquals(300, strategy.getBudget(USER_TOUCH));
+	}
+
+	@Test
+	public void pollsWithinBudget() {
+		final BoundedPollingStrategy strategy = BoundedPollingStrategy.DEFAULT;
+
+		// 1 + 1 + 1 + 1 + 2 + 4 + 8 ms, then 16 ms per poll until the 2 s budget is spent
+		assertWait(strategy, RESPONSE_PENDING, false, 131, 2002);
+		assertWait(strategy, RESPONSE_PENDING, true, 131, 2001);
+		// 256 s at 20 ms per poll
+		assertWait(strategy, USER_TOUCH, false, 12801, 256020);
+
+		for (final StatusPollingStrategy.Phase phase : StatusPollingStrategy.Phase.values()) {
+			final long[] wait = wait(strategy, phase, false);
+
+			// The wait overshoots the budget by less than one interval
+			assertTrue(wait[1] > strategy.getBudget(phase));
+			assertTrue(wait[1] - strategy.getBudget(phase) <= strategy.getPollInterval(phase, (int) wait[0] - 1));
+		}
+	}
+
+	private static void assertWait(final StatusPollingStrategy strategy, final StatusPollingStrategy.Phase phase, final boolean pollFirst,
+								   final long polls, final long elapsed) {
+		final long[] wait = wait(strategy, phase, pollFirst);
+
+		assertEquals(polls, wait[0]);
+		assertEquals(elapsed, wait[1]);
+	}
+
+	/**
+	 * Replays the loop of {@link UsbYubiKey} waiting for a status flag that never changes, on a
+	 * virtual clock advanced by the intervals instead of sleeping.
+	 *
+	 * @return The number of polls and the time spent, in milliseconds.
+	 */
+	private static long[] wait(final StatusPollingStrategy strategy, final StatusPollingStrategy.Phase phase, final boolean pollFirst) {
+		long elapsed = 0;
+		int  poll    = 0;
+
+		do {
+			elapsed += pollFirst && poll == 0 ? 0 : strategy.getPollInterval(phase, poll);
+			poll++;
+		} while (elapsed <= strategy.getBudget(phase));
+
+		return new long[]{poll, elapsed};
+	}
+}
@@ -0,0 +1,95 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.simulator.SimulatedKey;
+import com.kunzisoft.hardware.yubikey.simulator.SimulatedOtpHidKey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceCapabilitiesTest {
+	private static final int CONFIG2_VALID = 0x02;
+	private static final int CONFIG1_TOUCH = 0x04;
+	private static final int CONFIG2_TOUCH = 0x08;
+
+	@Test
+	public void slotStatus() {
+		final DeviceCapabilities capabilities = create(4, 3, CONFIG2_VALID);
+
+		assertTrue(capabilities.hasSlotStatus());
+		assertFalse(capabilities.isProgrammed(Slot.CHALLENGE_HMAC_1));
+		assertTrue(capabilities.isProgrammed(Slot.CHALLENGE_HMAC_2));
+		assertEquals(Slot.CHALLENGE_HMAC_2, capabilities.selectSlot(Slot.CHALLENGE_HMAC_1));
+	}
+
+	@Test
+	public void noSlotStatusBeforeFirmware21() {
+		final DeviceCapabilities capabilities = create(2, 0, 0);
+
+		assertFalse(capabilities.hasSlotStatus());
+		assertTrue(capabilities.isProgrammed(Slot.CHALLENGE_HMAC_1));
+		assertTrue(capabilities.isProgrammed(Slot.CHALLENGE_HMAC_2));
+		assertEquals(Slot.CHALLENGE_HMAC_1, capabilities.selectSlot(Slot.CHALLENGE_HMAC_1));
+		assertTrue(capabilities.toString().contains("slot1=unknown"));
+		assertTrue(create(2, 1, 0).hasSlotStatus());
+	}
+
+	@Test
+	public void touchBitsDoNotTellTouch() {
+		final DeviceCapabilities capabilities = create(5, 4, CONFIG2_VALID | CONFIG1_TOUCH | CONFIG2_TOUCH);
+
+		assertEquals(DeviceCapabilities.Touch.UNKNOWN, capabilities.getTouch(Slot.CHALLENGE_HMAC_2));
+
+		capabilities.setTouch(Slot.CHALLENGE_HMAC_2, false);
+
+		assertEquals(DeviceCapabilities.Touch.NOT_REQUIRED, capabilities.getTouch(Slot.CHALLENGE_HMAC_2));
+		assertEquals(DeviceCapabilities.Touch.UNKNOWN, capabilities.getTouch(Slot.CHALLENGE_HMAC_1));
+	}
+
+	@Test
+	public void driverRecordsTouch() throws Exception {
+		final SimulatedKey key = new SimulatedKey(1)
+				.programSlot(Slot.CHALLENGE_HMAC_1, new byte[20], false)
+				.programSlot(Slot.CHALLENGE_HMAC_2, new byte[20], true)
+				.setTouchDelay(10);
+		final UsbYubiKey         yubiKey      = new UsbYubiKey(new SimulatedOtpHidKey(key));
+		final DeviceCapabilities capabilities = yubiKey.getCapabilities();
+
+		DeviceCapabilities.clearCache();
+
+		assertEquals(DeviceCapabilities.Touch.UNKNOWN, capabilities.getTouch(Slot.CHALLENGE_HMAC_1));
+		assertEquals(DeviceCapabilities.Touch.UNKNOWN, capabilities.getTouch(Slot.CHALLENGE_HMAC_2));
+
+		yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_1, new byte[]{1});
+		yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, new byte[]{1});
+
+		assertEquals(DeviceCapabilities.Touch.NOT_REQUIRED, capabilities.getTouch(Slot.CHALLENGE_HMAC_1));
+		assertEquals(DeviceCapabilities.Touch.REQUIRED, capabilities.getTouch(Slot.CHALLENGE_HMAC_2));
+	}
+
+	@Test
+	public void hiddenSerialNumber() throws Exception {
+		final SimulatedKey key = new SimulatedKey(1)
+				.programSlot(Slot.CHALLENGE_HMAC_2, new byte[20], false)
+				.setSerialHidden(true);
+		final long               start        = System.nanoTime();
+		final DeviceCapabilities capabilities = new UsbYubiKey(new SimulatedOtpHidKey(key)).getCapabilities();
+		final long               elapsedMs    = (System.nanoTime() - start) / 1000000;
+
+		DeviceCapabilities.clearCache();
+
+		assertEquals(DeviceCapabilities.UNKNOWN_SERIAL_NUMBER, capabilities.getSerialNumber());
+		assertTrue(capabilities.isProgrammed(Slot.CHALLENGE_HMAC_2));
+		// The probe must not wait out the timeout of a regular request
+		assertTrue("Probe took " + elapsedMs + " ms", elapsedMs < 1000);
+	}
+
+	private static DeviceCapabilities create(final int major, final int minor, final int touchLevel) {
+		final byte[] status = {(byte) major, (byte) minor, 0, 1, (byte) touchLevel, (byte) (touchLevel >> 8)};
+
+		return DeviceCapabilities.create(status, 0, DeviceCapabilities.UNKNOWN_SERIAL_NUMBER, null);
+	}
+}
@@ -0,0 +1,91 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link YubiKey} answering every request without hardware, e.g. to test the wrappers of the
+ * drivers. The response holds the slot and the first byte of the challenge. Tests override
+ * {@link #respond(Slot, byte[])} to block or to fail.
+ */
+class FakeYubiKey implements YubiKey {
+	final AtomicInteger transactions = new AtomicInteger();
+
+	@Nullable
+	volatile DeviceCapabilities  capabilities;
+	@Nullable
+	volatile TransactionListener transactionListener;
+
+	/**
+	 * Gets the response of this key to a challenge.
+	 *
+	 * @param slot The slot the challenge is sent to.
+	 * @param id   The first byte of the challenge.
+	 * @return The response.
+	 */
+	@NonNull
+	static byte[] response(@NonNull final Slot slot, final int id) {
+		final byte[] response = new byte[20];
+
+		response[0] = (byte) slot.ordinal();
+		response[1] = (byte) id;
+
+		return response;
+	}
+
+	/**
+	 * Answers a challenge, called once per transaction.
+	 */
+	@NonNull
+	protected byte[] respond(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		return response(slot, challenge.length > 0 ? challenge[0] : 0);
+	}
+
+	@NonNull
+	@Override
+	public byte[] challengeResponse(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		this.transactions.incrementAndGet();
+
+		return this.respond(slot, challenge);
+	}
+
+	@NonNull
+	@Override
+	public byte[] challengeResponseNonBlocking(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+		return this.challengeResponse(slot, challenge);
+	}
+
+	/**
+	 * Answers the batch in a single transaction.
+	 */
+	@NonNull
+	@Override
+	public List<byte[]> challengeResponse(@NonNull final List<ChallengeRequest> requests) throws YubiKeyException {
+		final List<byte[]> responses = new ArrayList<>(requests.size());
+
+		this.transactions.incrementAndGet();
+
+		for (final ChallengeRequest request : requests)
+			responses.add(this.respond(request.getSlot(), request.getChallenge()));
+
+		return responses;
+	}
+
+	@Override
+	public void setTransactionListener(@Nullable final TransactionListener listener) {
+		this.transactionListener = listener;
+	}
+
+	@Nullable
+	@Override
+	public DeviceCapabilities getCapabilities() {
+		return this.capabilities;
+	}
+}
@@ -0,0 +1,238 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.Crc16;
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyCrcException;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyInvalidResponseException;
+import com.kunzisoft.hardware.yubikey.simulator.SimulatedKey;
+import com.kunzisoft.hardware.yubikey.simulator.SimulatedOtpHidKey;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HidResponseDecoderTest {
+	private static final int  REPORT_DATA_SIZE        = 7;
+	private static final int  STATUS_RESPONSE_PENDING = 0x40;
+	private static final byte DUMMY_REPORT            = (byte) 0x8f;
+
+	private static final byte[] RESPONSE = filled(20);
+
+	@Test
+	public void decode() throws Exception {
+		final HidResponseDecoder decoder = new HidResponseDecoder();
+		final byte[]             target  = new byte[64];
+		final List<byte[]>       reports = reports(RESPONSE);
+
+		assertEquals(4, HidResponseDecoder.getReportCount(RESPONSE.length));
+		assertEquals(4, reports.size());
+
+		decoder.start(target, RESPONSE.length);
+
+		// Done with the last report carrying data, without waiting for the sequence to wrap
+		for (int i = 0; i < reports.size() - 1; i++)
+			assertFalse(decoder.accept(reports.get(i)));
+		assertTrue(decoder.accept(reports.get(reports.size() - 1)));
+
+		assertEquals(RESPONSE.length, decoder.getResponseLength());
+		assertArrayEquals(RESPONSE, Arrays.copyOf(target, RESPONSE.length));
+	}
+
+	@Test
+	public void decodeLengthPrefixed() throws Exception {
+		final HidResponseDecoder decoder  = new HidResponseDecoder();
+		final byte[]             target   = new byte[64];
+		final byte[]             response = filled(12);
+
+		response[0] = (byte) (response.length - 1);
+
+		final List<byte[]> reports = reports(response);
+
+		decoder.startLengthPrefixed(target);
+
+		for (int i = 0; i < reports.size() - 1; i++)
+			assertFalse(decoder.accept(reports.get(i)));
+		assertTrue(decoder.accept(reports.get(reports.size() - 1)));
+
+		assertEquals(response.length, decoder.getResponseLength());
+		assertArrayEquals(response, Arrays.copyOf(target, response.length));
+	}
+
+	@Test(expected = YubiKeyCrcException.class)
+	public void badCrcInOneChunk() throws Exception {
+		final List<byte[]> reports = reports(RESPONSE);
+
+		reports.get(1)[3] ^= 0x01;
+
+		decode(reports, RESPONSE.length);
+	}
+
+	@Test(expected = YubiKeyInvalidResponseException.class)
+	public void sequenceJump() throws Exception {
+		final List<byte[]> reports = reports(RESPONSE);
+
+		reports.remove(1);
+
+		decode(reports, RESPONSE.length);
+	}
+
+	@Test
+	public void tooFewReports() throws Exception {
+		final HidResponseDecoder decoder = new HidResponseDecoder();
+		final List<byte[]>       reports = reports(filled(10));
+
+		decoder.start(new byte[64], RESPONSE.length);
+
+		for (final byte[] report : reports)
+			assertFalse(decoder.accept(report));
+
+		// The key wraps the sequence number once it sent all its reports
+		final byte[] wrapped = new byte[REPORT_DATA_SIZE + 1];
+
+		wrapped[REPORT_DATA_SIZE] = STATUS_RESPONSE_PENDING;
+
+		try {
+			decoder.accept(wrapped);
+			fail("Accepted a report out of sequence");
+		} catch (final YubiKeyInvalidResponseException expected) {
+			// Data was lost, waiting for more cannot fix it
+		}
+	}
+
+	@Test(expected = YubiKeyInvalidResponseException.class)
+	public void tooManyReports() throws Exception {
+		final HidResponseDecoder decoder  = new HidResponseDecoder();
+		final byte[]             response = filled(80);
+
+		// Announces more data than the buffer holds
+		response[0] = (byte) (response.length - 1);
+
+		decoder.startLengthPrefixed(new byte[64]);
+		decoder.accept(reports(response).get(0));
+	}
+
+	@Test(expected = YubiKeyInvalidResponseException.class)
+	public void notPending() throws Exception {
+		final List<byte[]> reports = reports(RESPONSE);
+
+		reports.get(0)[REPORT_DATA_SIZE] = 0;
+
+		decode(reports, RESPONSE.length);
+	}
+
+	@Test
+	public void endReadSendsDummyReport() throws Exception {
+		final SimulatedKey       key       = new SimulatedKey(1).programSlot(Slot.CHALLENGE_HMAC_2, new byte[20], false);
+		final RecordingTransport transport = new RecordingTransport(new SimulatedOtpHidKey(key));
+		final UsbYubiKey         yubiKey   = new UsbYubiKey(transport);
+		final byte[]             challenge = {1, 2, 3};
+
+		assertArrayEquals(key.computeResponse(Slot.CHALLENGE_HMAC_2, challenge, challenge.length),
+						  yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, challenge));
+
+		// The read mode ends with a dummy report right after the last report carrying data
+		final byte[] dummy = new byte[REPORT_DATA_SIZE + 1];
+
+		dummy[REPORT_DATA_SIZE] = DUMMY_REPORT;
+
+		assertEquals("set", transport.operations.get(transport.operations.size() - 1));
+		assertArrayEquals(dummy, transport.lastSetReport);
+		assertEquals(HidResponseDecoder.getReportCount(RESPONSE.length), transport.pendingReports);
+	}
+
+	private static void decode(final List<byte[]> reports, final int expectedBytes) throws YubiKeyException {
+		final HidResponseDecoder decoder = new HidResponseDecoder();
+
+		decoder.start(new byte[64], expectedBytes);
+
+		for (final byte[] report : reports)
+			decoder.accept(report);
+	}
+
+	/**
+	 * Splits a response and its checksum into reports, as the key sends them.
+	 */
+	private static List<byte[]> reports(final byte[] response) {
+		final char   crc  = (char) ~Crc16.compute(response, 0, response.length);
+		final byte[] data = Arrays.copyOf(response, response.length + 2);
+
+		data[response.length] = (byte) crc;
+		data[response.length + 1] = (byte) (crc >> 8);
+
+		final List<byte[]> reports = new ArrayList<>();
+
+		for (int offset = 0, sequence = 0; offset < data.length; offset += REPORT_DATA_SIZE, sequence++) {
+			final byte[] report = new byte[REPORT_DATA_SIZE + 1];
+
+			System.arraycopy(data, offset, report, 0, Math.min(REPORT_DATA_SIZE, data.length - offset));
+			report[REPORT_DATA_SIZE] = (byte) (STATUS_RESPONSE_PENDING | sequence);
+			reports.add(report);
+		}
+
+		return reports;
+	}
+
+	private static byte[] filled(final int length) {
+		final byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (i + 1);
+
+		return data;
+	}
+
+	/**
+	 * Records the transfers of the driver with a simulated key.
+	 */
+	private static class RecordingTransport implements FeatureReportTransport {
+		private final FeatureReportTransport transport;
+
+		final List<String> operations = new ArrayList<>();
+		byte[]             lastSetReport;
+		int                pendingReports;
+
+		RecordingTransport(final FeatureReportTransport transport) {
+			this.transport = transport;
+		}
+
+		@Override
+		public boolean claim() {
+			return this.transport.claim();
+		}
+
+		@Override
+		public void release() {
+			this.transport.release();
+		}
+
+		@Override
+		public int getFeatureReport(@NonNull final byte[] report, final int length, final int timeout) {
+			final int bytes = this.transport.getFeatureReport(report, length, timeout);
+
+			this.operations.add("get");
+			if ((report[REPORT_DATA_SIZE] & STATUS_RESPONSE_PENDING) != 0)
+				this.pendingReports++;
+
+			return bytes;
+		}
+
+		@Override
+		public int setFeatureReport(@NonNull final byte[] report, final int length, final int timeout) {
+			this.operations.add("set");
+			this.lastSetReport = Arrays.copyOf(report, length);
+
+			return this.transport.setFeatureReport(report, length, timeout);
+		}
+	}
+}
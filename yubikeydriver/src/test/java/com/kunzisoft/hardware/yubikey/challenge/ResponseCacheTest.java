@@ -0,0 +1,152 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ResponseCacheTest {
+	private static final long   TTL_MS    = 60000;
+	private static final String CALLER    = "com.example.app";
+	private static final int    SERIAL    = 1234;
+	private static final byte[] CHALLENGE = {1, 2, 3};
+	private static final byte[] RESPONSE  = {4, 5, 6, 7};
+
+	@Test
+	public void hitAndMiss() {
+		final ResponseCache cache = new ResponseCache(TTL_MS, 4);
+
+		assertNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+		assertArrayEquals(RESPONSE, cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void expiry() throws Exception {
+		final ResponseCache cache = new ResponseCache(1, 4);
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+		Thread.sleep(20);
+
+		assertNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		assertEquals(0, cache.size());
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_1, CHALLENGE, RESPONSE);
+		Thread.sleep(20);
+
+		assertEquals(0, cache.purgeExpired());
+	}
+
+	@Test
+	public void leastRecentlyUsedDropped() {
+		final ResponseCache cache  = new ResponseCache(TTL_MS, 2);
+		final byte[]        first  = {1};
+		final byte[]        second = {2};
+		final byte[]        third  = {3};
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, first, RESPONSE);
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, second, RESPONSE);
+		// Reading the first entry makes the second one the least recently used
+		assertNotNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, first));
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, third, RESPONSE);
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, first));
+		assertNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, second));
+		assertNotNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, third));
+	}
+
+	@Test
+	public void scopedToCallerKeyAndSlot() {
+		final ResponseCache cache = new ResponseCache(TTL_MS, 4);
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+
+		assertNull(cache.get("com.example.other", SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		assertNull(cache.get(CALLER, SERIAL + 1, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		assertNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_1, CHALLENGE));
+		assertNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, new byte[]{1, 2, 4}));
+		assertArrayEquals(RESPONSE, cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+	}
+
+	@Test
+	public void entryBoundToItsKey() throws Exception {
+		final ResponseCache cache = new ResponseCache(TTL_MS, 4);
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+		cache.put("com.example.other", SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+
+		// Moving an entry under the key of another app must not give it the response
+		final Map<String, Object> entries = entries(cache);
+		final String              other   = keyOf(entries, "com.example.other");
+
+		entries.put(other, entries.get(keyOf(entries, CALLER)));
+
+		assertNull(cache.get("com.example.other", SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void tamperedCiphertext() throws Exception {
+		final ResponseCache cache = new ResponseCache(TTL_MS, 4);
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+
+		final Object entry      = entries(cache).values().iterator().next();
+		final Field  ciphertext = entry.getClass().getDeclaredField("ciphertext");
+
+		ciphertext.setAccessible(true);
+		((byte[]) ciphertext.get(entry))[0] ^= 0x01;
+
+		assertNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		// The entry is useless, it is dropped
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void clear() {
+		final ResponseCache cache = new ResponseCache(TTL_MS, 4);
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+		assertNotNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		cache.clear();
+
+		assertEquals(0, cache.size());
+		assertNull(cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		// The counters survive, the cache keeps working with its new key
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		cache.put(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE, RESPONSE);
+		assertArrayEquals(RESPONSE, cache.get(CALLER, SERIAL, Slot.CHALLENGE_HMAC_2, CHALLENGE));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> entries(final ResponseCache cache) throws ReflectiveOperationException {
+		final Field entries = ResponseCache.class.getDeclaredField("entries");
+
+		entries.setAccessible(true);
+
+		return (Map<String, Object>) entries.get(cache);
+	}
+
+	private static String keyOf(final Map<String, Object> entries, final String caller) {
+		for (final String key : entries.keySet()) {
+			if (key.startsWith(caller + ":"))
+				return key;
+		}
+
+		throw new AssertionError("No entry for " + caller);
+	}
+}
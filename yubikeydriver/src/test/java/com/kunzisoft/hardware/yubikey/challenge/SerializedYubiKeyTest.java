@@ -0,0 +1,228 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyTimeoutException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SerializedYubiKeyTest {
+	@Test
+	public void priorityViews() throws Exception {
+		final BlockingYubiKey   key     = new BlockingYubiKey();
+		final SerializedYubiKey yubiKey = new SerializedYubiKey(key, "test");
+		final List<Thread>      callers = new ArrayList<>();
+
+		assertSame(yubiKey, yubiKey.withPriority(YubiKeyExecutor.Priority.NORMAL));
+		assertEquals(YubiKeyExecutor.Priority.INTERACTIVE, yubiKey.withPriority(YubiKeyExecutor.Priority.INTERACTIVE).getPriority());
+
+		callers.add(call(yubiKey, 0));
+		key.started.await();
+
+		callers.add(call(yubiKey.withPriority(YubiKeyExecutor.Priority.BACKGROUND), 1));
+		awaitQueueLength(yubiKey, 1);
+		callers.add(call(yubiKey, 2));
+		awaitQueueLength(yubiKey, 2);
+		callers.add(call(yubiKey.withPriority(YubiKeyExecutor.Priority.INTERACTIVE), 3));
+		awaitQueueLength(yubiKey, 3);
+
+		key.release.countDown();
+		for (final Thread caller : callers) {
+			caller.join();
+		}
+
+		assertEquals(Arrays.asList(0, 3, 2, 1), key.order);
+		yubiKey.shutdown();
+	}
+
+	@Test
+	public void sameChallengeSharesTransaction() throws Exception {
+		final BlockingYubiKey   key     = new BlockingYubiKey();
+		final SerializedYubiKey yubiKey = new SerializedYubiKey(key, "test");
+		final Caller            first   = new Caller(yubiKey, Slot.CHALLENGE_HMAC_2, 5);
+
+		key.started.await();
+
+		final Caller second = new Caller(yubiKey.withPriority(YubiKeyExecutor.Priority.INTERACTIVE), Slot.CHALLENGE_HMAC_2, 5);
+
+		awaitWaiting(second);
+		key.release.countDown();
+		first.join();
+		second.join();
+
+		assertEquals(Collections.singletonList(5), key.order);
+		assertNull(first.error);
+		assertNull(second.error);
+		assertArrayEquals(FakeYubiKey.response(Slot.CHALLENGE_HMAC_2, 5), first.response);
+		assertArrayEquals(first.response, second.response);
+		yubiKey.shutdown();
+	}
+
+	@Test
+	public void otherChallengesAreNotShared() throws Exception {
+		final BlockingYubiKey   key     = new BlockingYubiKey();
+		final SerializedYubiKey yubiKey = new SerializedYubiKey(key, "test");
+		final Caller            first   = new Caller(yubiKey, Slot.CHALLENGE_HMAC_2, 5);
+
+		key.started.await();
+
+		final Caller otherChallenge = new Caller(yubiKey, Slot.CHALLENGE_HMAC_2, 6);
+
+		awaitQueueLength(yubiKey, 1);
+
+		final Caller otherSlot = new Caller(yubiKey, Slot.CHALLENGE_HMAC_1, 5);
+
+		awaitQueueLength(yubiKey, 2);
+		key.release.countDown();
+		first.join();
+		otherChallenge.join();
+		otherSlot.join();
+
+		assertEquals(Arrays.asList(5, 6, 5), key.order);
+		assertArrayEquals(FakeYubiKey.response(Slot.CHALLENGE_HMAC_2, 6), otherChallenge.response);
+		assertArrayEquals(FakeYubiKey.response(Slot.CHALLENGE_HMAC_1, 5), otherSlot.response);
+		yubiKey.shutdown();
+	}
+
+	@Test
+	public void failureReachesEveryCaller() throws Exception {
+		final BlockingYubiKey   key     = new BlockingYubiKey();
+		final SerializedYubiKey yubiKey = new SerializedYubiKey(key, "test");
+
+		key.failure = new YubiKeyTimeoutException("Timeout", false);
+
+		final Caller first = new Caller(yubiKey, Slot.CHALLENGE_HMAC_2, 5);
+
+		key.started.await();
+
+		final Caller second = new Caller(yubiKey, Slot.CHALLENGE_HMAC_2, 5);
+
+		awaitWaiting(second);
+		key.release.countDown();
+		first.join();
+		second.join();
+
+		assertEquals(Collections.singletonList(5), key.order);
+		assertSame(key.failure, first.error);
+		assertSame(key.failure, second.error);
+		assertNull(second.response);
+		yubiKey.shutdown();
+	}
+
+	@Test
+	public void batchIsOneOperation() throws Exception {
+		final FakeYubiKey       key       = new FakeYubiKey();
+		final SerializedYubiKey yubiKey   = new SerializedYubiKey(key, "test");
+		final List<byte[]>      responses = yubiKey.challengeResponse(Arrays.asList(
+				new ChallengeRequest(Slot.CHALLENGE_HMAC_1, new byte[]{1}),
+				new ChallengeRequest(Slot.CHALLENGE_HMAC_2, new byte[]{2})));
+
+		assertEquals(1, key.transactions.get());
+		assertArrayEquals(FakeYubiKey.response(Slot.CHALLENGE_HMAC_1, 1), responses.get(0));
+		assertArrayEquals(FakeYubiKey.response(Slot.CHALLENGE_HMAC_2, 2), responses.get(1));
+		yubiKey.shutdown();
+	}
+
+	private static Thread call(final SerializedYubiKey yubiKey, final int id) {
+		final Thread thread = new Thread(() -> {
+			try {
+				yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, new byte[]{(byte) id});
+			} catch (final YubiKeyException e) {
+				throw new AssertionError(e);
+			}
+		});
+
+		thread.start();
+
+		return thread;
+	}
+
+	/**
+	 * Waits until a caller waits for the response of another one.
+	 */
+	private static void awaitWaiting(final Thread thread) throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+	}
+
+	private static void awaitQueueLength(final SerializedYubiKey yubiKey, final int length) throws InterruptedException {
+		while (yubiKey.getExecutor().getQueueLength() < length) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Sends a challenge of one byte from its own thread and keeps the outcome.
+	 */
+	private static class Caller extends Thread {
+		private final SerializedYubiKey yubiKey;
+		private final Slot              slot;
+		private final int               id;
+
+		volatile byte[]           response;
+		volatile YubiKeyException error;
+
+		Caller(final SerializedYubiKey yubiKey, final Slot slot, final int id) {
+			this.yubiKey = yubiKey;
+			this.slot = slot;
+			this.id = id;
+			this.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.response = this.yubiKey.challengeResponse(this.slot, new byte[]{(byte) this.id});
+			} catch (final YubiKeyException e) {
+				this.error = e;
+			}
+		}
+	}
+
+	/**
+	 * Records the order of the challenges, the first one waits until it is released. Fails with
+	 * {@link #failure} if it is set.
+	 */
+	private static class BlockingYubiKey extends FakeYubiKey {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer>  order   = Collections.synchronizedList(new ArrayList<>());
+
+		volatile YubiKeyException failure;
+
+		@NonNull
+		@Override
+		protected byte[] respond(@NonNull final Slot slot, @NonNull final byte[] challenge) throws YubiKeyException {
+			if (this.order.isEmpty()) {
+				this.started.countDown();
+
+				try {
+					this.release.await();
+				} catch (final InterruptedException e) {
+					throw new AssertionError(e);
+				}
+			}
+
+			this.order.add((int) challenge[0]);
+
+			if (this.failure != null)
+				throw this.failure;
+
+			return super.respond(slot, challenge);
+		}
+	}
+}
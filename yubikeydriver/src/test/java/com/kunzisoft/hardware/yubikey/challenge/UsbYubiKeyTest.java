@@ -0,0 +1,99 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyTimeoutException;
+import com.kunzisoft.hardware.yubikey.YubiKeyTouchRequiredException;
+import com.kunzisoft.hardware.yubikey.simulator.SimulatedKey;
+import com.kunzisoft.hardware.yubikey.simulator.SimulatedOtpHidKey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UsbYubiKeyTest {
+	private static final byte[] SECRET    = new byte[20];
+	private static final byte[] CHALLENGE = {1, 2, 3};
+
+	@Test
+	public void nonBlockingWithoutTouch() throws Exception {
+		final SimulatedKey key     = new SimulatedKey(1).programSlot(Slot.CHALLENGE_HMAC_2, SECRET, false);
+		final UsbYubiKey   yubiKey = new UsbYubiKey(new SimulatedOtpHidKey(key));
+
+		assertArrayEquals(key.computeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, CHALLENGE.length),
+						  yubiKey.challengeResponseNonBlocking(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+	}
+
+	@Test
+	public void nonBlockingGivesUpOnTouch() throws Exception {
+		final SimulatedKey       key          = new SimulatedKey(2).programSlot(Slot.CHALLENGE_HMAC_2, SECRET, true).setTouchDelay(-1);
+		final SimulatedOtpHidKey hid          = new SimulatedOtpHidKey(key);
+		final UsbYubiKey         yubiKey      = new UsbYubiKey(hid);
+		final DeviceCapabilities capabilities = yubiKey.getCapabilities();
+
+		DeviceCapabilities.clearCache();
+
+		try {
+			yubiKey.challengeResponseNonBlocking(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			fail("Waited for the touch");
+		} catch (final YubiKeyTouchRequiredException expected) {
+			// The service hands the request over to the activity
+		}
+
+		assertEquals(DeviceCapabilities.Touch.REQUIRED, capabilities.getTouch(Slot.CHALLENGE_HMAC_2));
+
+		// The key was reset and answers the next request
+		key.setTouchDelay(10);
+		assertArrayEquals(key.computeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, CHALLENGE.length),
+						  yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+	}
+
+	@Test
+	public void retryWithoutTouch() throws Exception {
+		final SimulatedKey       key     = new SimulatedKey(3).programSlot(Slot.CHALLENGE_HMAC_2, SECRET, false);
+		final SimulatedOtpHidKey hid     = new SimulatedOtpHidKey(key).setCorruptReports(1);
+		final UsbYubiKey         yubiKey = new UsbYubiKey(hid);
+
+		assertArrayEquals(key.computeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, CHALLENGE.length),
+						  yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+	}
+
+	@Test
+	public void noRetryAfterTouch() throws Exception {
+		final SimulatedKey       key     = new SimulatedKey(4).programSlot(Slot.CHALLENGE_HMAC_2, SECRET, true).setTouchDelay(10);
+		final SimulatedOtpHidKey hid     = new SimulatedOtpHidKey(key).setCorruptReports(1);
+		final UsbYubiKey         yubiKey = new UsbYubiKey(hid);
+
+		try {
+			yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE);
+			fail("Corrupt response accepted");
+		} catch (final YubiKeyException expected) {
+			// The user touched the key once, the request is not sent again behind their back
+		}
+
+		assertEquals(1, hid.getTouchCount());
+	}
+
+	@Test
+	public void hiddenSerialNumber() throws Exception {
+		final SimulatedKey       key     = new SimulatedKey(5).setSerialHidden(true);
+		final SimulatedOtpHidKey hid     = new SimulatedOtpHidKey(key);
+		final UsbYubiKey         yubiKey = new UsbYubiKey(hid);
+		final long               start   = System.nanoTime();
+
+		try {
+			yubiKey.getSerialNumber();
+			fail("Hidden serial number read");
+		} catch (final YubiKeyTimeoutException expected) {
+			// Asked once, a key that hides its serial number never answers
+		}
+
+		final long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+		assertTrue("Serial number request took " + elapsedMs + " ms", elapsedMs < 1000);
+		assertEquals(1, hid.getClaimCount());
+	}
+}
@@ -0,0 +1,96 @@
+package com.kunzisoft.hardware.yubikey.challenge;
+
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.YubiKeyInterruptedException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class YubiKeyExecutorTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	@Test
+	public void shutdownWaitsForRunningOperation() throws Exception {
+		final YubiKeyExecutor executor = new YubiKeyExecutor(new FakeYubiKey(), "test");
+		final CountDownLatch  started  = new CountDownLatch(1);
+		final CountDownLatch  release  = new CountDownLatch(1);
+		final CountDownLatch  closed   = new CountDownLatch(1);
+		final List<String>    events   = Collections.synchronizedList(new ArrayList<>());
+
+		final Thread caller = new Thread(() -> {
+			try {
+				executor.execute(YubiKeyExecutor.Priority.NORMAL, yubiKey -> {
+					started.countDown();
+
+					try {
+						release.await();
+					} catch (final InterruptedException e) {
+						throw new YubiKeyInterruptedException("Interrupted");
+					}
+
+					events.add("operation");
+
+					return null;
+				});
+			} catch (final YubiKeyException e) {
+				throw new AssertionError(e);
+			}
+		});
+
+		caller.start();
+		assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+		executor.shutdown(() -> {
+			events.add("close");
+			closed.countDown();
+		});
+
+		// The connection must stay open as long as the operation uses it
+		assertEquals(Collections.emptyList(), events);
+
+		release.countDown();
+		assertTrue(closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		caller.join();
+
+		assertEquals(Arrays.asList("operation", "close"), events);
+	}
+
+	@Test
+	public void shutdownOfIdleWorker() throws Exception {
+		final YubiKeyExecutor executor = new YubiKeyExecutor(new FakeYubiKey(), "test");
+		final CountDownLatch  closed   = new CountDownLatch(1);
+
+		executor.execute(YubiKeyExecutor.Priority.NORMAL, yubiKey -> null);
+		executor.shutdown(closed::countDown);
+
+		assertTrue(closed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void shutdownWithoutWorker() throws Exception {
+		final YubiKeyExecutor executor = new YubiKeyExecutor(new FakeYubiKey(), "test");
+		final Thread[]        thread   = new Thread[1];
+
+		executor.shutdown(() -> thread[0] = Thread.currentThread());
+
+		assertSame(Thread.currentThread(), thread[0]);
+
+		try {
+			executor.execute(YubiKeyExecutor.Priority.NORMAL, yubiKey -> null);
+			fail("Executed after shutdown");
+		} catch (final YubiKeyException expected) {
+			// Nothing may use the key once it is closed
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.kunzisoft.hardware.yubikey.simulator
+
+import com.kunzisoft.hardware.yubikey.Slot
+import com.kunzisoft.hardware.yubikey.challenge.ApduTransport
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Simulates the ISO 7816 interface of a YubiKey reached over NFC, so that
+ * [com.kunzisoft.hardware.yubikey.challenge.NfcYubiKey] can run without hardware.
+ *
+ * The OTP applet answers SELECT with the status bytes of the key and PUT on a challenge-response
+ * slot with the HMAC-SHA1 response. Command chaining and extended length fields are understood,
+ * and the tag may be dropped to simulate a key moved away from the reader.
+ */
+class SimulatedApduKey(private val key: SimulatedKey) : ApduTransport {
+
+    override var isConnected = false
+        private set
+
+    override var maxTransceiveLength = 253
+
+    override var isExtendedLengthApduSupported = false
+
+    override var timeout = 0
+
+    /**
+     * Latency added to every exchange to model the radio round trip, in microseconds.
+     */
+    var exchangeLatency = 0L
+
+    var exchangeCount = 0
+        private set
+
+    var selectCount = 0
+        private set
+
+    private var appletSelected = false
+    private val chainedData = ByteArrayOutputStream()
+
+    /**
+     * Simulates the key leaving the field: the connection is closed and the next exchange fails.
+     */
+    fun dropTag() {
+        isConnected = false
+    }
+
+    fun resetCounters() {
+        exchangeCount = 0
+        selectCount = 0
+    }
+
+    override fun connect() {
+        isConnected = true
+        appletSelected = false
+        chainedData.reset()
+    }
+
+    override fun transceive(apdu: ByteArray): ByteArray {
+        if (!isConnected) {
+            throw IOException("Tag was lost.")
+        }
+        if (exchangeLatency > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(exchangeLatency))
+        }
+        exchangeCount++
+        if (apdu.size < 4) {
+            return SW_WRONG_LENGTH
+        }
+
+        val cla = apdu[0].toInt() and 0xff
+        val ins = apdu[1].toInt() and 0xff
+        val p1 = apdu[2]
+        val data = commandData(apdu) ?: return SW_WRONG_LENGTH
+
+        chainedData.write(data, 0, data.size)
+        if (cla and CLA_CHAINING != 0) {
+            return SW_SUCCESS
+        }
+        val commandData = chainedData.toByteArray()
+        chainedData.reset()
+
+        return when (ins) {
+            INS_SELECT -> select(commandData)
+            INS_PUT -> put(p1, commandData)
+            else -> SW_INS_NOT_SUPPORTED
+        }
+    }
+
+    private fun select(aid: ByteArray): ByteArray {
+        selectCount++
+        appletSelected = aid.contentEquals(OTP_AID)
+        if (!appletSelected) {
+            return SW_FILE_NOT_FOUND
+        }
+        val status = ByteArray(6)
+        key.writeStatus(status, 0)
+        return status + SW_SUCCESS
+    }
+
+    private fun put(address: Byte, data: ByteArray): ByteArray {
+        if (!appletSelected) {
+            return SW_INS_NOT_SUPPORTED
+        }
+        if (address == Slot.DEVICE_SERIAL.address) {
+            val serial = key.serialNumber
+            return byteArrayOf(
+                (serial shr 24).toByte(),
+                (serial shr 16).toByte(),
+                (serial shr 8).toByte(),
+                serial.toByte()
+            ) + SW_SUCCESS
+        }
+        if (address == Slot.YUBIKEY_4_CAPABILITIES.address) {
+            return key.capabilities + SW_SUCCESS
+        }
+        val slot = Slot.values().find { it.address == address && key.isProgrammed(it) }
+            ?: return SW_WRONG_DATA
+        return key.computeResponse(slot, data, data.size) + SW_SUCCESS
+    }
+
+    /**
+     * Extracts the command data of a short or extended APDU, or returns null if the length
+     * fields do not match the size of the APDU.
+     */
+    private fun commandData(apdu: ByteArray): ByteArray? {
+        if (apdu.size <= 5) {
+            return ByteArray(0)
+        }
+        var offset = 5
+        var length = apdu[4].toInt() and 0xff
+        if (length == 0) {
+            if (!isExtendedLengthApduSupported || apdu.size < 7) {
+                return null
+            }
+            length = ((apdu[5].toInt() and 0xff) shl 8) or (apdu[6].toInt() and 0xff)
+            offset = 7
+        }
+        if (offset + length > apdu.size) {
+            return null
+        }
+        return apdu.copyOfRange(offset, offset + length)
+    }
+
+    companion object {
+        private const val CLA_CHAINING = 0x10
+        private const val INS_SELECT = 0xa4
+        private const val INS_PUT = 0x01
+
+        private val OTP_AID = byteArrayOf(0xa0.toByte(), 0x00, 0x00, 0x05, 0x27, 0x20, 0x01)
+
+        private val SW_SUCCESS = byteArrayOf(0x90.toByte(), 0x00)
+        private val SW_WRONG_LENGTH = byteArrayOf(0x67, 0x00)
+        private val SW_WRONG_DATA = byteArrayOf(0x6a, 0x80.toByte())
+        private val SW_FILE_NOT_FOUND = byteArrayOf(0x6a, 0x82.toByte())
+        private val SW_INS_NOT_SUPPORTED = byteArrayOf(0x6d, 0x00)
+    }
+}
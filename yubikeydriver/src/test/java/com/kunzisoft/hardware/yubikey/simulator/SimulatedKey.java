@@ -0,0 +1,180 @@
+package com.kunzisoft.hardware.yubikey.simulator;
+
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * State of a simulated YubiKey: serial number, firmware version and the HMAC-SHA1 secrets of its
+ * challenge-response slots. Shared by the simulated transports so that the USB and NFC paths
+ * answer the same challenges with the same responses.
+ */
+public class SimulatedKey {
+	private static final int CONFIG1_VALID = 0x01;
+	private static final int CONFIG2_VALID = 0x02;
+
+	private static final int HMAC_CHALLENGE_LENGTH = 64;
+
+	private static final int TAG_USB_SUPPORTED = 0x01;
+	private static final int TAG_SERIAL        = 0x02;
+	private static final int TAG_FIRMWARE      = 0x05;
+
+	private final int       serialNumber;
+	private final byte[]    version             = {4, 3, 7};
+	private       byte      programmingSequence = 0;
+	private final Mac[]     secrets             = new Mac[2];
+	private final boolean[] touchRequired       = new boolean[2];
+	private       long      touchDelay          = 500;
+	private       boolean   serialHidden        = false;
+
+	/**
+	 * @param serialNumber Serial number reported by the simulated key.
+	 */
+	public SimulatedKey(final int serialNumber) {
+		this.serialNumber = serialNumber;
+	}
+
+	/**
+	 * Programs a challenge-response slot.
+	 *
+	 * @param slot          {@link Slot#CHALLENGE_HMAC_1} or {@link Slot#CHALLENGE_HMAC_2}.
+	 * @param secret        HMAC-SHA1 secret of the slot.
+	 * @param requiresTouch Whether a response needs the user to touch the key.
+	 * @return This instance.
+	 */
+	@NonNull
+	public SimulatedKey programSlot(@NonNull final Slot slot, @NonNull final byte[] secret, final boolean requiresTouch) {
+		final int index = slotIndex(slot);
+
+		try {
+			this.secrets[index] = Mac.getInstance("HmacSHA1");
+			this.secrets[index].init(new SecretKeySpec(secret, "HmacSHA1"));
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		this.touchRequired[index] = requiresTouch;
+		this.programmingSequence++;
+
+		return this;
+	}
+
+	/**
+	 * Sets how long the simulated user takes to touch the key.
+	 *
+	 * @param touchDelay Delay in milliseconds, or a negative value if the user never touches it.
+	 * @return This instance.
+	 */
+	@NonNull
+	public SimulatedKey setTouchDelay(final long touchDelay) {
+		this.touchDelay = touchDelay;
+
+		return this;
+	}
+
+	/**
+	 * Hides the serial number, like a key whose configuration clears SERIAL_API_VISIBLE.
+	 *
+	 * @param serialHidden Whether requests for the serial number go unanswered.
+	 * @return This instance.
+	 */
+	@NonNull
+	public SimulatedKey setSerialHidden(final boolean serialHidden) {
+		this.serialHidden = serialHidden;
+
+		return this;
+	}
+
+	public boolean isSerialHidden() {
+		return this.serialHidden;
+	}
+
+	public int getSerialNumber() {
+		return this.serialNumber;
+	}
+
+	public long getTouchDelay() {
+		return this.touchDelay;
+	}
+
+	public boolean isProgrammed(@NonNull final Slot slot) {
+		return slot.isChallengeResponseSlot() && this.secrets[slotIndex(slot)] != null;
+	}
+
+	public boolean requiresTouch(@NonNull final Slot slot) {
+		return this.isProgrammed(slot) && this.touchRequired[slotIndex(slot)];
+	}
+
+	/**
+	 * Writes the 6 status bytes of the key: firmware version (3 bytes), programming sequence and
+	 * touch level (2 bytes, little endian). Like on a real key, the touch bits only concern OTP
+	 * configurations and stay clear for challenge-response slots, even those waiting for a touch.
+	 *
+	 * @param buffer Destination buffer.
+	 * @param offset Position of the first status byte.
+	 */
+	public void writeStatus(@NonNull final byte[] buffer, final int offset) {
+		int touchLevel = 0;
+
+		if (this.isProgrammed(Slot.CHALLENGE_HMAC_1))
+			touchLevel |= CONFIG1_VALID;
+		if (this.isProgrammed(Slot.CHALLENGE_HMAC_2))
+			touchLevel |= CONFIG2_VALID;
+
+		System.arraycopy(this.version, 0, buffer, offset, 3);
+		buffer[offset + 3] = this.programmingSequence;
+		buffer[offset + 4] = (byte) (touchLevel & 0xff);
+		buffer[offset + 5] = (byte) (touchLevel >> 8);
+	}
+
+	/**
+	 * Gets the capabilities reported by a YubiKey 4: their length followed by TLVs of the supported
+	 * USB applications, the serial number and the firmware version.
+	 *
+	 * @return The length-prefixed capabilities.
+	 */
+	@NonNull
+	public byte[] getCapabilities() {
+		final int serial = this.serialNumber;
+
+		return new byte[]{
+				15,
+				TAG_USB_SUPPORTED, 2, 0x02, 0x3f,
+				TAG_SERIAL, 4, (byte) (serial >> 24), (byte) (serial >> 16), (byte) (serial >> 8), (byte) serial,
+				TAG_FIRMWARE, 3, this.version[0], this.version[1], this.version[2]
+		};
+	}
+
+	/**
+	 * Computes the response of a programmed slot. Like a key configured for variable length
+	 * challenges, a 64-byte challenge is stripped of the trailing bytes equal to its last byte.
+	 *
+	 * @param slot      The slot to use, must be programmed.
+	 * @param challenge Buffer holding the challenge.
+	 * @param length    Length of the challenge.
+	 * @return The 20-byte HMAC-SHA1 response.
+	 */
+	@NonNull
+	public byte[] computeResponse(@NonNull final Slot slot, @NonNull final byte[] challenge, int length) {
+		if (length == HMAC_CHALLENGE_LENGTH) {
+			final byte padding = challenge[length - 1];
+
+			while (length > 0 && challenge[length - 1] == padding) {
+				length--;
+			}
+		}
+
+		final Mac mac = this.secrets[slotIndex(slot)];
+		mac.update(challenge, 0, length);
+
+		return mac.doFinal();
+	}
+
+	private static int slotIndex(final Slot slot) {
+		return slot == Slot.CHALLENGE_HMAC_1 ? 0 : 1;
+	}
+}
@@ -0,0 +1,307 @@
+package com.kunzisoft.hardware.yubikey.simulator;
+
+import androidx.annotation.NonNull;
+
+import com.kunzisoft.hardware.yubikey.Crc16;
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.challenge.FeatureReportTransport;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the OTP HID interface of a YubiKey on the feature report level, so that
+ * {@link com.kunzisoft.hardware.yubikey.challenge.UsbYubiKey} can run without hardware.
+ * <p>
+ * Written frames are reassembled from their sequence numbers and checked with their CRC, the
+ * WRITE flag is kept for a configurable number of polls after each report, slots configured for
+ * touch report the WAITING flag until the simulated user touched the key, and responses are
+ * returned in numbered reports protected by the inverted CRC, like the real device does. Frames
+ * written while a response is read are ignored until the read ends with the wrap of the sequence
+ * number or a reset report.
+ */
+public class SimulatedOtpHidKey implements FeatureReportTransport {
+	private static final int  REPORT_SIZE         = 8;
+	private static final int  REPORT_DATA_SIZE    = REPORT_SIZE - 1;
+	private static final int  PAYLOAD_LENGTH      = 64;
+	private static final int  FRAME_LENGTH        = PAYLOAD_LENGTH + 6;
+	private static final int  LAST_WRITE_SEQUENCE = FRAME_LENGTH / REPORT_DATA_SIZE - 1;
+	private static final int  DUMMY_REPORT        = 0x8f;
+	private static final long TOUCH_TIMEOUT_MS    = 15000;
+
+	private static final int STATUS_FLAG_WAITING          = 0x20;
+	private static final int STATUS_FLAG_RESPONSE_PENDING = 0x40;
+	private static final int STATUS_FLAG_WRITE            = 0x80;
+	private static final int SEQUENCE_MASK                = 0x1f;
+
+	private enum State {
+		IDLE,
+		WAITING_FOR_TOUCH,
+		RESPONDING
+	}
+
+	private final SimulatedKey key;
+	private final byte[]       frame    = new byte[FRAME_LENGTH];
+	private final byte[]       response = new byte[REPORT_DATA_SIZE * 8];
+
+	private State   state            = State.IDLE;
+	private int     responseReports  = 0;
+	private int     readIndex        = 0;
+	private long    touchDeadline    = 0;
+	private long    touchTimeout     = 0;
+	private int     writeBusyPolls   = 0;
+	private int     writeBusyPending = 0;
+	private long    transferLatency  = 0;
+	private int     corruptReports   = 0;
+	private boolean claimed          = false;
+
+	private int getReportCount = 0;
+	private int setReportCount = 0;
+	private int claimCount     = 0;
+	private int touchCount     = 0;
+
+	/**
+	 * @param key The simulated key answering the requests.
+	 */
+	public SimulatedOtpHidKey(@NonNull final SimulatedKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Keeps the WRITE flag set for a number of polls after each written report, as a busy key does.
+	 *
+	 * @param writeBusyPolls Number of status polls that still see the WRITE flag.
+	 * @return This instance.
+	 */
+	@NonNull
+	public SimulatedOtpHidKey setWriteBusyPolls(final int writeBusyPolls) {
+		this.writeBusyPolls = writeBusyPolls;
+
+		return this;
+	}
+
+	/**
+	 * Adds a fixed latency to every transfer to model the cost of a USB control transfer.
+	 *
+	 * @param transferLatency Latency per transfer in microseconds.
+	 * @return This instance.
+	 */
+	@NonNull
+	public SimulatedOtpHidKey setTransferLatency(final long transferLatency) {
+		this.transferLatency = transferLatency;
+
+		return this;
+	}
+
+	/**
+	 * Flips a bit in the next response reports, as a flaky cable or OTG adapter does.
+	 *
+	 * @param corruptReports Number of response reports to corrupt.
+	 * @return This instance.
+	 */
+	@NonNull
+	public SimulatedOtpHidKey setCorruptReports(final int corruptReports) {
+		this.corruptReports = corruptReports;
+
+		return this;
+	}
+
+	public int getGetReportCount() {
+		return this.getReportCount;
+	}
+
+	public int getSetReportCount() {
+		return this.setReportCount;
+	}
+
+	public int getClaimCount() {
+		return this.claimCount;
+	}
+
+	/**
+	 * @return Number of requests that waited for a touch of the user.
+	 */
+	public int getTouchCount() {
+		return this.touchCount;
+	}
+
+	/**
+	 * Resets the transfer counters.
+	 */
+	public void resetCounters() {
+		this.getReportCount = 0;
+		this.setReportCount = 0;
+		this.claimCount = 0;
+		this.touchCount = 0;
+	}
+
+	@Override
+	public synchronized boolean claim() {
+		this.claimed = true;
+		this.claimCount++;
+
+		return true;
+	}
+
+	@Override
+	public synchronized void release() {
+		this.claimed = false;
+	}
+
+	@Override
+	public synchronized int getFeatureReport(@NonNull final byte[] report, final int length, final int timeout) {
+		if (!this.claimed || length != REPORT_SIZE)
+			return -1;
+
+		this.transfer();
+		this.getReportCount++;
+
+		Arrays.fill(report, 0, REPORT_SIZE, (byte) 0);
+
+		if (this.state == State.WAITING_FOR_TOUCH) {
+			final long now = System.nanoTime();
+
+			if (now - this.touchTimeout >= 0) {
+				// The key gives up waiting for the user
+				this.state = State.IDLE;
+			} else if (this.touchDeadline != Long.MAX_VALUE && now - this.touchDeadline >= 0) {
+				this.state = State.RESPONDING;
+			} else {
+				report[REPORT_SIZE - 1] = STATUS_FLAG_WAITING;
+
+				return REPORT_SIZE;
+			}
+		}
+
+		if (this.state == State.RESPONDING) {
+			final int index = this.readIndex++;
+
+			if (index < this.responseReports) {
+				System.arraycopy(this.response, index * REPORT_DATA_SIZE, report, 0, REPORT_DATA_SIZE);
+
+				if (this.corruptReports > 0) {
+					this.corruptReports--;
+					report[0] ^= 0x01;
+				}
+			} else {
+				// The sequence number wraps to 0 once all the reports were read
+				this.state = State.IDLE;
+			}
+
+			report[REPORT_SIZE - 1] = (byte) (STATUS_FLAG_RESPONSE_PENDING | (index < this.responseReports ? index & SEQUENCE_MASK : 0));
+
+			return REPORT_SIZE;
+		}
+
+		this.key.writeStatus(report, 1);
+
+		if (this.writeBusyPending > 0) {
+			this.writeBusyPending--;
+			report[REPORT_SIZE - 1] = (byte) STATUS_FLAG_WRITE;
+		}
+
+		return REPORT_SIZE;
+	}
+
+	@Override
+	public synchronized int setFeatureReport(@NonNull final byte[] report, final int length, final int timeout) {
+		if (!this.claimed || length != REPORT_SIZE)
+			return -1;
+
+		this.transfer();
+		this.setReportCount++;
+
+		final int status = report[REPORT_SIZE - 1] & 0xff;
+
+		if (status == DUMMY_REPORT || (status & STATUS_FLAG_WRITE) == 0) {
+			this.state = State.IDLE;
+
+			return REPORT_SIZE;
+		}
+
+		// Like the real key, the read mode only ends with the wrap of the sequence number or a reset
+		if (this.state == State.RESPONDING)
+			return REPORT_SIZE;
+
+		final int sequence = status & SEQUENCE_MASK;
+
+		if (sequence > LAST_WRITE_SEQUENCE)
+			return REPORT_SIZE;
+
+		if (sequence == 0) {
+			// A new frame aborts a wait for a touch
+			Arrays.fill(this.frame, (byte) 0);
+			this.state = State.IDLE;
+		}
+
+		System.arraycopy(report, 0, this.frame, sequence * REPORT_DATA_SIZE, REPORT_DATA_SIZE);
+		this.writeBusyPending = this.writeBusyPolls;
+
+		if (sequence == LAST_WRITE_SEQUENCE)
+			this.processFrame();
+
+		return REPORT_SIZE;
+	}
+
+	private void processFrame() {
+		final int crc = (this.frame[PAYLOAD_LENGTH + 1] & 0xff) | ((this.frame[PAYLOAD_LENGTH + 2] & 0xff) << 8);
+
+		// Frames with a wrong checksum are ignored by the key
+		if (Crc16.compute(this.frame, 0, PAYLOAD_LENGTH) != crc)
+			return;
+
+		final byte address = this.frame[PAYLOAD_LENGTH];
+
+		if (address == Slot.DEVICE_SERIAL.getAddress()) {
+			if (this.key.isSerialHidden())
+				return;
+
+			final int serial = this.key.getSerialNumber();
+
+			this.respond(new byte[]{(byte) (serial >> 24), (byte) (serial >> 16), (byte) (serial >> 8), (byte) serial}, false);
+			return;
+		}
+
+		if (address == Slot.YUBIKEY_4_CAPABILITIES.getAddress()) {
+			this.respond(this.key.getCapabilities(), false);
+			return;
+		}
+
+		for (final Slot slot : Slot.values()) {
+			if (slot.getAddress() == address && this.key.isProgrammed(slot)) {
+				this.respond(this.key.computeResponse(slot, this.frame, PAYLOAD_LENGTH), this.key.requiresTouch(slot));
+				return;
+			}
+		}
+	}
+
+	private void respond(final byte[] data, final boolean requiresTouch) {
+		final char crc = (char) ~Crc16.compute(data, 0, data.length);
+
+		Arrays.fill(this.response, (byte) 0);
+		System.arraycopy(data, 0, this.response, 0, data.length);
+		this.response[data.length] = (byte) (crc & 0xff);
+		this.response[data.length + 1] = (byte) (crc >> 8);
+
+		this.responseReports = (data.length + 2 + REPORT_DATA_SIZE - 1) / REPORT_DATA_SIZE;
+		this.readIndex = 0;
+
+		if (requiresTouch) {
+			final long now        = System.nanoTime();
+			final long touchDelay = this.key.getTouchDelay();
+
+			this.touchDeadline = touchDelay < 0 ? Long.MAX_VALUE : now + TimeUnit.MILLISECONDS.toNanos(touchDelay);
+			this.touchTimeout = now + TimeUnit.MILLISECONDS.toNanos(TOUCH_TIMEOUT_MS);
+			this.state = State.WAITING_FOR_TOUCH;
+			this.touchCount++;
+		} else {
+			this.state = State.RESPONDING;
+		}
+	}
+
+	private void transfer() {
+		if (this.transferLatency > 0)
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(this.transferLatency));
+	}
+}
@@ -0,0 +1,212 @@
+package com.kunzisoft.hardware.yubikey.simulator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.YubiKeyException;
+import com.kunzisoft.hardware.yubikey.challenge.UsbYubiKey;
+import com.kunzisoft.hardware.yubikey.challenge.YubiKey;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the latency of challenge-response transactions, typically against a simulated key.
+ * CPU time and allocation are measured through samplers supplied by the caller, as they depend on
+ * the runtime: e.g. {@code android.os.Debug.threadCpuTimeNanos()} on Android, or the
+ * {@code ThreadMXBean} of the current thread on a JVM.
+ */
+public class TransactionBenchmark {
+	/**
+	 * Reads a monotonic counter of the current thread, e.g. CPU time or allocated bytes.
+	 */
+	public interface Sampler {
+		long sample();
+	}
+
+	/**
+	 * Measurements of a benchmark run.
+	 */
+	public static class Result {
+		private final long[] latencies;
+		private final long   cpuTime;
+		private final long   allocatedBytes;
+
+		Result(final long[] latencies, final long cpuTime, final long allocatedBytes) {
+			this.latencies = latencies;
+			this.cpuTime = cpuTime;
+			this.allocatedBytes = allocatedBytes;
+
+			Arrays.sort(this.latencies);
+		}
+
+		public int getIterations() {
+			return this.latencies.length;
+		}
+
+		/**
+		 * Gets a latency percentile.
+		 *
+		 * @param percentile Percentile between 0 and 100.
+		 * @return Latency in nanoseconds.
+		 */
+		public long getLatency(final double percentile) {
+			final int index = (int) Math.ceil(percentile / 100 * this.latencies.length) - 1;
+
+			return this.latencies[Math.max(0, Math.min(index, this.latencies.length - 1))];
+		}
+
+		/**
+		 * @return CPU time per transaction in nanoseconds, or -1 without CPU sampler.
+		 */
+		public long getCpuTimePerTransaction() {
+			return this.cpuTime < 0 ? -1 : this.cpuTime / this.latencies.length;
+		}
+
+		/**
+		 * @return Allocated bytes per transaction, or -1 without allocation sampler.
+		 */
+		public long getAllocatedBytesPerTransaction() {
+			return this.allocatedBytes < 0 ? -1 : this.allocatedBytes / this.latencies.length;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "n=%d p50=%dus p90=%dus p99=%dus max=%dus cpu/op=%dns alloc/op=%dB",
+					this.getIterations(),
+					this.getLatency(50) / 1000,
+					this.getLatency(90) / 1000,
+					this.getLatency(99) / 1000,
+					this.getLatency(100) / 1000,
+					this.getCpuTimePerTransaction(),
+					this.getAllocatedBytesPerTransaction());
+		}
+	}
+
+	private final YubiKey yubiKey;
+	private final Slot    slot;
+	private final byte[]  challenge;
+	private final byte[]  response = new byte[YubiKey.CHALLENGE_RESPONSE_LENGTH];
+
+	@Nullable
+	private Sampler cpuSampler;
+	@Nullable
+	private Sampler allocationSampler;
+	@Nullable
+	private byte[]  expectedResponse;
+
+	/**
+	 * @param yubiKey   The driver to measure.
+	 * @param slot      The slot used for every transaction.
+	 * @param challenge The challenge sent in every transaction.
+	 */
+	public TransactionBenchmark(@NonNull final YubiKey yubiKey, @NonNull final Slot slot, @NonNull final byte[] challenge) {
+		this.yubiKey = yubiKey;
+		this.slot = slot;
+		this.challenge = challenge;
+	}
+
+	@NonNull
+	public TransactionBenchmark setCpuSampler(@Nullable final Sampler cpuSampler) {
+		this.cpuSampler = cpuSampler;
+
+		return this;
+	}
+
+	/**
+	 * Checks the response of every transaction, warmup included.
+	 *
+	 * @param expectedResponse The response of the key to the challenge, or null to skip the check.
+	 * @return This instance.
+	 */
+	@NonNull
+	public TransactionBenchmark setExpectedResponse(@Nullable final byte[] expectedResponse) {
+		this.expectedResponse = expectedResponse;
+
+		return this;
+	}
+
+	@NonNull
+	public TransactionBenchmark setAllocationSampler(@Nullable final Sampler allocationSampler) {
+		this.allocationSampler = allocationSampler;
+
+		return this;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param warmup     Number of transactions run before measuring.
+	 * @param iterations Number of measured transactions.
+	 * @return The measurements.
+	 */
+	@NonNull
+	public Result run(final int warmup, final int iterations) throws YubiKeyException {
+		for (int i = 0; i < warmup; i++) {
+			this.transaction();
+		}
+
+		final long[] latencies       = new long[iterations];
+		final long   cpuStart        = this.cpuSampler != null ? this.cpuSampler.sample() : 0;
+		final long   allocationStart = this.allocationSampler != null ? this.allocationSampler.sample() : 0;
+
+		for (int i = 0; i < iterations; i++) {
+			final long start = System.nanoTime();
+
+			this.transaction();
+			latencies[i] = System.nanoTime() - start;
+		}
+
+		final long cpuTime        = this.cpuSampler != null ? this.cpuSampler.sample() - cpuStart : -1;
+		final long allocatedBytes = this.allocationSampler != null ? this.allocationSampler.sample() - allocationStart : -1;
+
+		return new Result(latencies, cpuTime, allocatedBytes);
+	}
+
+	/**
+	 * Runs the benchmark once per {@link UsbYubiKey.WriteMode}, e.g. to compare the pipelined write
+	 * with the paced one. The driver is left in {@link UsbYubiKey.WriteMode#PIPELINED} mode.
+	 *
+	 * @param warmup     Number of transactions run before measuring each mode.
+	 * @param iterations Number of measured transactions of each mode.
+	 * @return The measurements by mode.
+	 */
+	@NonNull
+	public Map<UsbYubiKey.WriteMode, Result> runPerWriteMode(final int warmup, final int iterations) throws YubiKeyException {
+		if (!(this.yubiKey instanceof UsbYubiKey))
+			throw new IllegalStateException("Write modes only apply to USB YubiKeys");
+
+		final UsbYubiKey                        usbYubiKey = (UsbYubiKey) this.yubiKey;
+		final Map<UsbYubiKey.WriteMode, Result> results    = new EnumMap<>(UsbYubiKey.WriteMode.class);
+
+		try {
+			for (final UsbYubiKey.WriteMode mode : UsbYubiKey.WriteMode.values()) {
+				usbYubiKey.setWriteMode(mode);
+				results.put(mode, this.run(warmup, iterations));
+			}
+		} finally {
+			usbYubiKey.setWriteMode(UsbYubiKey.WriteMode.PIPELINED);
+		}
+
+		return results;
+	}
+
+	private void transaction() throws YubiKeyException {
+		final byte[] response;
+
+		if (this.yubiKey instanceof UsbYubiKey) {
+			// Use the variant without allocation to measure the driver alone
+			((UsbYubiKey) this.yubiKey).challengeResponse(this.slot, this.challenge, this.response, 0);
+			response = this.response;
+		} else {
+			response = this.yubiKey.challengeResponse(this.slot, this.challenge);
+		}
+
+		if (this.expectedResponse != null && !Arrays.equals(this.expectedResponse, response))
+			throw new AssertionError("Unexpected response " + Arrays.toString(response));
+	}
+}
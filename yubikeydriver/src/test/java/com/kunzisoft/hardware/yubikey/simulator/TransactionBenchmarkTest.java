@@ -0,0 +1,118 @@
+package com.kunzisoft.hardware.yubikey.simulator;
+
+import com.kunzisoft.hardware.yubikey.Slot;
+import com.kunzisoft.hardware.yubikey.challenge.ApduYubiKey;
+import com.kunzisoft.hardware.yubikey.challenge.UsbYubiKey;
+import com.kunzisoft.hardware.yubikey.challenge.YubiKey;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link TransactionBenchmark} against the simulated OTP HID and APDU interfaces, checks
+ * every response and prints the regression numbers, e.g. with
+ * {@code ./gradlew :yubikeydriver:testDebugUnitTest --info}.
+ */
+public class TransactionBenchmarkTest {
+	private static final int  WARMUP           = 50;
+	private static final int  ITERATIONS       = 200;
+	/**
+	 * Latency of a control transfer, in microseconds, close to what a phone sees.
+	 */
+	private static final long TRANSFER_LATENCY = 50;
+
+	/**
+	 * Challenge ending with a nonzero byte, so that the key does not strip it with the padding.
+	 */
+	private static final byte[] CHALLENGE = new byte[32];
+
+	static {
+		for (int i = 0; i < CHALLENGE.length; i++)
+			CHALLENGE[i] = (byte) (i + 1);
+	}
+
+	@Test
+	public void otpHidChallengeResponse() throws Exception {
+		final SimulatedKey         key          = new SimulatedKey(1).programSlot(Slot.CHALLENGE_HMAC_2, new byte[20], false);
+		final SimulatedOtpHidKey   hid          = new SimulatedOtpHidKey(key).setTransferLatency(TRANSFER_LATENCY);
+		final UsbYubiKey           yubiKey      = new UsbYubiKey(hid);
+		final AtomicInteger        transactions = countTransactions(yubiKey);
+		final ThreadMXBean         threads      = ManagementFactory.getThreadMXBean();
+		final TransactionBenchmark benchmark    = new TransactionBenchmark(yubiKey, Slot.CHALLENGE_HMAC_2, CHALLENGE)
+				.setExpectedResponse(key.computeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, CHALLENGE.length))
+				.setCpuSampler(threads::getCurrentThreadCpuTime);
+
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			benchmark.setAllocationSampler(((com.sun.management.ThreadMXBean) threads)::getCurrentThreadAllocatedBytes);
+
+		final TransactionBenchmark.Result result = benchmark.run(WARMUP, ITERATIONS);
+
+		System.out.println("OTP HID: " + result);
+
+		assertEquals(ITERATIONS, result.getIterations());
+		// Nothing was retried, every request is a single transaction
+		assertEquals(WARMUP + ITERATIONS, transactions.get());
+		assertEquals(WARMUP + ITERATIONS, hid.getClaimCount());
+
+		hid.resetCounters();
+		assertArrayEquals(key.computeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, CHALLENGE.length), yubiKey.challengeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE));
+		System.out.println("OTP HID transfers: get " + hid.getGetReportCount() + ", set " + hid.getSetReportCount());
+	}
+
+	@Test
+	public void otpHidWriteModes() throws Exception {
+		final SimulatedKey       key          = new SimulatedKey(1).programSlot(Slot.CHALLENGE_HMAC_2, new byte[20], false);
+		final SimulatedOtpHidKey hid          = new SimulatedOtpHidKey(key).setTransferLatency(TRANSFER_LATENCY).setWriteBusyPolls(1);
+		final UsbYubiKey         yubiKey      = new UsbYubiKey(hid);
+		final AtomicInteger      transactions = countTransactions(yubiKey);
+
+		final Map<UsbYubiKey.WriteMode, TransactionBenchmark.Result> results = new TransactionBenchmark(yubiKey, Slot.CHALLENGE_HMAC_2, CHALLENGE)
+				.setExpectedResponse(key.computeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, CHALLENGE.length))
+				.runPerWriteMode(WARMUP, ITERATIONS);
+
+		for (final Map.Entry<UsbYubiKey.WriteMode, TransactionBenchmark.Result> result : results.entrySet()) {
+			System.out.println("OTP HID " + result.getKey() + ": " + result.getValue());
+			assertEquals(ITERATIONS, result.getValue().getIterations());
+		}
+
+		assertEquals(UsbYubiKey.WriteMode.values().length, results.size());
+		assertEquals(results.size() * (WARMUP + ITERATIONS), transactions.get());
+	}
+
+	@Test
+	public void apduChallengeResponse() throws Exception {
+		final SimulatedKey     key          = new SimulatedKey(1).programSlot(Slot.CHALLENGE_HMAC_2, new byte[20], false);
+		final SimulatedApduKey apdu         = new SimulatedApduKey(key);
+		final ApduYubiKey      yubiKey      = new ApduYubiKey(apdu);
+		final AtomicInteger    transactions = countTransactions(yubiKey);
+
+		apdu.setExchangeLatency(TRANSFER_LATENCY);
+
+		final TransactionBenchmark.Result result = new TransactionBenchmark(yubiKey, Slot.CHALLENGE_HMAC_2, CHALLENGE)
+				.setExpectedResponse(key.computeResponse(Slot.CHALLENGE_HMAC_2, CHALLENGE, CHALLENGE.length))
+				.run(WARMUP, ITERATIONS);
+
+		System.out.println("APDU: " + result);
+
+		assertEquals(ITERATIONS, result.getIterations());
+		assertEquals(WARMUP + ITERATIONS, transactions.get());
+		// The applet stays selected on the connection, every later request is a single PUT
+		assertEquals(1, apdu.getSelectCount());
+		assertEquals(1 + WARMUP + ITERATIONS, apdu.getExchangeCount());
+	}
+
+	private static AtomicInteger countTransactions(final YubiKey yubiKey) {
+		final AtomicInteger transactions = new AtomicInteger();
+
+		yubiKey.setTransactionListener(metrics -> transactions.incrementAndGet());
+
+		return transactions;
+	}
+}